@@ -0,0 +1,67 @@
+package com.talosprotocol.talos.canonical;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Canonical JSON for a ratchet header and a capability-sized document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CanonicalJsonBenchmark {
+	Map<String, Object> header;
+	Map<String, Object> document;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		header = new TreeMap<>();
+		header.put("dh", "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+		header.put("pn", 3);
+		header.put("n", 17);
+
+		document = new HashMap<>();
+		document.put("issuer", "did:key:z6MkhaXgBZDvotDkL5257faiztiGiC2QtKLGpbnnEGta2doK");
+		document.put("subject", "did:key:z6MkjchhfUsD6mmvni8mCdXHw216Xrm9bQe2mBH1P5RDjVJG");
+		document.put("expires", 1767225600L);
+		List<Object> grants = new ArrayList<>();
+		for (int i = 0; i < 32; i++) {
+			Map<String, Object> grant = new HashMap<>();
+			grant.put("tool", "tool-" + i);
+			grant.put("scope", "read");
+			grant.put("limit", i * 10);
+			grants.add(grant);
+		}
+		document.put("grants", grants);
+	}
+
+	@Benchmark
+	public byte[] marshalHeader() throws IOException {
+		return CanonicalJson.marshal(header);
+	}
+
+	@Benchmark
+	public byte[] marshalDocument() throws IOException {
+		return CanonicalJson.marshal(document);
+	}
+
+	@Benchmark
+	public void marshalDocumentStreaming() throws IOException {
+		CanonicalJson.marshal(document, OutputStream.nullOutputStream());
+	}
+}
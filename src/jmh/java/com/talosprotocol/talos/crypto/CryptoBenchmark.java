@@ -0,0 +1,112 @@
+package com.talosprotocol.talos.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * HKDF and AEAD primitive costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CryptoBenchmark {
+	private static final byte[] INFO = "talos-double-ratchet-message".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] INFO_CHAIN = "talos-double-ratchet-chain".getBytes(StandardCharsets.UTF_8);
+
+	@State(Scope.Thread)
+	public static class Aead {
+		@Param({"64", "1024", "16384"})
+		public int payloadSize;
+
+		byte[] key;
+		byte[] nonce;
+		byte[] plaintext;
+		byte[] ad;
+		byte[] ciphertext;
+		byte[] out;
+		ByteBuffer directIn;
+		ByteBuffer directOut;
+		long counter;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			key = new byte[32];
+			nonce = new byte[12];
+			plaintext = new byte[payloadSize];
+			ad = "{\"dh\":\"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA\",\"n\":0,\"pn\":0}"
+					.getBytes(StandardCharsets.UTF_8);
+			ciphertext = Crypto.encryptWithNonce(key, nonce, plaintext, ad);
+			out = new byte[payloadSize + AeadContext.TAG_SIZE];
+			directIn = ByteBuffer.allocateDirect(payloadSize);
+			directOut = ByteBuffer.allocateDirect(payloadSize + AeadContext.TAG_SIZE);
+		}
+
+		// A fresh nonce per call, as a real sender would use.
+		byte[] nextNonce() {
+			long c = ++counter;
+			for (int i = 0; i < 8; i++) {
+				nonce[i] = (byte) (c >>> (i * 8));
+			}
+			return nonce;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Kdf {
+		byte[] chainKey = new byte[32];
+		byte[] messageKey = new byte[32];
+		byte[] nextChainKey = new byte[32];
+	}
+
+	@Benchmark
+	public byte[] hkdfDerive(Kdf k) {
+		return Crypto.hkdfDerive(k.chainKey, null, INFO, 32);
+	}
+
+	/**
+	 * Message key and next chain key with two independent derivations.
+	 */
+	@Benchmark
+	public byte[] chainStepTwoDerives(Kdf k) {
+		Crypto.hkdfDerive(k.chainKey, null, INFO, 32);
+		return Crypto.hkdfDerive(k.chainKey, null, INFO_CHAIN, 32);
+	}
+
+	@Benchmark
+	public byte[] hkdfChainStep(Kdf k) {
+		Crypto.hkdfChainStep(k.chainKey, INFO, k.messageKey, INFO_CHAIN, k.nextChainKey);
+		return k.nextChainKey;
+	}
+
+	@Benchmark
+	public byte[] encryptWithNonce(Aead a) {
+		return Crypto.encryptWithNonce(a.key, a.nonce, a.plaintext, a.ad);
+	}
+
+	@Benchmark
+	public byte[] decryptWithNonce(Aead a) {
+		return Crypto.decryptWithNonce(a.key, a.nonce, a.ciphertext, a.ad);
+	}
+
+	@Benchmark
+	public int encryptIntoArray(Aead a) {
+		return Crypto.encryptWithNonce(a.key, a.nextNonce(), a.plaintext, 0, a.plaintext.length, a.ad, a.out, 0);
+	}
+
+	@Benchmark
+	public int encryptIntoDirectBuffer(Aead a) {
+		a.directIn.clear();
+		a.directOut.clear();
+		return Crypto.encryptWithNonce(a.key, a.nextNonce(), a.directIn, a.ad, a.directOut);
+	}
+}
@@ -0,0 +1,314 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.talosprotocol.talos.crypto.AeadContext;
+import com.talosprotocol.talos.crypto.Crypto;
+import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+
+/**
+ * Ratchet encrypt/decrypt throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RatchetSessionBenchmark {
+	static final int BATCH_SIZE = 16;
+
+	@State(Scope.Thread)
+	public static class Pair {
+		@Param({"64", "1024", "16384"})
+		public int payloadSize;
+
+		RatchetSession alice;
+		RatchetSession bob;
+		byte[] plaintext;
+		List<byte[]> batch;
+		ByteBuffer frame;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			KeyPairX25519 aliceId = Crypto.x25519Generate();
+			KeyPairX25519 bobId = Crypto.x25519Generate();
+			KeyPairX25519 bobSpk = Crypto.x25519Generate();
+
+			alice = new RatchetSession();
+			alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+			bob = new RatchetSession();
+			bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+					alice.getState().dh_public);
+
+			plaintext = new byte[payloadSize];
+			batch = Collections.nCopies(BATCH_SIZE, plaintext);
+			frame = ByteBuffer.allocate(payloadSize + 128);
+		}
+	}
+
+	/**
+	 * A receiver that gets message {@code gap} of a chain first, forcing
+	 * {@code skipMessageKeys} to derive and store every earlier key.
+	 */
+	@State(Scope.Thread)
+	public static class OutOfOrder {
+		@Param({"10", "100", "999"})
+		public int gap;
+
+		KeyPairX25519 bobId;
+		KeyPairX25519 bobSpk;
+		KeyPairX25519 aliceId;
+		byte[] aliceEphemeral;
+		String lastWire;
+		RatchetSession bob;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			aliceId = Crypto.x25519Generate();
+			bobId = Crypto.x25519Generate();
+			bobSpk = Crypto.x25519Generate();
+
+			RatchetSession alice = new RatchetSession();
+			alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+			aliceEphemeral = alice.getState().dh_public;
+
+			byte[] plaintext = new byte[64];
+			for (int i = 0; i <= gap; i++) {
+				lastWire = alice.encrypt(plaintext, null);
+			}
+		}
+
+		@Setup(Level.Invocation)
+		public void freshReceiver() {
+			bob = new RatchetSession();
+			bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey, aliceEphemeral);
+		}
+	}
+
+	/**
+	 * Malformed frames of the kinds a misbehaving peer sends: not base64, an
+	 * empty envelope, a truncated nonce and an out-of-range counter.
+	 */
+	@State(Scope.Thread)
+	public static class Junk {
+		RatchetSession bob;
+		String[] frames;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			KeyPairX25519 aliceId = Crypto.x25519Generate();
+			KeyPairX25519 bobId = Crypto.x25519Generate();
+			KeyPairX25519 bobSpk = Crypto.x25519Generate();
+			RatchetSession alice = new RatchetSession();
+			alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+			bob = new RatchetSession();
+			bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+					alice.getState().dh_public);
+
+			Base64.Encoder b64 = Base64.getUrlEncoder().withoutPadding();
+			String dh = b64.encodeToString(alice.getState().dh_public);
+			String tag = "AAAAAAAAAAAAAAAAAAAAAA";
+			frames = new String[]{"not a frame!", b64.encodeToString("{}".getBytes(StandardCharsets.UTF_8)),
+					b64.encodeToString(("{\"ciphertext\":\"" + tag + "\",\"header\":{\"dh\":\"" + dh
+							+ "\",\"n\":0,\"pn\":0},\"nonce\":\"AAAA\"}").getBytes(StandardCharsets.UTF_8)),
+					b64.encodeToString(("{\"ciphertext\":\"" + tag + "\",\"header\":{\"dh\":\"" + dh
+							+ "\",\"n\":-1,\"pn\":0},\"nonce\":\"AAAAAAAAAAAAAAAA\"}")
+							.getBytes(StandardCharsets.UTF_8))};
+		}
+	}
+
+	/**
+	 * A 1 MiB payload streamed to a sink that discards it, next to the bare
+	 * AEAD cost of sealing the same bytes in segments.
+	 */
+	@State(Scope.Thread)
+	public static class Stream {
+		@Param({"1048576"})
+		public int payloadSize;
+
+		RatchetSession alice;
+		byte[] payload;
+		byte[] sealed;
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[12];
+		AeadContext aead = new AeadContext();
+		long counter;
+		WritableByteChannel sink = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				src.position(src.limit());
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		@Setup(Level.Trial)
+		public void setup() {
+			alice = new RatchetSession();
+			alice.initializeAsInitiator(Crypto.x25519Generate().privateKey, Crypto.x25519Generate().publicKey, null,
+					Crypto.x25519Generate().publicKey, null, null);
+			payload = new byte[payloadSize];
+			sealed = new byte[EncryptingStream.DEFAULT_SEGMENT_SIZE + AeadContext.TAG_SIZE];
+		}
+	}
+
+	/**
+	 * JSON resembling agent tool output, {@code rows} search results long,
+	 * sent as is or through {@link DeflateCodec}.
+	 */
+	@State(Scope.Thread)
+	public static class Json {
+		@Param({"4", "40", "400"})
+		public int rows;
+
+		@Param({"none", "deflate"})
+		public String codec;
+
+		RatchetSession alice;
+		RatchetSession bob;
+		byte[] plaintext;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			KeyPairX25519 aliceId = Crypto.x25519Generate();
+			KeyPairX25519 bobId = Crypto.x25519Generate();
+			KeyPairX25519 bobSpk = Crypto.x25519Generate();
+
+			alice = new RatchetSession();
+			alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+			bob = new RatchetSession();
+			bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+					alice.getState().dh_public);
+			if (codec.equals(DeflateCodec.ID)) {
+				alice.setPayloadCodec(DeflateCodec.DEFAULT);
+			}
+
+			Random rnd = new Random(rows);
+			StringBuilder sb = new StringBuilder("{\"tool\":\"search_files\",\"status\":\"ok\",\"results\":[");
+			for (int i = 0; i < rows; i++) {
+				sb.append(i > 0 ? "," : "").append("{\"path\":\"src/main/java/com/example/service/Module")
+						.append(rnd.nextInt(500)).append(".java\",\"line\":").append(rnd.nextInt(2000))
+						.append(",\"score\":0.").append(rnd.nextInt(1000)).append(",\"snippet\":\"public void handle")
+						.append(rnd.nextInt(90))
+						.append("(Request request) { return service.process(request, context); }\",\"tags\":[\"java\",\"")
+						.append(rnd.nextBoolean() ? "service" : "handler").append("\"]}");
+			}
+			plaintext = sb.append("],\"truncated\":false}").toString().getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	@Benchmark
+	public String encrypt(Pair p) {
+		return p.alice.encrypt(p.plaintext, null);
+	}
+
+	@Benchmark
+	public byte[] encryptDecrypt(Pair p) {
+		return p.bob.decrypt(p.alice.encrypt(p.plaintext, null));
+	}
+
+	/**
+	 * Sixteen messages per call; compare with 16x {@link #encrypt}.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<String> encryptBatch(Pair p) {
+		return p.alice.encryptBatch(p.batch);
+	}
+
+	/**
+	 * Sixteen messages per call; compare with 16x {@link #encryptDecrypt}.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<byte[]> encryptBatchDecryptBatch(Pair p) {
+		return p.bob.decryptBatch(p.alice.encryptBatch(p.batch));
+	}
+
+	@Benchmark
+	public int encryptToBuffer(Pair p) {
+		p.frame.clear();
+		return p.alice.encryptToBuffer(ByteBuffer.wrap(p.plaintext), null, p.frame);
+	}
+
+	@Benchmark
+	public byte[] encryptDecryptBinary(Pair p) {
+		p.frame.clear();
+		p.alice.encryptToBuffer(ByteBuffer.wrap(p.plaintext), null, p.frame);
+		p.frame.flip();
+		return p.bob.decryptFromBuffer(p.frame);
+	}
+
+	/**
+	 * Sender and receiver CPU time for one JSON message; wire sizes are in
+	 * the README.
+	 */
+	@Benchmark
+	public byte[] encryptDecryptJson(Json j) {
+		return j.bob.decrypt(j.alice.encrypt(j.plaintext, null));
+	}
+
+	@Benchmark
+	public byte[] decryptOutOfOrder(OutOfOrder s) {
+		return s.bob.decrypt(s.lastWire);
+	}
+
+	@Benchmark
+	public Object rejectJunk(Junk j) {
+		String frame = j.frames[j.next++ & 3];
+		try {
+			return j.bob.decrypt(frame);
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public long encryptStream(Stream s) throws IOException {
+		try (EncryptingStream out = s.alice.encryptStream(s.sink)) {
+			out.write(s.payload);
+		}
+		return s.payload.length;
+	}
+
+	@Benchmark
+	public int aeadSegments(Stream s) {
+		int segment = EncryptingStream.DEFAULT_SEGMENT_SIZE;
+		int written = 0;
+		for (int off = 0; off < s.payload.length; off += segment) {
+			s.counter++;
+			for (int i = 0; i < 8; i++) {
+				s.nonce[i] = (byte) (s.counter >>> (i * 8));
+			}
+			written += s.aead.encrypt(s.key, s.nonce, null, 0, 0, s.payload, off,
+					Math.min(segment, s.payload.length - off), s.sealed, 0);
+		}
+		return written;
+	}
+}
@@ -0,0 +1,141 @@
+package com.talosprotocol.talos.wallet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.talosprotocol.talos.crypto.Crypto;
+import com.talosprotocol.talos.crypto.PublicKeyCache;
+
+/**
+ * Identity signing, verification and DID encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class WalletBenchmark {
+	/**
+	 * Inbound frames from a small set of peers.
+	 */
+	@State(Scope.Benchmark)
+	public static class Batch {
+		@Param({"256"})
+		public int batchSize;
+
+		List<Wallet.SignedItem> items;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Wallet[] peers = new Wallet[8];
+			for (int i = 0; i < peers.length; i++) {
+				peers[i] = Wallet.generate("peer-" + i);
+			}
+			items = new ArrayList<>();
+			for (int i = 0; i < batchSize; i++) {
+				Wallet w = peers[i % peers.length];
+				byte[] msg = ("frame-" + i).getBytes(StandardCharsets.UTF_8);
+				items.add(new Wallet.SignedItem(msg, w.sign(msg), w.getPublicKey()));
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class KeyCache {
+		@Setup(Level.Trial)
+		public void install() {
+			Crypto.setPublicKeyCache(new PublicKeyCache(1024));
+		}
+
+		@TearDown(Level.Trial)
+		public void uninstall() {
+			Crypto.setPublicKeyCache(null);
+		}
+	}
+
+	Wallet wallet;
+	byte[] message;
+	byte[] signature;
+	byte[] publicKey;
+	byte[] multicodecKey;
+	String did;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		wallet = Wallet.fromSeed(new byte[32], "bench");
+		message = "{\"capability\":\"tool.invoke\",\"nonce\":42}".getBytes(StandardCharsets.UTF_8);
+		signature = wallet.sign(message);
+		publicKey = wallet.getPublicKey();
+		did = wallet.toDid();
+		multicodecKey = new byte[2 + publicKey.length];
+		multicodecKey[0] = (byte) 0xED;
+		multicodecKey[1] = 0x01;
+		System.arraycopy(publicKey, 0, multicodecKey, 2, publicKey.length);
+	}
+
+	@Benchmark
+	public byte[] sign() {
+		return wallet.sign(message);
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return Wallet.verify(message, signature, publicKey);
+	}
+
+	@Benchmark
+	public boolean verifyCachedKey(KeyCache cache) {
+		return Wallet.verify(message, signature, publicKey);
+	}
+
+	@Benchmark
+	public String toDid() {
+		return wallet.toDid();
+	}
+
+	/**
+	 * The Base58 work behind a first {@link Wallet#toDid()}.
+	 */
+	@Benchmark
+	public String base58Encode() {
+		return Base58.encode(multicodecKey);
+	}
+
+	@Benchmark
+	public byte[] base58Decode() {
+		return Base58.decode(did, 9, did.length());
+	}
+
+	@Benchmark
+	public byte[] publicKeyFromDid() {
+		return Wallet.publicKeyFromDid(did);
+	}
+
+	@Benchmark
+	public int verifyLoop(Batch b) {
+		int ok = 0;
+		for (Wallet.SignedItem item : b.items) {
+			if (Wallet.verify(item.message, item.signature, item.publicKey)) {
+				ok++;
+			}
+		}
+		return ok;
+	}
+
+	@Benchmark
+	public BitSet verifyBatch(Batch b) {
+		return Wallet.verifyBatch(b.items);
+	}
+}
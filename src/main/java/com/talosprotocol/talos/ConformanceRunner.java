@@ -2,19 +2,45 @@ package com.talosprotocol.talos;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.talosprotocol.talos.canonical.Base64Url;
 import com.talosprotocol.talos.canonical.CanonicalJson;
 import com.talosprotocol.talos.crypto.Crypto;
 import com.talosprotocol.talos.ratchet.RatchetSession;
 import com.talosprotocol.talos.wallet.Wallet;
 
+/**
+ * Runs Talos conformance vectors: {@code --vectors <file>} takes a release set,
+ * a vector file or a ratchet trace.
+ * <p>
+ * Every vector and trace runs to completion and all failures are reported.
+ * Options:
+ * <ul>
+ * <li>{@code --parallel [--threads N]}: run vectors and traces on a fork-join
+ * pool (each trace stays sequential internally)
+ * <li>{@code --repeat N}: run everything N times and report throughput
+ * <li>{@code --shard K/N}: run only every N-th vector starting at K
+ * <li>{@code --junit-xml <file>}, {@code --json-report <file>}: write
+ * results with per-vector latency
+ * </ul>
+ */
 @Component
 public class ConformanceRunner implements CommandLineRunner {
 
@@ -22,21 +48,44 @@ public class ConformanceRunner implements CommandLineRunner {
 
 	@Override
 	public void run(String... args) throws Exception {
-		String vectorsPath = null;
-		for (int i = 0; i < args.length; i++) {
-			if ("--vectors".equals(args[i]) && i + 1 < args.length) {
-				vectorsPath = args[i + 1];
-			}
+		Options options;
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("CONFORMANCE FAILED: " + e.getMessage());
+			System.exit(1);
+			return;
 		}
 
-		if (vectorsPath == null)
+		if (options.vectorsPath == null)
 			return;
 
-		System.out.println("Running vectors from: " + vectorsPath);
+		System.out.println("Running vectors from: " + options.vectorsPath);
 		try {
-			processPath(vectorsPath);
-			System.out.println("ALL TESTS PASSED");
-			System.exit(0);
+			List<Unit> units = new ArrayList<>();
+			collect(new File(options.vectorsPath), units);
+			units = options.shard(units);
+
+			long start = System.nanoTime();
+			List<Result> results = runAll(units, options);
+			long wallNanos = System.nanoTime() - start;
+
+			if (options.junitXml != null) {
+				Files.writeString(Path.of(options.junitXml), junitXml(results), StandardCharsets.UTF_8);
+			}
+			if (options.jsonReport != null) {
+				mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.jsonReport),
+						jsonReport(results, options, wallNanos));
+			}
+
+			int failed = printSummary(results, options, wallNanos);
+			if (failed == 0) {
+				System.out.println("ALL TESTS PASSED");
+				System.exit(0);
+			} else {
+				System.err.println("CONFORMANCE FAILED: " + failed + " of " + results.size() + " vectors failed");
+				System.exit(1);
+			}
 		} catch (Exception e) {
 			System.err.println("CONFORMANCE FAILED: " + e.getMessage());
 			e.printStackTrace();
@@ -44,52 +93,382 @@ public class ConformanceRunner implements CommandLineRunner {
 		}
 	}
 
-	private void processPath(String path) throws Exception {
-		File file = new File(path);
-		if (!file.exists()) {
-			throw new RuntimeException("Vector file not found: " + path);
+	static final class Options {
+		String vectorsPath;
+		boolean parallel;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int repeat = 1;
+		int shardIndex;
+		int shardCount = 1;
+		String junitXml;
+		String jsonReport;
+
+		static Options parse(String... args) {
+			Options o = new Options();
+			for (int i = 0; i < args.length; i++) {
+				String next = i + 1 < args.length ? args[i + 1] : null;
+				switch (args[i]) {
+					case "--vectors" :
+						o.vectorsPath = next;
+						i++;
+						break;
+					case "--parallel" :
+						o.parallel = true;
+						break;
+					case "--threads" :
+						o.threads = positive("--threads", next);
+						i++;
+						break;
+					case "--repeat" :
+						o.repeat = positive("--repeat", next);
+						i++;
+						break;
+					case "--shard" :
+						String[] parts = next == null ? new String[0] : next.split("/");
+						if (parts.length != 2) {
+							throw new IllegalArgumentException("--shard expects K/N");
+						}
+						o.shardIndex = Integer.parseInt(parts[0]);
+						o.shardCount = positive("--shard", parts[1]);
+						if (o.shardIndex < 0 || o.shardIndex >= o.shardCount) {
+							throw new IllegalArgumentException("--shard index out of range: " + next);
+						}
+						i++;
+						break;
+					case "--junit-xml" :
+						o.junitXml = next;
+						i++;
+						break;
+					case "--json-report" :
+						o.jsonReport = next;
+						i++;
+						break;
+					default :
+						// Other Spring Boot arguments pass through.
+				}
+			}
+			return o;
 		}
-		System.out.println("Processing: " + file.getName());
-		JsonNode root = mapper.readTree(file);
 
-		if (root.isArray()) {
-			for (JsonNode node : root) {
-				runVector(node, false);
+		private static int positive(String flag, String value) {
+			try {
+				int n = Integer.parseInt(value);
+				if (n > 0) {
+					return n;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			throw new IllegalArgumentException(flag + " expects a positive integer, got " + value);
+		}
+
+		List<Unit> shard(List<Unit> units) {
+			if (shardCount == 1) {
+				return units;
+			}
+			List<Unit> mine = new ArrayList<>();
+			for (int i = shardIndex; i < units.size(); i += shardCount) {
+				mine.add(units.get(i));
+			}
+			return mine;
+		}
+	}
+
+	enum Kind {
+		VECTOR, NEGATIVE, TRACE,
+		// A file that could not be read; always fails.
+		LOAD_ERROR
+	}
+
+	/**
+	 * One independently runnable vector or trace.
+	 */
+	static final class Unit {
+		final String suite;
+		final String name;
+		final Kind kind;
+		final JsonNode node;
+		final String loadError;
+
+		Unit(String suite, String name, Kind kind, JsonNode node, String loadError) {
+			this.suite = suite;
+			this.name = name;
+			this.kind = kind;
+			this.node = node;
+			this.loadError = loadError;
+		}
+	}
+
+	static final class Result {
+		final Unit unit;
+		int runs;
+		long totalNanos;
+		long minNanos = Long.MAX_VALUE;
+		long maxNanos;
+		boolean skipped;
+		String failure;
+
+		Result(Unit unit) {
+			this.unit = unit;
+		}
+
+		void record(long nanos) {
+			runs++;
+			totalNanos += nanos;
+			minNanos = Math.min(minNanos, nanos);
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		double meanMicros() {
+			return runs == 0 ? 0.0 : totalNanos / 1000.0 / runs;
+		}
+	}
+
+	/**
+	 * Expands release sets and vector files into units, in file order. Files
+	 * are read serially; a missing or unreadable file becomes a failing unit.
+	 */
+	void collect(File file, List<Unit> units) {
+		String suite = file.getName();
+		JsonNode root;
+		try {
+			if (!file.exists()) {
+				throw new RuntimeException("Vector file not found: " + file.getPath());
 			}
+			System.out.println("Processing: " + suite);
+			root = mapper.readTree(file);
+		} catch (Exception e) {
+			units.add(new Unit(suite, suite, Kind.LOAD_ERROR, null, e.getMessage()));
+			return;
+		}
+
+		if (root.isArray()) {
+			addVectors(suite, root, Kind.VECTOR, units);
 		} else if (root.has("version") && root.has("vectors") && root.get("vectors").isArray()
 				&& root.get("vectors").size() > 0 && root.get("vectors").get(0).isTextual()) {
 			System.out.println("Release Set v" + root.get("version").asText());
 			for (JsonNode vectorPath : root.get("vectors")) {
-				File subFile = new File(file.getParent(), vectorPath.asText());
-				processPath(subFile.getCanonicalPath());
+				collect(new File(file.getParent(), vectorPath.asText()), units);
 			}
 		} else if (root.has("steps")) {
-			runTrace(root);
+			String title = root.has("title") ? root.get("title").asText() : suite;
+			units.add(new Unit(suite, title, Kind.TRACE, root, null));
 		} else if (root.has("vectors")) {
-			for (JsonNode vec : root.get("vectors")) {
-				runVector(vec, false);
-			}
+			addVectors(suite, root.get("vectors"), Kind.VECTOR, units);
 		} else if (root.has("negative_cases")) {
-			for (JsonNode vec : root.get("negative_cases")) {
-				runVector(vec, true);
-			}
+			addVectors(suite, root.get("negative_cases"), Kind.NEGATIVE, units);
 		} else {
-			runVector(root, false);
+			addVectors(suite, List.of(root), Kind.VECTOR, units);
 		}
 	}
 
-	private void runVector(JsonNode vec, boolean isNegative) throws Exception {
-		String testId = vec.has("test_id") ? vec.get("test_id").asText() : "unknown";
-		try {
-			Handler handler = getHandler(vec);
-			if (handler != null) {
-				handler.run(vec);
+	private static void addVectors(String suite, Iterable<JsonNode> vectors, Kind kind, List<Unit> units) {
+		for (JsonNode vec : vectors) {
+			String testId = vec.has("test_id") ? vec.get("test_id").asText() : "unknown";
+			units.add(new Unit(suite, testId, kind, vec, null));
+		}
+	}
+
+	List<Result> runAll(List<Unit> units, Options options) {
+		Result[] results = new Result[units.size()];
+		RunUnits task = new RunUnits(units, results, options.repeat, 0, units.size());
+		if (options.parallel) {
+			ForkJoinPool pool = new ForkJoinPool(options.threads);
+			try {
+				pool.invoke(task);
+			} finally {
+				pool.shutdown();
 			}
-		} catch (Exception e) {
-			if (isNegative)
+		} else {
+			task.compute();
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Splits units down to one per task; a trace is a single unit, so its
+	 * steps never interleave.
+	 */
+	private final class RunUnits extends RecursiveAction {
+		private final List<Unit> units;
+		private final Result[] results;
+		private final int repeat;
+		private final int from;
+		private final int to;
+
+		RunUnits(List<Unit> units, Result[] results, int repeat, int from, int to) {
+			this.units = units;
+			this.results = results;
+			this.repeat = repeat;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && getPool() != null) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RunUnits(units, results, repeat, from, mid),
+						new RunUnits(units, results, repeat, mid, to));
 				return;
-			throw new RuntimeException("Vector " + testId + " failed: " + e.getMessage(), e);
+			}
+			for (int i = from; i < to; i++) {
+				results[i] = runUnit(units.get(i), repeat);
+			}
+		}
+	}
+
+	Result runUnit(Unit unit, int repeat) {
+		Result result = new Result(unit);
+		if (unit.kind == Kind.LOAD_ERROR) {
+			result.failure = unit.loadError;
+			return result;
+		}
+		Handler handler = unit.kind == Kind.TRACE ? this::runTrace : getHandler(unit.node);
+		if (handler == null) {
+			result.skipped = true;
+			return result;
+		}
+		for (int r = 0; r < repeat; r++) {
+			long start = System.nanoTime();
+			try {
+				handler.run(unit.node);
+			} catch (Exception e) {
+				if (unit.kind != Kind.NEGATIVE) {
+					result.record(System.nanoTime() - start);
+					result.failure = String.valueOf(e.getMessage());
+					return result;
+				}
+			}
+			result.record(System.nanoTime() - start);
+		}
+		return result;
+	}
+
+	private int printSummary(List<Result> results, Options options, long wallNanos) {
+		int failed = 0;
+		int skipped = 0;
+		long runs = 0;
+		for (Result r : results) {
+			runs += r.runs;
+			if (r.skipped) {
+				skipped++;
+			} else if (r.failure != null) {
+				failed++;
+				System.err.println("FAIL " + r.unit.suite + " / " + r.unit.name + ": " + r.failure);
+			}
+		}
+		double seconds = wallNanos / 1e9;
+		System.out.printf("%d vectors: %d passed, %d failed, %d skipped in %.3f s%n", results.size(),
+				results.size() - failed - skipped, failed, skipped, seconds);
+		if (options.repeat > 1) {
+			System.out.printf("%d runs (repeat %d%s), %.0f vectors/s%n", runs, options.repeat,
+					options.parallel ? ", " + options.threads + " threads" : "", runs / seconds);
+		}
+		return failed;
+	}
+
+	static String junitXml(List<Result> results) {
+		Map<String, List<Result>> suites = new LinkedHashMap<>();
+		for (Result r : results) {
+			suites.computeIfAbsent(r.unit.suite, k -> new ArrayList<>()).add(r);
+		}
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+		for (Map.Entry<String, List<Result>> suite : suites.entrySet()) {
+			int failures = 0;
+			int skipped = 0;
+			long nanos = 0;
+			for (Result r : suite.getValue()) {
+				failures += r.failure != null ? 1 : 0;
+				skipped += r.skipped ? 1 : 0;
+				nanos += r.totalNanos;
+			}
+			xml.append("  <testsuite name=\"").append(xmlEscape(suite.getKey())).append("\" tests=\"")
+					.append(suite.getValue().size()).append("\" failures=\"").append(failures)
+					.append("\" skipped=\"").append(skipped).append("\" time=\"").append(seconds(nanos))
+					.append("\">\n");
+			for (Result r : suite.getValue()) {
+				// time is the mean per run, so repeated runs stay comparable.
+				xml.append("    <testcase classname=\"").append(xmlEscape(r.unit.suite)).append("\" name=\"")
+						.append(xmlEscape(r.unit.name)).append("\" time=\"")
+						.append(seconds(r.runs == 0 ? 0 : r.totalNanos / r.runs)).append('"');
+				if (r.failure != null) {
+					xml.append(">\n      <failure message=\"").append(xmlEscape(r.failure))
+							.append("\"/>\n    </testcase>\n");
+				} else if (r.skipped) {
+					xml.append(">\n      <skipped message=\"no handler\"/>\n    </testcase>\n");
+				} else {
+					xml.append("/>\n");
+				}
+			}
+			xml.append("  </testsuite>\n");
+		}
+		return xml.append("</testsuites>\n").toString();
+	}
+
+	ObjectNode jsonReport(List<Result> results, Options options, long wallNanos) {
+		ArrayNode vectors = mapper.createArrayNode();
+		int failed = 0;
+		int skipped = 0;
+		long runs = 0;
+		for (Result r : results) {
+			ObjectNode v = vectors.addObject();
+			v.put("suite", r.unit.suite);
+			v.put("name", r.unit.name);
+			v.put("kind", r.unit.kind.name().toLowerCase(Locale.ROOT));
+			v.put("status", r.skipped ? "skipped" : r.failure != null ? "failed" : "passed");
+			v.put("runs", r.runs);
+			if (r.runs > 0) {
+				v.put("mean_us", r.meanMicros());
+				v.put("min_us", r.minNanos / 1000.0);
+				v.put("max_us", r.maxNanos / 1000.0);
+			}
+			if (r.failure != null) {
+				v.put("failure", r.failure);
+				failed++;
+			}
+			skipped += r.skipped ? 1 : 0;
+			runs += r.runs;
+		}
+		ObjectNode report = mapper.createObjectNode();
+		report.put("total", results.size());
+		report.put("passed", results.size() - failed - skipped);
+		report.put("failed", failed);
+		report.put("skipped", skipped);
+		report.put("repeat", options.repeat);
+		report.put("threads", options.parallel ? options.threads : 1);
+		report.put("wall_ms", wallNanos / 1e6);
+		report.put("vectors_per_second", runs / (wallNanos / 1e9));
+		report.set("vectors", vectors);
+		return report;
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	static String xmlEscape(String s) {
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '<' :
+					out.append("&lt;");
+					break;
+				case '>' :
+					out.append("&gt;");
+					break;
+				case '&' :
+					out.append("&amp;");
+					break;
+				case '"' :
+					out.append("&quot;");
+					break;
+				default :
+					out.append(c < 0x20 && c != '\t' && c != '\n' ? ' ' : c);
+			}
 		}
+		return out.toString();
 	}
 
 	interface Handler {
@@ -173,8 +552,12 @@ public class ConformanceRunner implements CommandLineRunner {
 				byte[] infoChain = inputs.get("info_chain").asText().getBytes(StandardCharsets.UTF_8);
 				byte[] infoMsg = inputs.get("info_message").asText().getBytes(StandardCharsets.UTF_8);
 
-				byte[] nextCk = Crypto.hkdfDerive(ck, null, infoChain, 32);
-				byte[] mk = Crypto.hkdfDerive(ck, null, infoMsg, 32);
+				byte[] nextCk = new byte[32];
+				byte[] mk = new byte[32];
+				Crypto.hkdfChainStep(ck, infoMsg, mk, infoChain, nextCk);
+				if (!Arrays.equals(nextCk, Crypto.hkdfDerive(ck, null, infoChain, 32))
+						|| !Arrays.equals(mk, Crypto.hkdfDerive(ck, null, infoMsg, 32)))
+					throw new RuntimeException("Fused chain step differs from hkdfDerive");
 
 				if (!b64u(nextCk).equals(expected.get("next_ck").asText()))
 					throw new RuntimeException("Next CK mismatch");
@@ -192,7 +575,6 @@ public class ConformanceRunner implements CommandLineRunner {
 	}
 
 	private void runTrace(JsonNode root) throws Exception {
-		System.out.println("Running Ratchet Trace: " + root.get("title").asText());
 		RatchetSession alice = new RatchetSession();
 		RatchetSession bob = new RatchetSession();
 
@@ -245,14 +627,13 @@ public class ConformanceRunner implements CommandLineRunner {
 				}
 			}
 		}
-		System.out.println("Trace OK");
 	}
 
 	private String b64u(byte[] data) {
-		return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+		return Base64Url.encodeToString(data);
 	}
 	private byte[] d64u(String s) {
-		return Base64.getUrlDecoder().decode(s);
+		return Base64Url.decode(s);
 	}
 	private byte[] hexToBytes(String s) {
 		byte[] b = new byte[s.length() / 2];
@@ -0,0 +1,159 @@
+package com.talosprotocol.talos.canonical;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Unpadded base64url (RFC 4648 section 5) between byte arrays, buffers and
+ * character sequences without intermediate copies.
+ * <p>
+ * Whole-array forms and {@link String} to new array run on the JDK codec,
+ * whose kernels are intrinsified; the others use a portable loop, which
+ * spares decoding into a caller's array a copy of the input. Decoding accepts trailing
+ * padding and rejects anything {@code Base64.getUrlDecoder()} rejects, with
+ * the same {@link IllegalArgumentException}.
+ */
+public final class Base64Url {
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final int[] DECODE = new int[256];
+
+	static {
+		Arrays.fill(DECODE, -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODE[ALPHABET[i]] = i;
+		}
+	}
+
+	private Base64Url() {
+	}
+
+	public static int encodedLength(int length) {
+		return length / 3 * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+	}
+
+	/**
+	 * Decoded size of {@code s}, ignoring trailing padding.
+	 *
+	 * @throws IllegalArgumentException if no valid encoding has this length
+	 */
+	public static int decodedLength(CharSequence s) {
+		return decodedLength(unpaddedLength(s));
+	}
+
+	public static String encodeToString(byte[] src) {
+		return ENCODER.encodeToString(src);
+	}
+
+	public static String encodeToString(byte[] src, int off, int len) {
+		ByteBuffer out = ENCODER.encode(ByteBuffer.wrap(src, off, len));
+		return new String(out.array(), 0, out.limit(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Encodes all of {@code src} into {@code dst} from index 0; {@code dst}
+	 * may be longer than needed.
+	 *
+	 * @return bytes written
+	 */
+	public static int encode(byte[] src, byte[] dst) {
+		return ENCODER.encode(src, dst);
+	}
+
+	/**
+	 * Encodes the remaining bytes of {@code src} as ASCII into the remaining
+	 * space of {@code dst}, advancing both.
+	 */
+	public static void encode(ByteBuffer src, ByteBuffer dst) {
+		if (dst.remaining() < encodedLength(src.remaining())) {
+			throw new IllegalArgumentException("Output buffer too small");
+		}
+		while (src.remaining() >= 3) {
+			int bits = (src.get() & 0xFF) << 16 | (src.get() & 0xFF) << 8 | (src.get() & 0xFF);
+			dst.put(ALPHABET[bits >>> 18]).put(ALPHABET[(bits >>> 12) & 0x3F]).put(ALPHABET[(bits >>> 6) & 0x3F])
+					.put(ALPHABET[bits & 0x3F]);
+		}
+		if (src.remaining() == 1) {
+			int bits = src.get() & 0xFF;
+			dst.put(ALPHABET[bits >>> 2]).put(ALPHABET[(bits << 4) & 0x3F]);
+		} else if (src.remaining() == 2) {
+			int bits = (src.get() & 0xFF) << 8 | (src.get() & 0xFF);
+			dst.put(ALPHABET[bits >>> 10]).put(ALPHABET[(bits >>> 4) & 0x3F]).put(ALPHABET[(bits << 2) & 0x3F]);
+		}
+	}
+
+	public static byte[] decode(CharSequence s) {
+		if (s instanceof String) {
+			return DECODER.decode((String) s);
+		}
+		byte[] out = new byte[decodedLength(s)];
+		decode(s, out);
+		return out;
+	}
+
+	/**
+	 * Decodes {@code s} into {@code dst} from index 0; {@code dst} may be longer
+	 * than needed.
+	 *
+	 * @return bytes written
+	 */
+	public static int decode(CharSequence s, byte[] dst) {
+		int len = unpaddedLength(s);
+		int outLen = decodedLength(len);
+		if (dst.length < outLen) {
+			throw new IllegalArgumentException("Output array too small");
+		}
+		int full = len - len % 4;
+		int d = 0;
+		int bad = 0;
+		for (int i = 0; i < full; i += 4) {
+			int bits = value(s.charAt(i)) << 18 | value(s.charAt(i + 1)) << 12 | value(s.charAt(i + 2)) << 6
+					| value(s.charAt(i + 3));
+			bad |= bits;
+			dst[d++] = (byte) (bits >>> 16);
+			dst[d++] = (byte) (bits >>> 8);
+			dst[d++] = (byte) bits;
+		}
+		if (len > full) {
+			int bits = value(s.charAt(full)) << 18 | value(s.charAt(full + 1)) << 12
+					| (len - full == 3 ? value(s.charAt(full + 2)) << 6 : 0);
+			bad |= bits;
+			dst[d++] = (byte) (bits >>> 16);
+			if (len - full == 3) {
+				dst[d++] = (byte) (bits >>> 8);
+			}
+		}
+		if (bad < 0) {
+			throw new IllegalArgumentException("Illegal base64url character");
+		}
+		return d;
+	}
+
+	private static int unpaddedLength(CharSequence s) {
+		int len = s.length();
+		if (len % 4 == 0) {
+			for (int pad = 0; pad < 2 && len > 0 && s.charAt(len - 1) == '='; pad++) {
+				len--;
+			}
+		}
+		return len;
+	}
+
+	private static int decodedLength(int encodedLength) {
+		if (encodedLength % 4 == 1) {
+			throw new IllegalArgumentException("Invalid base64url length " + encodedLength);
+		}
+		return encodedLength / 4 * 3 + (encodedLength % 4 == 0 ? 0 : encodedLength % 4 - 1);
+	}
+
+	// Negative for characters outside the alphabet, so callers can OR results
+	// together and check once.
+	private static int value(char c) {
+		return c < 256 ? DECODE[c] : -1;
+	}
+}
@@ -1,9 +1,27 @@
 package com.talosprotocol.talos.canonical;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.cfg.JsonNodeFeature;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.talosprotocol.talos.metrics.TalosMetrics;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Canonical JSON serialization.
@@ -12,6 +30,28 @@ public class CanonicalJson {
 	private static final ObjectMapper mapper = new ObjectMapper()
 			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
 
+	/**
+	 * Writes POJOs and records with every property in key order, ignoring
+	 * declared orderings, so the result matches sorting their generic map form.
+	 */
+	private static final ObjectMapper sortedMapper = JsonMapper.builder()
+			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+			.configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false)
+			.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+			.configure(MapperFeature.SORT_CREATOR_PROPERTIES_FIRST, false)
+			.configure(JsonNodeFeature.WRITE_PROPERTIES_SORTED, true)
+			.annotationIntrospector(new JacksonAnnotationIntrospector() {
+				@Override
+				public String[] findSerializationPropertyOrder(AnnotatedClass ac) {
+					return null;
+				}
+
+				@Override
+				public Integer findPropertyIndex(Annotated ann) {
+					return null;
+				}
+			}).build();
+
 	/**
 	 * Marshal object to canonical JSON (sorted keys, no whitespace).
 	 */
@@ -19,7 +59,119 @@ public class CanonicalJson {
 		// First convert to generic map structure to ensure we treat everything as data
 		// and ordering is based on keys, not field order (though field order doesn't
 		// matter for Map)
+		long start = TalosMetrics.start();
 		Object generic = mapper.convertValue(v, Object.class);
-		return mapper.writeValueAsBytes(generic);
+		byte[] out = mapper.writeValueAsBytes(generic);
+		TalosMetrics.stop(TalosMetrics.Operation.CANONICAL_JSON, start);
+		return out;
+	}
+
+	/**
+	 * Streams canonical JSON to {@code out} without first converting the input
+	 * to a generic object graph. Maps, {@link JsonNode}s, collections and arrays
+	 * are walked with their keys sorted level by level; POJOs and records are
+	 * written with alphabetically ordered properties. For JSON-native inputs the
+	 * bytes equal {@link #marshal(Object)}. {@code out} is flushed, not closed.
+	 */
+	public static void marshal(Object v, OutputStream out) throws IOException {
+		long start = TalosMetrics.start();
+		try (JsonGenerator g = sortedMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+			g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			write(g, v);
+		}
+		TalosMetrics.stop(TalosMetrics.Operation.CANONICAL_JSON, start);
+	}
+
+	/**
+	 * Streams canonical JSON into {@code out}, advancing its position.
+	 *
+	 * @throws java.nio.BufferOverflowException if the document does not fit
+	 */
+	public static void marshal(Object v, ByteBuffer out) throws IOException {
+		marshal(v, new ByteBufferOutputStream(out));
+	}
+
+	private static void write(JsonGenerator g, Object v) throws IOException {
+		if (v instanceof JsonNode) {
+			writeNode(g, (JsonNode) v);
+		} else if (v instanceof Map) {
+			writeMap(g, (Map<?, ?>) v);
+		} else if (v instanceof Iterable) {
+			g.writeStartArray();
+			for (Object item : (Iterable<?>) v) {
+				write(g, item);
+			}
+			g.writeEndArray();
+		} else if (v instanceof Object[]) {
+			g.writeStartArray();
+			for (Object item : (Object[]) v) {
+				write(g, item);
+			}
+			g.writeEndArray();
+		} else {
+			// Scalars, primitive arrays, POJOs and records.
+			sortedMapper.writeValue(g, v);
+		}
+	}
+
+	private static void writeMap(JsonGenerator g, Map<?, ?> map) throws IOException {
+		Object[][] entries = new Object[map.size()][];
+		int i = 0;
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			if (e.getKey() == null) {
+				throw JsonMappingException.from(g, "Null key for a Map not allowed in JSON");
+			}
+			entries[i++] = new Object[]{e.getKey().toString(), e.getValue()};
+		}
+		Arrays.sort(entries, (a, b) -> ((String) a[0]).compareTo((String) b[0]));
+
+		g.writeStartObject();
+		for (Object[] e : entries) {
+			g.writeFieldName((String) e[0]);
+			write(g, e[1]);
+		}
+		g.writeEndObject();
+	}
+
+	private static void writeNode(JsonGenerator g, JsonNode node) throws IOException {
+		if (node.isObject()) {
+			List<String> names = new ArrayList<>(node.size());
+			for (Iterator<String> it = node.fieldNames(); it.hasNext();) {
+				names.add(it.next());
+			}
+			names.sort(null);
+			g.writeStartObject();
+			for (String name : names) {
+				g.writeFieldName(name);
+				writeNode(g, node.get(name));
+			}
+			g.writeEndObject();
+		} else if (node.isArray()) {
+			g.writeStartArray();
+			for (JsonNode item : node) {
+				writeNode(g, item);
+			}
+			g.writeEndArray();
+		} else {
+			sortedMapper.writeValue(g, node);
+		}
+	}
+
+	private static final class ByteBufferOutputStream extends OutputStream {
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
 	}
 }
@@ -0,0 +1,302 @@
+package com.talosprotocol.talos.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Reusable ChaCha20-Poly1305 state that seals and opens into caller-supplied
+ * buffers.
+ * <p>
+ * The cipher and its key/nonce parameters are allocated once and rewritten on
+ * every call. After each call, failed or not, the staged key is wiped and the
+ * cipher is re-keyed with zeros, so the key does not stay in the context
+ * between calls. Instances are not thread-safe; keep one per thread (see
+ * {@link Crypto#encryptWithNonce(byte[], byte[], ByteBuffer, byte[], ByteBuffer)})
+ * or one per session. Callers must never repeat a nonce under one key.
+ */
+public final class AeadContext {
+	public static final int KEY_SIZE = 32;
+	public static final int NONCE_SIZE = 12;
+	public static final int TAG_SIZE = 16;
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private final ChaCha20Poly1305 cipher = new ChaCha20Poly1305();
+	private final KeyParameter keyParam = new KeyParameter(new byte[KEY_SIZE]);
+	private final ParametersWithIV params = new ParametersWithIV(keyParam, new byte[NONCE_SIZE]);
+	private final ParametersWithIV zeroParams = new ParametersWithIV(new KeyParameter(new byte[KEY_SIZE]),
+			new byte[NONCE_SIZE]);
+
+	// Staging buffers for direct ByteBuffers, allocated on first use.
+	private byte[] chunkIn;
+	private byte[] chunkOut;
+
+	/**
+	 * Encrypts {@code in[inOff..inOff+inLen)} into {@code out} at {@code outOff}.
+	 *
+	 * @return bytes written, always {@code inLen + TAG_SIZE}
+	 */
+	public int encrypt(byte[] key, byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff, int inLen,
+			byte[] out, int outOff) {
+		setKey(key);
+		try {
+			return seal(nonce, ad, adOff, adLen, in, inOff, inLen, out, outOff);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	public int encrypt(SecretBuffer key, byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff,
+			int inLen, byte[] out, int outOff) {
+		setKey(key);
+		try {
+			return seal(nonce, ad, adOff, adLen, in, inOff, inLen, out, outOff);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	private int seal(byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff, int inLen, byte[] out,
+			int outOff) {
+		checkOutput(out.length - outOff, inLen + TAG_SIZE);
+		init(true, nonce, ad, adOff, adLen);
+		try {
+			int len = cipher.processBytes(in, inOff, inLen, out, outOff);
+			return len + cipher.doFinal(out, outOff + len);
+		} catch (Exception e) {
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Encryption failed", e);
+		} finally {
+			clearKey();
+		}
+	}
+
+	/**
+	 * Decrypts {@code in[inOff..inOff+inLen)} into {@code out} at {@code outOff}.
+	 * On authentication failure the output region is zeroed before throwing.
+	 *
+	 * @return bytes written, always {@code inLen - TAG_SIZE}
+	 */
+	public int decrypt(byte[] key, byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff, int inLen,
+			byte[] out, int outOff) {
+		setKey(key);
+		try {
+			return open(nonce, ad, adOff, adLen, in, inOff, inLen, out, outOff);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	public int decrypt(SecretBuffer key, byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff,
+			int inLen, byte[] out, int outOff) {
+		setKey(key);
+		try {
+			return open(nonce, ad, adOff, adLen, in, inOff, inLen, out, outOff);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	private int open(byte[] nonce, byte[] ad, int adOff, int adLen, byte[] in, int inOff, int inLen, byte[] out,
+			int outOff) {
+		if (inLen < TAG_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Decryption failed: data too short");
+		}
+		checkOutput(out.length - outOff, inLen - TAG_SIZE);
+		init(false, nonce, ad, adOff, adLen);
+		try {
+			int len = cipher.processBytes(in, inOff, inLen, out, outOff);
+			return len + cipher.doFinal(out, outOff + len);
+		} catch (Exception e) {
+			Arrays.fill(out, outOff, outOff + inLen - TAG_SIZE, (byte) 0);
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Decryption failed: " + e.getMessage(), e);
+		} finally {
+			clearKey();
+		}
+	}
+
+	/**
+	 * Encrypts the remaining bytes of {@code in} into {@code out}. Both buffers
+	 * may be heap or direct; their positions are advanced.
+	 *
+	 * @return bytes written to {@code out}
+	 */
+	public int encrypt(byte[] key, byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		setKey(key);
+		try {
+			return seal(nonce, ad, in, out);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	public int encrypt(SecretBuffer key, byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		setKey(key);
+		try {
+			return seal(nonce, ad, in, out);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	private int seal(byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		int inLen = in.remaining();
+		checkOutput(out.remaining(), inLen + TAG_SIZE);
+		if (in.hasArray() && out.hasArray()) {
+			int n = seal(nonce, ad, 0, adLength(ad), in.array(), in.arrayOffset() + in.position(), inLen, out.array(),
+					out.arrayOffset() + out.position());
+			in.position(in.limit());
+			out.position(out.position() + n);
+			return n;
+		}
+		init(true, nonce, ad, 0, adLength(ad));
+		try {
+			int written = processChunks(in, out);
+			int len = cipher.doFinal(chunkOut, 0);
+			out.put(chunkOut, 0, len);
+			return written + len;
+		} catch (Exception e) {
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Encryption failed", e);
+		} finally {
+			clearKey();
+		}
+	}
+
+	/**
+	 * Decrypts the remaining bytes of {@code in} into {@code out}. Both buffers
+	 * may be heap or direct; their positions are advanced. On authentication
+	 * failure the bytes written to {@code out} are zeroed and its position is
+	 * restored.
+	 *
+	 * @return bytes written to {@code out}
+	 */
+	public int decrypt(byte[] key, byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		setKey(key);
+		try {
+			return open(nonce, ad, in, out);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	public int decrypt(SecretBuffer key, byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		setKey(key);
+		try {
+			return open(nonce, ad, in, out);
+		} finally {
+			wipeKey();
+		}
+	}
+
+	private int open(byte[] nonce, byte[] ad, ByteBuffer in, ByteBuffer out) {
+		int inLen = in.remaining();
+		if (inLen < TAG_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Decryption failed: data too short");
+		}
+		checkOutput(out.remaining(), inLen - TAG_SIZE);
+		if (in.hasArray() && out.hasArray()) {
+			int n = open(nonce, ad, 0, adLength(ad), in.array(), in.arrayOffset() + in.position(), inLen, out.array(),
+					out.arrayOffset() + out.position());
+			in.position(in.limit());
+			out.position(out.position() + n);
+			return n;
+		}
+		int start = out.position();
+		init(false, nonce, ad, 0, adLength(ad));
+		try {
+			int written = processChunks(in, out);
+			int len = cipher.doFinal(chunkOut, 0);
+			out.put(chunkOut, 0, len);
+			return written + len;
+		} catch (Exception e) {
+			for (int i = start; i < out.position(); i++) {
+				out.put(i, (byte) 0);
+			}
+			out.position(start);
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Decryption failed: " + e.getMessage(), e);
+		} finally {
+			clearKey();
+		}
+	}
+
+	private void setKey(byte[] key) {
+		if (key.length != KEY_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Invalid AEAD key or nonce length");
+		}
+		System.arraycopy(key, 0, keyParam.getKey(), 0, KEY_SIZE);
+	}
+
+	private void setKey(SecretBuffer key) {
+		if (key.length() != KEY_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Invalid AEAD key or nonce length");
+		}
+		key.copyTo(keyParam.getKey(), 0);
+	}
+
+	// Expects the key staged by setKey.
+	private void init(boolean forEncryption, byte[] nonce, byte[] ad, int adOff, int adLen) {
+		if (nonce.length != NONCE_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Invalid AEAD key or nonce length");
+		}
+		try {
+			System.arraycopy(nonce, 0, params.getIV(), 0, NONCE_SIZE);
+			cipher.init(forEncryption, params);
+		} catch (IllegalArgumentException e) {
+			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "AEAD init failed: " + e.getMessage(), e);
+		}
+		if (adLen > 0) {
+			try {
+				cipher.processAADBytes(ad, adOff, adLen);
+			} catch (RuntimeException e) {
+				clearKey();
+				throw e;
+			}
+		}
+	}
+
+	private void wipeKey() {
+		Arrays.fill(keyParam.getKey(), (byte) 0);
+	}
+
+	/**
+	 * Re-keys the cipher with zeros, overwriting its copy of the last key and
+	 * the keystream and MAC state derived from it.
+	 */
+	private void clearKey() {
+		cipher.init(false, zeroParams);
+	}
+
+	private int processChunks(ByteBuffer in, ByteBuffer out) {
+		if (chunkIn == null) {
+			chunkIn = new byte[CHUNK_SIZE];
+			// Room for the 64-byte block ChaCha20Poly1305 holds back plus the tag.
+			chunkOut = new byte[CHUNK_SIZE + 64 + TAG_SIZE];
+		}
+		int written = 0;
+		while (in.hasRemaining()) {
+			int n = Math.min(in.remaining(), CHUNK_SIZE);
+			in.get(chunkIn, 0, n);
+			int len = cipher.processBytes(chunkIn, 0, n, chunkOut, 0);
+			out.put(chunkOut, 0, len);
+			written += len;
+		}
+		return written;
+	}
+
+	private static int adLength(byte[] ad) {
+		return ad == null ? 0 : ad.length;
+	}
+
+	private static void checkOutput(int available, int required) {
+		if (available < required) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT,
+					"Output buffer too small: need " + required + " bytes, have " + available);
+		}
+	}
+}
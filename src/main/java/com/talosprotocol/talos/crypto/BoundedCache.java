@@ -0,0 +1,131 @@
+package com.talosprotocol.talos.crypto;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded concurrent cache that evicts the least recently used entries
+ * first, approximated with second-chance (CLOCK) eviction.
+ * <p>
+ * Reads are a single lock-free {@link ConcurrentHashMap#get} that marks the
+ * entry referenced. Inserts append to an eviction queue and trim it from the
+ * head once the bound is passed; a referenced entry loses its mark and goes
+ * back to the tail instead of being evicted. Entries inserted and never read
+ * again, such as a flood of one-off keys, therefore go before ones in use.
+ * The size may briefly overshoot under concurrent inserts.
+ */
+public final class BoundedCache<K, V> {
+	private final int maxSize;
+	private final ConcurrentHashMap<K, Node<V>> map;
+	private final ConcurrentLinkedQueue<K> order = new ConcurrentLinkedQueue<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private static final class Node<V> {
+		final V value;
+		volatile boolean referenced;
+
+		Node(V value) {
+			this.value = value;
+		}
+	}
+
+	public BoundedCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive");
+		}
+		this.maxSize = maxSize;
+		this.map = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+	}
+
+	/**
+	 * Returns the cached value, or null, and counts a hit or miss.
+	 */
+	public V getIfPresent(K key) {
+		Node<V> n = map.get(key);
+		if (n == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		if (!n.referenced) {
+			n.referenced = true;
+		}
+		return n.value;
+	}
+
+	/**
+	 * Caches {@code value} unless another thread already did.
+	 *
+	 * @return the value now cached under {@code key}
+	 */
+	public V put(K key, V value) {
+		Node<V> existing = map.putIfAbsent(key, new Node<>(value));
+		if (existing != null) {
+			return existing.value;
+		}
+		order.add(key);
+		// Past this many second chances the head is evicted regardless, so
+		// concurrent readers cannot keep an insert sweeping.
+		int chances = 2 * maxSize;
+		while (map.size() > maxSize) {
+			K oldest = order.poll();
+			if (oldest == null) {
+				break;
+			}
+			Node<V> n = map.get(oldest);
+			if (n == null) {
+				continue;
+			}
+			if (n.referenced && chances-- > 0) {
+				n.referenced = false;
+				order.add(oldest);
+			} else if (map.remove(oldest, n)) {
+				evictions.increment();
+			}
+		}
+		return value;
+	}
+
+	public void clear() {
+		map.clear();
+		order.clear();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Stats stats() {
+		return new Stats(hits.sum(), misses.sum(), evictions.sum(), map.size());
+	}
+
+	/**
+	 * Point-in-time counters.
+	 */
+	public static final class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+
+		Stats(long hits, long misses, long evictions, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		public double hitRate() {
+			long total = hits + misses;
+			return total == 0 ? 0.0 : (double) hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits=%d misses=%d evictions=%d size=%d", hits, misses, evictions, size);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.talosprotocol.talos.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
@@ -17,12 +18,39 @@ import org.bouncycastle.crypto.signers.Ed25519Signer;
 
 import com.talosprotocol.talos.errors.TalosError;
 import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.metrics.TalosMetrics;
+import com.talosprotocol.talos.metrics.TalosMetrics.Operation;
 
 /**
  * Cryptographic operations using Bouncy Castle.
  */
 public class Crypto {
 	private static final SecureRandom random = new SecureRandom();
+	private static final ThreadLocal<AeadContext> aead = ThreadLocal.withInitial(AeadContext::new);
+	private static final ThreadLocal<HkdfContext> hkdf = ThreadLocal.withInitial(HkdfContext::new);
+	private static volatile PublicKeyCache publicKeyCache;
+
+	/**
+	 * Installs a cache of decoded peer public keys used by {@link #x25519Dh} and
+	 * {@link #decodeEd25519PublicKey}; null (the default) disables caching.
+	 */
+	public static void setPublicKeyCache(PublicKeyCache cache) {
+		publicKeyCache = cache;
+	}
+
+	public static PublicKeyCache getPublicKeyCache() {
+		return publicKeyCache;
+	}
+
+	public static Ed25519PublicKeyParameters decodeEd25519PublicKey(byte[] publicKey) {
+		PublicKeyCache cache = publicKeyCache;
+		return cache != null ? cache.ed25519(publicKey) : new Ed25519PublicKeyParameters(publicKey, 0);
+	}
+
+	public static X25519PublicKeyParameters decodeX25519PublicKey(byte[] publicKey) {
+		PublicKeyCache cache = publicKeyCache;
+		return cache != null ? cache.x25519(publicKey) : new X25519PublicKeyParameters(publicKey, 0);
+	}
 
 	public static Ed25519PrivateKeyParameters generateKey() {
 		return new Ed25519PrivateKeyParameters(random);
@@ -36,19 +64,25 @@ public class Crypto {
 	}
 
 	public static byte[] sign(Ed25519PrivateKeyParameters privateKey, byte[] message) {
+		long start = TalosMetrics.start();
 		Ed25519Signer signer = new Ed25519Signer();
 		signer.init(true, privateKey);
 		signer.update(message, 0, message.length);
-		return signer.generateSignature();
+		byte[] signature = signer.generateSignature();
+		TalosMetrics.stop(Operation.ED25519_SIGN, start);
+		return signature;
 	}
 
 	public static boolean verify(Ed25519PublicKeyParameters publicKey, byte[] message, byte[] signature) {
 		if (signature.length != 64)
 			return false;
+		long start = TalosMetrics.start();
 		Ed25519Signer verifier = new Ed25519Signer();
 		verifier.init(false, publicKey);
 		verifier.update(message, 0, message.length);
-		return verifier.verifySignature(signature);
+		boolean valid = verifier.verifySignature(signature);
+		TalosMetrics.stop(Operation.ED25519_VERIFY, start);
+		return valid;
 	}
 
 	// --- X25519 ---
@@ -69,10 +103,12 @@ public class Crypto {
 	}
 
 	public static byte[] x25519Dh(byte[] privateKey, byte[] publicKey) {
+		long start = TalosMetrics.start();
 		X25519PrivateKeyParameters priv = new X25519PrivateKeyParameters(privateKey, 0);
-		X25519PublicKeyParameters pub = new X25519PublicKeyParameters(publicKey, 0);
+		X25519PublicKeyParameters pub = decodeX25519PublicKey(publicKey);
 		byte[] secret = new byte[32];
 		priv.generateSecret(pub, secret, 0);
+		TalosMetrics.stop(Operation.X25519, start);
 		return secret;
 	}
 
@@ -83,13 +119,39 @@ public class Crypto {
 
 	// --- HKDF ---
 	public static byte[] hkdfDerive(byte[] ikm, byte[] salt, byte[] info, int length) {
+		long start = TalosMetrics.start();
 		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
 		hkdf.init(new HKDFParameters(ikm, salt, info));
 		byte[] okm = new byte[length];
 		hkdf.generateBytes(okm, 0, length);
+		TalosMetrics.stop(Operation.HKDF, start);
 		return okm;
 	}
 
+	/**
+	 * Symmetric-ratchet step: fills {@code messageKey} and {@code nextChainKey}
+	 * with {@code hkdfDerive(chainKey, null, info, length)} for their respective
+	 * info strings, extracting only once and reusing this thread's
+	 * {@link HkdfContext}. {@code nextChainKey} may be {@code chainKey} itself.
+	 */
+	public static void hkdfChainStep(byte[] chainKey, byte[] infoMessage, byte[] messageKey, byte[] infoChain,
+			byte[] nextChainKey) {
+		long start = TalosMetrics.start();
+		hkdf.get().chainStep(chainKey, infoMessage, messageKey, infoChain, nextChainKey);
+		TalosMetrics.stop(Operation.HKDF, start);
+	}
+
+	/**
+	 * {@link #hkdfChainStep(byte[], byte[], byte[], byte[], byte[])} with the
+	 * message key written to a pooled {@link SecretBuffer}.
+	 */
+	public static void hkdfChainStep(byte[] chainKey, byte[] infoMessage, SecretBuffer messageKey, byte[] infoChain,
+			byte[] nextChainKey) {
+		long start = TalosMetrics.start();
+		hkdf.get().chainStep(chainKey, infoMessage, messageKey, infoChain, nextChainKey);
+		TalosMetrics.stop(Operation.HKDF, start);
+	}
+
 	// --- HMAC-SHA256 ---
 	public static byte[] hmacSha256(byte[] key, byte[] data) {
 		HMac hmac = new HMac(new SHA256Digest());
@@ -102,6 +164,7 @@ public class Crypto {
 
 	// --- AEAD (ChaCha20-Poly1305) ---
 	public static byte[] encryptWithNonce(byte[] key, byte[] nonce, byte[] plaintext, byte[] ad) {
+		long start = TalosMetrics.start();
 		ChaCha20Poly1305 cipher = new ChaCha20Poly1305();
 		cipher.init(true, new ParametersWithIV(new KeyParameter(key), nonce));
 		if (ad != null && ad.length > 0) {
@@ -115,10 +178,12 @@ public class Crypto {
 		} catch (Exception e) {
 			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Encryption failed", e);
 		}
+		TalosMetrics.stop(Operation.AEAD_SEAL, start);
 		return output;
 	}
 
 	public static byte[] decryptWithNonce(byte[] key, byte[] nonce, byte[] ciphertext, byte[] ad) {
+		long start = TalosMetrics.start();
 		ChaCha20Poly1305 cipher = new ChaCha20Poly1305();
 		cipher.init(false, new ParametersWithIV(new KeyParameter(key), nonce));
 		if (ad != null && ad.length > 0) {
@@ -132,6 +197,93 @@ public class Crypto {
 		} catch (Exception e) {
 			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "Decryption failed: " + e.getMessage(), e);
 		}
+		TalosMetrics.stop(Operation.AEAD_OPEN, start);
 		return output;
 	}
+
+	/**
+	 * Encrypts into {@code out} at {@code outOff} using this thread's reusable
+	 * {@link AeadContext}.
+	 *
+	 * @return bytes written ({@code len + 16})
+	 */
+	public static int encryptWithNonce(byte[] key, byte[] nonce, byte[] plaintext, int off, int len, byte[] ad,
+			byte[] out, int outOff) {
+		long start = TalosMetrics.start();
+		int written = aead.get().encrypt(key, nonce, ad, 0, ad == null ? 0 : ad.length, plaintext, off, len, out,
+				outOff);
+		TalosMetrics.stop(Operation.AEAD_SEAL, start);
+		return written;
+	}
+
+	/**
+	 * Decrypts into {@code out} at {@code outOff} using this thread's reusable
+	 * {@link AeadContext}.
+	 *
+	 * @return bytes written ({@code len - 16})
+	 */
+	public static int decryptWithNonce(byte[] key, byte[] nonce, byte[] ciphertext, int off, int len, byte[] ad,
+			byte[] out, int outOff) {
+		long start = TalosMetrics.start();
+		int written = aead.get().decrypt(key, nonce, ad, 0, ad == null ? 0 : ad.length, ciphertext, off, len, out,
+				outOff);
+		TalosMetrics.stop(Operation.AEAD_OPEN, start);
+		return written;
+	}
+
+	/**
+	 * Encrypts the remaining bytes of {@code plaintext} into {@code out} (heap or
+	 * direct) using this thread's reusable {@link AeadContext}.
+	 */
+	public static int encryptWithNonce(byte[] key, byte[] nonce, ByteBuffer plaintext, byte[] ad, ByteBuffer out) {
+		long start = TalosMetrics.start();
+		int written = aead.get().encrypt(key, nonce, ad, plaintext, out);
+		TalosMetrics.stop(Operation.AEAD_SEAL, start);
+		return written;
+	}
+
+	/**
+	 * Decrypts the remaining bytes of {@code ciphertext} into {@code out} (heap
+	 * or direct) using this thread's reusable {@link AeadContext}.
+	 */
+	public static int decryptWithNonce(byte[] key, byte[] nonce, ByteBuffer ciphertext, byte[] ad, ByteBuffer out) {
+		long start = TalosMetrics.start();
+		int written = aead.get().decrypt(key, nonce, ad, ciphertext, out);
+		TalosMetrics.stop(Operation.AEAD_OPEN, start);
+		return written;
+	}
+
+	public static int encryptWithNonce(SecretBuffer key, byte[] nonce, byte[] plaintext, int off, int len, byte[] ad,
+			byte[] out, int outOff) {
+		long start = TalosMetrics.start();
+		int written = aead.get().encrypt(key, nonce, ad, 0, ad == null ? 0 : ad.length, plaintext, off, len, out,
+				outOff);
+		TalosMetrics.stop(Operation.AEAD_SEAL, start);
+		return written;
+	}
+
+	public static int decryptWithNonce(SecretBuffer key, byte[] nonce, byte[] ciphertext, int off, int len, byte[] ad,
+			byte[] out, int outOff) {
+		long start = TalosMetrics.start();
+		int written = aead.get().decrypt(key, nonce, ad, 0, ad == null ? 0 : ad.length, ciphertext, off, len, out,
+				outOff);
+		TalosMetrics.stop(Operation.AEAD_OPEN, start);
+		return written;
+	}
+
+	public static int encryptWithNonce(SecretBuffer key, byte[] nonce, ByteBuffer plaintext, byte[] ad,
+			ByteBuffer out) {
+		long start = TalosMetrics.start();
+		int written = aead.get().encrypt(key, nonce, ad, plaintext, out);
+		TalosMetrics.stop(Operation.AEAD_SEAL, start);
+		return written;
+	}
+
+	public static int decryptWithNonce(SecretBuffer key, byte[] nonce, ByteBuffer ciphertext, byte[] ad,
+			ByteBuffer out) {
+		long start = TalosMetrics.start();
+		int written = aead.get().decrypt(key, nonce, ad, ciphertext, out);
+		TalosMetrics.stop(Operation.AEAD_OPEN, start);
+		return written;
+	}
 }
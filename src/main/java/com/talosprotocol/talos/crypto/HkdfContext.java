@@ -0,0 +1,105 @@
+package com.talosprotocol.talos.crypto;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Reusable HKDF-SHA256 (RFC 5869) state writing into caller-supplied buffers.
+ * <p>
+ * {@link #chainStep} runs Extract once and then one Expand per output, which is
+ * what a symmetric-ratchet step needs; two {@link Crypto#hkdfDerive} calls on
+ * the same input would extract twice. Instances are not thread-safe; keep one
+ * per thread (see {@link Crypto#hkdfChainStep}).
+ */
+public final class HkdfContext {
+	public static final int HASH_SIZE = 32;
+	private static final int MAX_OUTPUT = 255 * HASH_SIZE;
+
+	// HMac.init snapshots digest state, so the unsalted extract MAC is keyed
+	// once here; doFinal returns it to that keyed state.
+	private final HMac extractMac = new HMac(new SHA256Digest());
+	private final HMac expandMac = new HMac(new SHA256Digest());
+	private final KeyParameter keyParam = new KeyParameter(new byte[HASH_SIZE]);
+	private final byte[] prk = new byte[HASH_SIZE];
+	private final byte[] block = new byte[HASH_SIZE];
+
+	public HkdfContext() {
+		// RFC 5869: an absent salt is HashLen zero bytes.
+		extractMac.init(new KeyParameter(new byte[HASH_SIZE]));
+	}
+
+	/**
+	 * Derives two keys from {@code ikm} with no salt: {@code out1} from
+	 * {@code info1} and {@code out2} from {@code info2}, each filled completely.
+	 * The output equals {@code hkdfDerive(ikm, null, infoN, outN.length)}.
+	 * {@code ikm} is consumed before anything is written, so an output may
+	 * alias it.
+	 */
+	public void chainStep(byte[] ikm, byte[] info1, byte[] out1, byte[] info2, byte[] out2) {
+		if (out1.length > MAX_OUTPUT || out2.length > MAX_OUTPUT) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "HKDF output too long");
+		}
+		extract(ikm);
+		expand(info1, out1);
+		expand(info2, out2);
+	}
+
+	/**
+	 * Same as {@link #chainStep(byte[], byte[], byte[], byte[], byte[])} with
+	 * the first output written to a {@link SecretBuffer}.
+	 */
+	public void chainStep(byte[] ikm, byte[] info1, SecretBuffer out1, byte[] info2, byte[] out2) {
+		if (out1.length() > MAX_OUTPUT || out2.length > MAX_OUTPUT) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "HKDF output too long");
+		}
+		extract(ikm);
+		int written = 0;
+		for (int i = 1; written < out1.length(); i++) {
+			expandBlock(info1, i);
+			int n = Math.min(HASH_SIZE, out1.length() - written);
+			out1.write(written, block, 0, n);
+			written += n;
+		}
+		Arrays.fill(block, (byte) 0);
+		expand(info2, out2);
+	}
+
+	private void extract(byte[] ikm) {
+		extractMac.update(ikm, 0, ikm.length);
+		extractMac.doFinal(prk, 0);
+
+		System.arraycopy(prk, 0, keyParam.getKey(), 0, HASH_SIZE);
+		expandMac.init(keyParam);
+		Arrays.fill(keyParam.getKey(), (byte) 0);
+		Arrays.fill(prk, (byte) 0);
+	}
+
+	private void expand(byte[] info, byte[] out) {
+		int written = 0;
+		for (int i = 1; written < out.length; i++) {
+			expandBlock(info, i);
+			int n = Math.min(HASH_SIZE, out.length - written);
+			System.arraycopy(block, 0, out, written, n);
+			written += n;
+		}
+		Arrays.fill(block, (byte) 0);
+	}
+
+	// T(i) = HMAC(PRK, T(i-1) | info | i) into block; doFinal leaves the MAC keyed.
+	private void expandBlock(byte[] info, int i) {
+		if (i > 1) {
+			expandMac.update(block, 0, HASH_SIZE);
+		}
+		if (info != null) {
+			expandMac.update(info, 0, info.length);
+		}
+		expandMac.update((byte) i);
+		expandMac.doFinal(block, 0);
+	}
+}
@@ -0,0 +1,82 @@
+package com.talosprotocol.talos.crypto;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
+
+/**
+ * Decoded Ed25519 and X25519 public keys keyed by their raw encoding, for
+ * traffic dominated by a small set of peers. Ed25519 decoding includes point
+ * decompression, so this mostly pays off for signature verification. Keys
+ * from untrusted frames are only admitted once they decode, and peers in use
+ * outlive a flood of one-off keys (see {@link BoundedCache}).
+ * <p>
+ * Install with {@link Crypto#setPublicKeyCache(PublicKeyCache)}.
+ */
+public final class PublicKeyCache {
+	private final BoundedCache<RawKey, Ed25519PublicKeyParameters> ed25519;
+	private final BoundedCache<RawKey, X25519PublicKeyParameters> x25519;
+
+	/**
+	 * @param maxEntries
+	 *            bound applied to each key type separately
+	 */
+	public PublicKeyCache(int maxEntries) {
+		this.ed25519 = new BoundedCache<>(maxEntries);
+		this.x25519 = new BoundedCache<>(maxEntries);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if {@code raw} is not a valid Ed25519 point (not cached)
+	 */
+	public Ed25519PublicKeyParameters ed25519(byte[] raw) {
+		Ed25519PublicKeyParameters pk = ed25519.getIfPresent(new RawKey(raw));
+		if (pk == null) {
+			pk = ed25519.put(new RawKey(raw.clone()), new Ed25519PublicKeyParameters(raw, 0));
+		}
+		return pk;
+	}
+
+	public X25519PublicKeyParameters x25519(byte[] raw) {
+		X25519PublicKeyParameters pk = x25519.getIfPresent(new RawKey(raw));
+		if (pk == null) {
+			pk = x25519.put(new RawKey(raw.clone()), new X25519PublicKeyParameters(raw, 0));
+		}
+		return pk;
+	}
+
+	public BoundedCache.Stats ed25519Stats() {
+		return ed25519.stats();
+	}
+
+	public BoundedCache.Stats x25519Stats() {
+		return x25519.stats();
+	}
+
+	public void clear() {
+		ed25519.clear();
+		x25519.clear();
+	}
+
+	private static final class RawKey {
+		final byte[] bytes;
+		final int hash;
+
+		RawKey(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof RawKey && hash == ((RawKey) o).hash && Arrays.equals(bytes, ((RawKey) o).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
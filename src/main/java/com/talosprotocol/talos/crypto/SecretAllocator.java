@@ -0,0 +1,147 @@
+package com.talosprotocol.talos.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Slab allocator for fixed-size {@link SecretBuffer}s.
+ * <p>
+ * Memory is reserved a slab at a time, either as one heap array or one direct
+ * buffer outside the Java heap, and carved into equal slots. Released slots
+ * are zeroed and reused, so key bytes never linger in garbage waiting for
+ * collection. Each allocation gets a new {@link SecretBuffer} handle over its
+ * slot, so a handle kept after {@link SecretBuffer#close} cannot reach the
+ * slot's next owner. Slabs are kept for the allocator's lifetime; the
+ * footprint follows peak usage. Thread-safe.
+ */
+public final class SecretAllocator {
+	/**
+	 * Shared heap allocator for 32-byte keys.
+	 */
+	public static final SecretAllocator KEYS = heap(32, 256);
+
+	private final int secretLength;
+	private final int slotsPerSlab;
+	private final boolean direct;
+	private final ArrayDeque<Slot> free = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private int slabs;
+	private int inUse;
+
+	/**
+	 * A slot of a slab; exactly one of {@code heap} and {@code direct} is set.
+	 */
+	static final class Slot {
+		final byte[] heap;
+		final ByteBuffer direct;
+		final int offset;
+
+		Slot(byte[] heap, ByteBuffer direct, int offset) {
+			this.heap = heap;
+			this.direct = direct;
+			this.offset = offset;
+		}
+	}
+
+	private SecretAllocator(int secretLength, int slotsPerSlab, boolean direct) {
+		if (secretLength < 1 || slotsPerSlab < 1 || (long) secretLength * slotsPerSlab > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid secret allocator geometry");
+		}
+		this.secretLength = secretLength;
+		this.slotsPerSlab = slotsPerSlab;
+		this.direct = direct;
+	}
+
+	public static SecretAllocator heap(int secretLength, int slotsPerSlab) {
+		return new SecretAllocator(secretLength, slotsPerSlab, false);
+	}
+
+	/**
+	 * Slabs live in direct buffers, outside the Java heap, so the collector
+	 * never copies key bytes around.
+	 */
+	public static SecretAllocator direct(int secretLength, int slotsPerSlab) {
+		return new SecretAllocator(secretLength, slotsPerSlab, true);
+	}
+
+	/**
+	 * A zeroed buffer of {@link #secretLength()} bytes.
+	 */
+	public SecretBuffer allocate() {
+		lock.lock();
+		try {
+			if (free.isEmpty()) {
+				addSlab();
+			}
+			Slot slot = free.pop();
+			inUse++;
+			return new SecretBuffer(this, slot, secretLength);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A buffer holding a copy of {@code secret}.
+	 */
+	public SecretBuffer copyOf(byte[] secret) {
+		SecretBuffer b = allocate();
+		try {
+			b.copyFrom(secret);
+		} catch (RuntimeException e) {
+			b.close();
+			throw e;
+		}
+		return b;
+	}
+
+	public int secretLength() {
+		return secretLength;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int slabCount() {
+		lock.lock();
+		try {
+			return slabs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Buffers handed out and not yet closed.
+	 */
+	public int inUse() {
+		lock.lock();
+		try {
+			return inUse;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void release(Slot slot) {
+		lock.lock();
+		try {
+			free.push(slot);
+			inUse--;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void addSlab() {
+		int size = secretLength * slotsPerSlab;
+		byte[] heapSlab = direct ? null : new byte[size];
+		ByteBuffer directSlab = direct ? ByteBuffer.allocateDirect(size) : null;
+		for (int i = slotsPerSlab - 1; i >= 0; i--) {
+			free.push(new Slot(heapSlab, directSlab, i * secretLength));
+		}
+		slabs++;
+	}
+}
@@ -0,0 +1,148 @@
+package com.talosprotocol.talos.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Fixed-size key material held in a slot of a {@link SecretAllocator} slab,
+ * on the heap or off it. {@link #close()} zeroes the slot and hands it back
+ * for reuse; afterwards this handle refuses every access, even once the slot
+ * belongs to a new buffer.
+ * <p>
+ * Not thread-safe; one owner at a time. Ownership may move between threads.
+ */
+public final class SecretBuffer implements AutoCloseable {
+	private final SecretAllocator allocator;
+	private final SecretAllocator.Slot slot;
+	private final byte[] heap;
+	private final ByteBuffer direct;
+	private final int offset;
+	private final int length;
+	private boolean released;
+
+	SecretBuffer(SecretAllocator allocator, SecretAllocator.Slot slot, int length) {
+		this.allocator = allocator;
+		this.slot = slot;
+		this.heap = slot.heap;
+		this.direct = slot.direct;
+		this.offset = slot.offset;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isDirect() {
+		return direct != null;
+	}
+
+	/**
+	 * Copies {@code src[srcOff, srcOff+length)} into this buffer.
+	 */
+	public void copyFrom(byte[] src, int srcOff) {
+		checkLive();
+		if (heap != null) {
+			System.arraycopy(src, srcOff, heap, offset, length);
+		} else {
+			direct.put(offset, src, srcOff, length);
+		}
+	}
+
+	public void copyFrom(byte[] src) {
+		checkLength(src.length);
+		copyFrom(src, 0);
+	}
+
+	/**
+	 * Copies this buffer into {@code dst} at {@code dstOff}.
+	 */
+	public void copyTo(byte[] dst, int dstOff) {
+		checkLive();
+		if (heap != null) {
+			System.arraycopy(heap, offset, dst, dstOff, length);
+		} else {
+			direct.get(offset, dst, dstOff, length);
+		}
+	}
+
+	/**
+	 * A new array holding a copy of the contents; the caller is responsible for
+	 * wiping it.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[length];
+		copyTo(copy, 0);
+		return copy;
+	}
+
+	public boolean contentEquals(byte[] other) {
+		checkLive();
+		if (other.length != length) {
+			return false;
+		}
+		int diff = 0;
+		for (int i = 0; i < length; i++) {
+			diff |= get(i) ^ other[i];
+		}
+		return diff == 0;
+	}
+
+	public void wipe() {
+		checkLive();
+		if (heap != null) {
+			Arrays.fill(heap, offset, offset + length, (byte) 0);
+		} else {
+			for (int i = 0; i < length; i++) {
+				direct.put(offset + i, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Zeroes the buffer and returns its slot to the allocator. Further calls
+	 * are no-ops.
+	 */
+	@Override
+	public void close() {
+		if (released) {
+			return;
+		}
+		wipe();
+		released = true;
+		allocator.release(slot);
+	}
+
+	/**
+	 * Copies {@code src[srcOff, srcOff+n)} to position {@code pos} of this
+	 * buffer.
+	 */
+	void write(int pos, byte[] src, int srcOff, int n) {
+		checkLive();
+		if (heap != null) {
+			System.arraycopy(src, srcOff, heap, offset + pos, n);
+		} else {
+			direct.put(offset + pos, src, srcOff, n);
+		}
+	}
+
+	private byte get(int i) {
+		return heap != null ? heap[offset + i] : direct.get(offset + i);
+	}
+
+	private void checkLive() {
+		if (released) {
+			throw new IllegalStateException("Secret buffer already released");
+		}
+	}
+
+	private void checkLength(int n) {
+		if (n != length) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT,
+					"Secret length mismatch: expected " + length + " bytes, got " + n);
+		}
+	}
+}
@@ -19,6 +19,19 @@ public class TalosError extends RuntimeException {
 		this(code, message, null, null, cause);
 	}
 
+	/**
+	 * For errors allocated once and thrown repeatedly, e.g. rejections of
+	 * junk input. With {@code writableStackTrace} false nothing is captured at
+	 * construction and suppressed exceptions are not recorded, so a shared
+	 * instance stays immutable.
+	 */
+	public TalosError(TalosErrorCode code, String message, boolean writableStackTrace) {
+		super(message, null, false, writableStackTrace);
+		this.code = code;
+		this.details = Collections.emptyMap();
+		this.requestId = null;
+	}
+
 	public TalosError(TalosErrorCode code, String message, Map<String, Object> details, String requestId,
 			Throwable cause) {
 		super(message, cause);
@@ -0,0 +1,8 @@
+package com.talosprotocol.talos.metrics;
+
+final class MetricsHolder {
+	static volatile TalosMetrics current = TalosMetrics.NOOP;
+
+	private MetricsHolder() {
+	}
+}
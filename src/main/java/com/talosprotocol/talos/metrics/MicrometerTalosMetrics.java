@@ -0,0 +1,135 @@
+package com.talosprotocol.talos.metrics;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * {@link TalosMetrics} backed by a Micrometer {@link MeterRegistry}. Meters
+ * are registered up front so the hot path never looks them up; frame
+ * rejection counters are registered per reason on first use.
+ * {@link #close()} uninstalls this instance if it is the installed one.
+ *
+ * <ul>
+ * <li>{@code talos.ratchet.encrypt}, {@code talos.ratchet.decrypt} (timers)
+ * <li>{@code talos.ratchet.decrypt.failures} tagged {@code code}
+ * <li>{@code talos.ratchet.frame.rejected} tagged {@code reason}
+ * <li>{@code talos.ratchet.dh.steps}
+ * <li>{@code talos.ratchet.skipped.keys} (per-session store size summary)
+ * <li>{@code talos.ratchet.plaintext.bytes} and {@code talos.ratchet.wire.bytes}
+ * tagged {@code direction=out} for encrypted and {@code in} for decrypted
+ * messages
+ * <li>{@code talos.crypto.operation} tagged {@code op}
+ * </ul>
+ */
+public class MicrometerTalosMetrics implements TalosMetrics, AutoCloseable {
+	private final Timer encrypt;
+	private final Timer decrypt;
+	private final Counter dhSteps;
+	private final DistributionSummary skippedKeys;
+	private final Counter plaintextOut;
+	private final Counter plaintextIn;
+	private final Counter wireOut;
+	private final Counter wireIn;
+	private final Counter unknownFailures;
+	private final Map<TalosErrorCode, Counter> failures = new EnumMap<>(TalosErrorCode.class);
+	private final Map<Operation, Timer> operations = new EnumMap<>(Operation.class);
+	private final Map<String, Counter> rejections = new ConcurrentHashMap<>();
+	private final MeterRegistry registry;
+
+	public MicrometerTalosMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		encrypt = Timer.builder("talos.ratchet.encrypt").description("Ratchet message encryption")
+				.register(registry);
+		decrypt = Timer.builder("talos.ratchet.decrypt").description("Successful ratchet message decryption")
+				.register(registry);
+		dhSteps = Counter.builder("talos.ratchet.dh.steps").description("Diffie-Hellman ratchet steps")
+				.register(registry);
+		skippedKeys = DistributionSummary.builder("talos.ratchet.skipped.keys")
+				.description("Skipped-message-key store size after decrypt").register(registry);
+		plaintextOut = bytes(registry, "talos.ratchet.plaintext.bytes", "out");
+		plaintextIn = bytes(registry, "talos.ratchet.plaintext.bytes", "in");
+		wireOut = bytes(registry, "talos.ratchet.wire.bytes", "out");
+		wireIn = bytes(registry, "talos.ratchet.wire.bytes", "in");
+		for (TalosErrorCode code : TalosErrorCode.values()) {
+			failures.put(code, Counter.builder("talos.ratchet.decrypt.failures").tag("code", code.name())
+					.register(registry));
+		}
+		unknownFailures = Counter.builder("talos.ratchet.decrypt.failures").tag("code", "UNKNOWN")
+				.register(registry);
+		for (Operation op : Operation.values()) {
+			operations.put(op, Timer.builder("talos.crypto.operation").tag("op", op.name().toLowerCase(Locale.ROOT))
+					.register(registry));
+		}
+	}
+
+	private static Counter bytes(MeterRegistry registry, String name, String direction) {
+		return Counter.builder(name).tag("direction", direction).baseUnit("bytes").register(registry);
+	}
+
+	@Override
+	public boolean enabled() {
+		return true;
+	}
+
+	@Override
+	public void recordEncrypt(long nanos, long plaintextBytes, long wireBytes) {
+		encrypt.record(nanos, TimeUnit.NANOSECONDS);
+		plaintextOut.increment(plaintextBytes);
+		wireOut.increment(wireBytes);
+	}
+
+	@Override
+	public void recordDecrypt(long nanos, long wireBytes, long plaintextBytes) {
+		decrypt.record(nanos, TimeUnit.NANOSECONDS);
+		wireIn.increment(wireBytes);
+		plaintextIn.increment(plaintextBytes);
+	}
+
+	@Override
+	public void recordDecryptFailure(TalosErrorCode code) {
+		(code == null ? unknownFailures : failures.get(code)).increment();
+	}
+
+	@Override
+	public void recordFrameRejected(String reason) {
+		Counter c = rejections.get(reason);
+		if (c == null) {
+			c = rejections.computeIfAbsent(reason,
+					r -> Counter.builder("talos.ratchet.frame.rejected")
+							.tag("reason", r.toLowerCase(Locale.ROOT)).register(registry));
+		}
+		c.increment();
+	}
+
+	@Override
+	public void recordDhRatchetStep() {
+		dhSteps.increment();
+	}
+
+	@Override
+	public void recordSkippedKeys(int storeSize) {
+		skippedKeys.record(storeSize);
+	}
+
+	@Override
+	public void recordOperation(Operation op, long nanos) {
+		operations.get(op).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void close() {
+		if (TalosMetrics.current() == this) {
+			TalosMetrics.install(null);
+		}
+	}
+}
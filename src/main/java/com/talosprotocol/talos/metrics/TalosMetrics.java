@@ -0,0 +1,88 @@
+package com.talosprotocol.talos.metrics;
+
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Instrumentation hooks for ratchet and crypto operations.
+ * <p>
+ * The SDK reports to whatever instance is installed with {@link #install};
+ * the default {@link #NOOP} reports nothing and call sites skip even reading
+ * the clock, so disabled instrumentation costs one volatile read per
+ * operation. {@link MicrometerTalosMetrics} is installed automatically when
+ * the application context has a Micrometer {@code MeterRegistry}.
+ */
+public interface TalosMetrics {
+	TalosMetrics NOOP = new TalosMetrics() {
+	};
+
+	/**
+	 * Timed building blocks, reported through {@link #recordOperation}.
+	 */
+	enum Operation {
+		HKDF, AEAD_SEAL, AEAD_OPEN, X25519, ED25519_SIGN, ED25519_VERIFY, CANONICAL_JSON
+	}
+
+	default boolean enabled() {
+		return false;
+	}
+
+	default void recordEncrypt(long nanos, long plaintextBytes, long wireBytes) {
+	}
+
+	default void recordDecrypt(long nanos, long wireBytes, long plaintextBytes) {
+	}
+
+	/**
+	 * @param code
+	 *            the error code, or null if decryption failed with something
+	 *            other than a {@link com.talosprotocol.talos.errors.TalosError}
+	 */
+	default void recordDecryptFailure(TalosErrorCode code) {
+	}
+
+	/**
+	 * An inbound frame rejected before decryption.
+	 *
+	 * @param reason
+	 *            {@link com.talosprotocol.talos.ratchet.FrameValidator.Reason}
+	 *            name
+	 */
+	default void recordFrameRejected(String reason) {
+	}
+
+	default void recordDhRatchetStep() {
+	}
+
+	/**
+	 * Size of a session's skipped-message-key store after a decrypt.
+	 */
+	default void recordSkippedKeys(int storeSize) {
+	}
+
+	default void recordOperation(Operation op, long nanos) {
+	}
+
+	static TalosMetrics current() {
+		return MetricsHolder.current;
+	}
+
+	/**
+	 * Installs {@code metrics} process-wide; null restores {@link #NOOP}.
+	 */
+	static void install(TalosMetrics metrics) {
+		MetricsHolder.current = metrics == null ? NOOP : metrics;
+	}
+
+	/**
+	 * Start timestamp for {@link #stop}, or 0 when instrumentation is off.
+	 */
+	static long start() {
+		return MetricsHolder.current.enabled() ? System.nanoTime() : 0L;
+	}
+
+	static void stop(Operation op, long start) {
+		if (start != 0L) {
+			MetricsHolder.current.recordOperation(op, System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.talosprotocol.talos.metrics;
+
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Creates {@link MicrometerTalosMetrics} when a {@link MeterRegistry} bean is
+ * present and installs it process-wide for the lifetime of the context.
+ * Disable with {@code talos.metrics.enabled=false}.
+ */
+@AutoConfiguration(afterName = {
+		"org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration",
+		"org.springframework.boot.actuate.autoconfigure.metrics.export.simple.SimpleMetricsExportAutoConfiguration"})
+@ConditionalOnClass(MeterRegistry.class)
+@ConditionalOnBean(MeterRegistry.class)
+@ConditionalOnProperty(prefix = "talos.metrics", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class TalosMetricsAutoConfiguration {
+
+	@Bean
+	@ConditionalOnMissingBean(TalosMetrics.class)
+	public MicrometerTalosMetrics talosMetrics(MeterRegistry registry) {
+		MicrometerTalosMetrics metrics = new MicrometerTalosMetrics(registry);
+		TalosMetrics.install(metrics);
+		return metrics;
+	}
+}
@@ -0,0 +1,130 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Non-blocking front end for a {@link RatchetSessionManager}.
+ * <p>
+ * Operations run on an executor instead of the calling thread, so event-loop
+ * threads never wait on HKDF, X25519 or AEAD work. Operations on one session
+ * run one after another in submission order, each starting only when the
+ * previous one has finished, so they never queue up on the session lock while
+ * holding a pool thread. Different sessions run in parallel up to the pool
+ * size.
+ * <p>
+ * By default a fixed pool with one daemon thread per available processor is
+ * created and shut down by {@link #close()}. Any other executor can be passed
+ * in, e.g. a virtual-thread-per-task executor on Java 21.
+ */
+public class AsyncRatchetSessionManager implements AutoCloseable {
+	private final RatchetSessionManager sessions;
+	private final Executor executor;
+	private final ExecutorService ownedExecutor;
+
+	// Last operation queued for each session with work in flight.
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+	public AsyncRatchetSessionManager(RatchetSessionManager sessions) {
+		this.sessions = sessions;
+		this.ownedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				new CryptoThreadFactory());
+		this.executor = ownedExecutor;
+	}
+
+	/**
+	 * Runs operations on {@code executor}, which the caller keeps ownership of.
+	 */
+	public AsyncRatchetSessionManager(RatchetSessionManager sessions, Executor executor) {
+		this.sessions = sessions;
+		this.executor = executor;
+		this.ownedExecutor = null;
+	}
+
+	public RatchetSessionManager sessions() {
+		return sessions;
+	}
+
+	public CompletableFuture<String> encrypt(String sessionId, byte[] plaintext, byte[] explicitNonce) {
+		return withSession(sessionId, s -> s.encrypt(plaintext, explicitNonce));
+	}
+
+	public CompletableFuture<byte[]> decrypt(String sessionId, String wireMessageB64) {
+		return withSession(sessionId, s -> s.decrypt(wireMessageB64));
+	}
+
+	/**
+	 * Queues {@code op} behind every operation already submitted for the
+	 * session. A failed operation fails only its own future. Cancelling or
+	 * completing the returned future before {@code op} starts skips it; the
+	 * next operation still waits until this one's turn is over.
+	 */
+	public <T> CompletableFuture<T> withSession(String sessionId, Function<RatchetSession, T> op) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		// Ordering follows this internal future rather than result, which the
+		// caller can complete or cancel at any time.
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		Runnable task = () -> run(sessionId, op, result, done);
+		tails.compute(sessionId, (id, tail) -> {
+			if (tail == null) {
+				submit(task, result, done);
+			} else {
+				tail.whenComplete((v, e) -> submit(task, result, done));
+			}
+			return done;
+		});
+		// Drop the bookkeeping once this is the last queued operation.
+		done.whenComplete((v, e) -> tails.remove(sessionId, done));
+		return result;
+	}
+
+	private void submit(Runnable task, CompletableFuture<?> result, CompletableFuture<Void> done) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+			done.complete(null);
+		}
+	}
+
+	private <T> void run(String sessionId, Function<RatchetSession, T> op, CompletableFuture<T> result,
+			CompletableFuture<Void> done) {
+		try {
+			if (!result.isDone()) {
+				result.complete(sessions.withSession(sessionId, op));
+			}
+		} catch (Throwable t) {
+			result.completeExceptionally(t);
+		} finally {
+			done.complete(null);
+		}
+	}
+
+	/**
+	 * Shuts down the executor if this instance created it.
+	 */
+	@Override
+	public void close() {
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+	}
+
+	private static final class CryptoThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "talos-crypto-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
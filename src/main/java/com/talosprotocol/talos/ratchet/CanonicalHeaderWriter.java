@@ -0,0 +1,201 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.talosprotocol.talos.canonical.Base64Url;
+
+/**
+ * Writes the ratchet header {@code {"c","dh","n","pn"}} ({@code "c"} only for
+ * an encoded payload) and the envelope
+ * {@code {"ciphertext","header","nonce"}} as canonical JSON without going
+ * through Jackson. Output is byte-identical to
+ * {@link com.talosprotocol.talos.canonical.CanonicalJson#marshal} for the same
+ * fields, provided every string value is plain base64url (no escaping needed).
+ * <p>
+ * One reusable buffer per thread; not thread-safe.
+ */
+final class CanonicalHeaderWriter {
+	private static final int INITIAL_CAPACITY = 256;
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final byte[] CODEC = ascii("{\"c\":\"");
+	private static final byte[] CODEC_DH = ascii("\",\"dh\":\"");
+	private static final byte[] DH = ascii("{\"dh\":\"");
+	private static final byte[] N = ascii("\",\"n\":");
+	private static final byte[] PN = ascii(",\"pn\":");
+	private static final byte[] CIPHERTEXT = ascii("{\"ciphertext\":\"");
+	private static final byte[] HEADER = ascii("\",\"header\":");
+	private static final byte[] NONCE = ascii(",\"nonce\":\"");
+	private static final byte[] END_STRING_OBJECT = ascii("\"}");
+
+	private static final ThreadLocal<CanonicalHeaderWriter> local = ThreadLocal
+			.withInitial(CanonicalHeaderWriter::new);
+
+	private byte[] buf = new byte[INITIAL_CAPACITY];
+	private byte[] scratch = new byte[INITIAL_CAPACITY];
+	private int len;
+
+	static CanonicalHeaderWriter get() {
+		CanonicalHeaderWriter w = local.get();
+		w.reset();
+		return w;
+	}
+
+	/**
+	 * {@code {"dh":"<dh>","n":<n>,"pn":<pn>}} as a fresh array.
+	 */
+	byte[] header(String dh, int n, int pn) {
+		return header(null, dh, n, pn);
+	}
+
+	/**
+	 * {@code {"c":"<codec>","dh":"<dh>","n":<n>,"pn":<pn>}} as a fresh array,
+	 * or the plain header if {@code codec} is null.
+	 */
+	byte[] header(String codec, String dh, int n, int pn) {
+		reset();
+		writeHeader(codec, dh, n, pn);
+		return Arrays.copyOf(buf, len);
+	}
+
+	/**
+	 * {@code {"ciphertext":"<ct>","header":<header>,"nonce":"<nonce>"}} into the
+	 * reusable buffer, base64url-encoding the ciphertext and nonce in place;
+	 * read it back through {@link #buffer()} and {@link #length()}.
+	 */
+	void envelope(byte[] ciphertext, byte[] headerJson, byte[] nonce) {
+		reset();
+		write(CIPHERTEXT);
+		writeBase64Url(ciphertext);
+		write(HEADER);
+		write(headerJson);
+		write(NONCE);
+		writeBase64Url(nonce);
+		write(END_STRING_OBJECT);
+	}
+
+	/**
+	 * The buffer contents as a base64url string.
+	 */
+	String toBase64Url() {
+		return Base64Url.encodeToString(buf, 0, len);
+	}
+
+	/**
+	 * Decodes {@code s} into the reusable buffer, replacing its contents.
+	 */
+	void decodeBase64Url(CharSequence s) {
+		reset();
+		ensure(Base64Url.decodedLength(s));
+		len = Base64Url.decode(s, buf);
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int length() {
+		return len;
+	}
+
+	/**
+	 * True if {@code s} can be written between quotes verbatim, i.e. it is
+	 * base64url and so matches what Jackson would emit.
+	 */
+	static boolean isPlainBase64Url(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			boolean ok = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-'
+					|| c == '_';
+			if (!ok) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writeHeader(String codec, String dh, int n, int pn) {
+		if (codec != null) {
+			write(CODEC);
+			writeAscii(codec);
+			write(CODEC_DH);
+		} else {
+			write(DH);
+		}
+		writeAscii(dh);
+		write(N);
+		writeInt(n);
+		write(PN);
+		writeInt(pn);
+		ensure(1);
+		buf[len++] = '}';
+	}
+
+	private void reset() {
+		if (buf.length > MAX_RETAINED_CAPACITY) {
+			buf = new byte[INITIAL_CAPACITY];
+		}
+		if (scratch.length > MAX_RETAINED_CAPACITY) {
+			scratch = new byte[INITIAL_CAPACITY];
+		}
+		len = 0;
+	}
+
+	private void write(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	private void writeBase64Url(byte[] b) {
+		// The JDK encoder only writes from index 0, so go through scratch.
+		int n = Base64Url.encodedLength(b.length);
+		if (scratch.length < n) {
+			scratch = new byte[Math.max(n, scratch.length * 2)];
+		}
+		Base64Url.encode(b, scratch);
+		ensure(n);
+		System.arraycopy(scratch, 0, buf, len, n);
+		len += n;
+	}
+
+	private void writeAscii(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			buf[len++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeInt(int v) {
+		ensure(11);
+		if (v == Integer.MIN_VALUE) {
+			writeAscii("-2147483648");
+			return;
+		}
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (int t = v; t >= 10; t /= 10) {
+			digits++;
+		}
+		for (int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		len += digits;
+	}
+
+	private void ensure(int extra) {
+		if (len + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
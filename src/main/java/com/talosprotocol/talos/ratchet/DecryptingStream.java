@@ -0,0 +1,315 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import com.talosprotocol.talos.crypto.AeadContext;
+import com.talosprotocol.talos.crypto.SecretBuffer;
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.metrics.TalosMetrics;
+
+/**
+ * Reads back a payload written through {@link EncryptingStream}, one segment
+ * at a time. Obtain one from {@link RatchetSession#decryptStream}, which has
+ * already authenticated the first segment and advanced the session.
+ * <p>
+ * Every segment is authenticated before any of its bytes are returned. A
+ * segment that fails, including a last segment that turns out not to be
+ * flagged as such because the stream was cut short, throws
+ * {@link TalosError} and leaves the stream failed; callers must treat
+ * anything read so far as unverified until end of stream is reached. The
+ * source must be blocking. Not thread-safe.
+ */
+public final class DecryptingStream extends InputStream implements ReadableByteChannel {
+	private static final int TAG_SIZE = EncryptingStream.TAG_SIZE;
+
+	private final ReadableByteChannel channel;
+	private final InputStream stream;
+	private final FrameValidator validator;
+	private final AeadContext aead = new AeadContext();
+	private final byte[] nonce = new byte[AeadContext.NONCE_SIZE];
+	private final long start;
+
+	// Header fields, set by readHeader.
+	byte[] dh;
+	int pn;
+	int n;
+	private int segmentSize;
+
+	private SecretBuffer key;
+	private byte[] aad;
+	private byte[] plain;
+	private byte[] sealed;
+	private ByteBuffer sealedBuffer;
+	private int plainPosition;
+	private int plainLength;
+	private int lookahead = -1;
+	private long segment;
+	private long plaintextBytes;
+	private long wireBytes;
+	private boolean last;
+	private boolean failed;
+	private boolean closed;
+
+	DecryptingStream(ReadableByteChannel channel, InputStream stream, FrameValidator validator) {
+		this.channel = channel;
+		this.stream = stream;
+		this.validator = validator;
+		TalosMetrics metrics = TalosMetrics.current();
+		this.start = metrics.enabled() ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Reads and checks the stream header.
+	 */
+	void readHeader() throws IOException {
+		byte[] fixed = new byte[1 + RatchetFrame.DH_SIZE];
+		if (readFully(fixed, 0, fixed.length) < fixed.length) {
+			throw validator.reject(FrameValidator.Reason.TRUNCATED);
+		}
+		if (fixed[0] != EncryptingStream.VERSION) {
+			throw validator.reject(FrameValidator.Reason.BAD_VERSION);
+		}
+		dh = Arrays.copyOfRange(fixed, 1, fixed.length);
+		pn = readCounter();
+		n = readCounter();
+		segmentSize = readCounter();
+		if (segmentSize < 1) {
+			throw validator.reject(FrameValidator.Reason.COUNTER_RANGE);
+		}
+		validator.checkBinary(segmentSize + TAG_SIZE);
+		wireBytes = fixed.length + RatchetFrame.varintLength(pn) + RatchetFrame.varintLength(n)
+				+ RatchetFrame.varintLength(segmentSize);
+	}
+
+	/**
+	 * Installs the stream key and authenticates the first segment; the stream
+	 * takes ownership of {@code key}.
+	 */
+	void start(SecretBuffer key, byte[] aad) throws IOException {
+		this.key = key;
+		this.aad = aad;
+		this.plain = new byte[segmentSize];
+		this.sealed = new byte[segmentSize + TAG_SIZE];
+		this.sealedBuffer = ByteBuffer.wrap(sealed);
+		nextSegment();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return plain[plainPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if ((off | len) < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, plainLength - plainPosition);
+		System.arraycopy(plain, plainPosition, b, off, count);
+		plainPosition += count;
+		return count;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(dst.remaining(), plainLength - plainPosition);
+		dst.put(plain, plainPosition, count);
+		plainPosition += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return closed ? 0 : plainLength - plainPosition;
+	}
+
+	/**
+	 * Writes the rest of the payload to a blocking {@code target} straight
+	 * from the segment buffer.
+	 *
+	 * @return bytes written
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		ByteBuffer window = ByteBuffer.wrap(plain);
+		long total = 0;
+		while (fill()) {
+			window.limit(plainLength).position(plainPosition);
+			while (window.hasRemaining()) {
+				target.write(window);
+			}
+			total += plainLength - plainPosition;
+			plainPosition = plainLength;
+		}
+		return total;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Wipes the buffers and closes the source.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		discard();
+		if (stream != null) {
+			stream.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Wipes the key and buffers without closing the source.
+	 */
+	void discard() {
+		closed = true;
+		if (key != null) {
+			key.close();
+		}
+		if (plain != null) {
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+
+	/**
+	 * True once decrypted bytes are waiting, false at end of stream.
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (failed) {
+			throw new IOException("Stream failed authentication");
+		}
+		while (plainPosition == plainLength) {
+			if (last) {
+				return false;
+			}
+			nextSegment();
+		}
+		return true;
+	}
+
+	private void nextSegment() throws IOException {
+		int len = 0;
+		if (lookahead >= 0) {
+			sealed[len++] = (byte) lookahead;
+			lookahead = -1;
+		}
+		len += readFully(sealed, len, sealed.length - len);
+		if (len == sealed.length) {
+			// A full segment is the last one only if nothing follows it.
+			byte[] one = new byte[1];
+			if (readFully(one, 0, 1) == 1) {
+				lookahead = one[0] & 0xFF;
+			} else {
+				last = true;
+			}
+		} else {
+			last = true;
+		}
+		wireBytes += len;
+		if (len < TAG_SIZE) {
+			failed = true;
+			throw validator.reject(FrameValidator.Reason.TRUNCATED);
+		}
+
+		EncryptingStream.segmentNonce(nonce, segment++, last);
+		try {
+			plainLength = aead.decrypt(key, nonce, aad, 0, aad.length, sealed, 0, len, plain, 0);
+		} catch (TalosError e) {
+			failed = true;
+			recordFailure(e);
+			throw e;
+		}
+		plainPosition = 0;
+		plaintextBytes += plainLength;
+		if (last && start != 0L) {
+			TalosMetrics metrics = TalosMetrics.current();
+			if (metrics.enabled()) {
+				metrics.recordDecrypt(System.nanoTime() - start, wireBytes, plaintextBytes);
+			}
+		}
+	}
+
+	private void recordFailure(TalosError e) {
+		TalosMetrics metrics = TalosMetrics.current();
+		// The first segment's failure is reported by the session.
+		if (segment > 1 && metrics.enabled()) {
+			metrics.recordDecryptFailure(e.getCode());
+		}
+	}
+
+	private int readCounter() throws IOException {
+		int result = 0;
+		byte[] one = new byte[1];
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (readFully(one, 0, 1) < 1) {
+				throw validator.reject(FrameValidator.Reason.TRUNCATED);
+			}
+			int b = one[0];
+			if (shift == 28 && (b & 0xF8) != 0) {
+				break;
+			}
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw validator.reject(FrameValidator.Reason.COUNTER_RANGE);
+	}
+
+	/**
+	 * Reads until {@code len} bytes arrive or the source ends.
+	 *
+	 * @return bytes read
+	 */
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		if (stream != null) {
+			while (total < len) {
+				int r = stream.read(b, off + total, len - total);
+				if (r < 0) {
+					break;
+				}
+				total += r;
+			}
+			return total;
+		}
+		ByteBuffer buf = b == sealed ? sealedBuffer : ByteBuffer.wrap(b);
+		buf.limit(off + len).position(off);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0) {
+				break;
+			}
+		}
+		return buf.position() - off;
+	}
+}
@@ -0,0 +1,205 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * zlib-format compression through the JDK {@link Deflater}. Payloads below a
+ * minimum size, whose byte entropy suggests they are already compressed or
+ * encrypted, or that would not shrink by at least a sixteenth are sent as
+ * is. Each thread keeps its own deflater, inflater and scratch buffer per
+ * codec instance.
+ * <p>
+ * Compression makes the ciphertext length depend on how repetitive the
+ * plaintext is; do not use it for payloads that mix secrets with data an
+ * attacker controls.
+ */
+public final class DeflateCodec implements PayloadCodec {
+	public static final String ID = "deflate";
+	public static final int DEFAULT_MIN_SIZE = 256;
+	/**
+	 * Sampled entropy, in bits per byte, above which compression is not
+	 * attempted. Random data samples at about 7.95.
+	 */
+	public static final double DEFAULT_MAX_ENTROPY = 7.5;
+
+	public static final DeflateCodec DEFAULT = new DeflateCodec(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE,
+			DEFAULT_MAX_ENTROPY);
+
+	// The entropy estimate reads up to SAMPLE_RUNS runs of RUN_LENGTH bytes
+	// spread evenly over the payload.
+	private static final int SAMPLE_RUNS = 64;
+	private static final int RUN_LENGTH = 64;
+	private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	private final int level;
+	private final int minSize;
+	private final double maxEntropy;
+	private final ThreadLocal<Context> contexts;
+
+	/**
+	 * @param level
+	 *            {@link Deflater} level, 0-9 or -1 for the default
+	 * @param minSize
+	 *            smallest payload to compress
+	 * @param maxEntropy
+	 *            bits per byte above which compression is skipped; 8 or more
+	 *            always tries
+	 */
+	public DeflateCodec(int level, int minSize, double maxEntropy) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid deflate level: " + level);
+		}
+		if (minSize < 0) {
+			throw new IllegalArgumentException("minSize must not be negative");
+		}
+		this.level = level;
+		this.minSize = minSize;
+		this.maxEntropy = maxEntropy;
+		this.contexts = ThreadLocal.withInitial(Context::new);
+	}
+
+	@Override
+	public String id() {
+		return ID;
+	}
+
+	@Override
+	public byte[] encode(byte[] payload) {
+		if (payload.length < minSize || payload.length == 0) {
+			return null;
+		}
+		Context ctx = contexts.get();
+		if (maxEntropy < 8 && ctx.entropy(payload) > maxEntropy) {
+			return null;
+		}
+		int limit = payload.length - payload.length / 16;
+		byte[] out = ctx.buffer(limit);
+		Deflater deflater = ctx.deflater;
+		int len = 0;
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (len == limit) {
+					return null;
+				}
+				len += deflater.deflate(out, len, limit - len);
+			}
+			return Arrays.copyOf(out, len);
+		} finally {
+			Arrays.fill(out, 0, len, (byte) 0);
+			deflater.reset();
+		}
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int off, int len, int maxLength) {
+		Context ctx = contexts.get();
+		Inflater inflater = ctx.inflater;
+		byte[] out = ctx.buffer((int) Math.max(1, Math.min(maxLength, len * 4L)));
+		// The scratch buffer may be longer than maxLength.
+		int limit = Math.min(out.length, maxLength);
+		int n = 0;
+		try {
+			inflater.setInput(data, off, len);
+			while (!inflater.finished()) {
+				if (n == limit) {
+					if (n >= maxLength) {
+						throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT,
+								"Decoded payload exceeds " + maxLength + " bytes");
+					}
+					out = ctx.grow(out, n, (int) Math.min(maxLength, out.length * 2L));
+					limit = out.length;
+				}
+				int r = inflater.inflate(out, n, limit - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Truncated compressed payload");
+				}
+				n += r;
+			}
+			if (inflater.getRemaining() > 0) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Trailing data after compressed payload");
+			}
+			return Arrays.copyOf(out, n);
+		} catch (DataFormatException e) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Invalid compressed payload", e);
+		} finally {
+			Arrays.fill(out, 0, n, (byte) 0);
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Per-thread compression state.
+	 */
+	private final class Context {
+		final Deflater deflater = new Deflater(level);
+		final Inflater inflater = new Inflater();
+		final int[] counts = new int[256];
+		byte[] scratch = new byte[0];
+
+		/**
+		 * Scratch space of at least {@code size} bytes.
+		 */
+		byte[] buffer(int size) {
+			if (scratch.length >= size) {
+				return scratch;
+			}
+			byte[] b = new byte[size];
+			if (size <= MAX_RETAINED_CAPACITY) {
+				scratch = b;
+			}
+			return b;
+		}
+
+		/**
+		 * {@code b} resized to {@code size}, keeping {@code used} bytes and
+		 * wiping the old copy.
+		 */
+		byte[] grow(byte[] b, int used, int size) {
+			byte[] grown = Arrays.copyOf(b, size);
+			Arrays.fill(b, 0, used, (byte) 0);
+			if (size <= MAX_RETAINED_CAPACITY) {
+				scratch = grown;
+			}
+			return grown;
+		}
+
+		/**
+		 * Shannon entropy of a sample of {@code data}, in bits per byte.
+		 */
+		double entropy(byte[] data) {
+			Arrays.fill(counts, 0);
+			int total;
+			if (data.length <= SAMPLE_RUNS * RUN_LENGTH) {
+				for (byte b : data) {
+					counts[b & 0xFF]++;
+				}
+				total = data.length;
+			} else {
+				long step = (data.length - RUN_LENGTH) / (SAMPLE_RUNS - 1);
+				for (int r = 0; r < SAMPLE_RUNS; r++) {
+					int start = (int) (r * step);
+					for (int i = start; i < start + RUN_LENGTH; i++) {
+						counts[data[i] & 0xFF]++;
+					}
+				}
+				total = SAMPLE_RUNS * RUN_LENGTH;
+			}
+			double bits = 0;
+			for (int c : counts) {
+				if (c > 0) {
+					double p = (double) c / total;
+					bits -= p * Math.log(p);
+				}
+			}
+			return bits / Math.log(2);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket limiting the key-derivation work that unauthenticated frames
+ * can cause on the receiving side.
+ * <p>
+ * A frame costs one unit per skipped message key it forces us to derive and
+ * {@link #DH_RATCHET_UNITS} if it starts a new DH ratchet; the next in-order
+ * message is free. Units are taken before the work is done and given back
+ * once the frame authenticates, so honest peers keep their budget and
+ * forgeries drain it. Share one instance across the sessions of a peer to
+ * budget per peer. Thread-safe.
+ */
+public final class DerivationBudget {
+	/**
+	 * Charge for a DH ratchet step (key generation, two X25519 agreements and
+	 * two root derivations), in symmetric chain steps.
+	 */
+	public static final int DH_RATCHET_UNITS = 40;
+
+	private final long capacity;
+	private final long refillPerSecond;
+	private final LongSupplier nanoClock;
+	private long available;
+	private long lastRefill;
+	private long denied;
+
+	/**
+	 * @param capacity
+	 *            burst size in units; must admit at least one maximal frame to
+	 *            be useful
+	 * @param refillPerSecond
+	 *            units restored per second
+	 */
+	public DerivationBudget(long capacity, long refillPerSecond) {
+		this(capacity, refillPerSecond, System::nanoTime);
+	}
+
+	DerivationBudget(long capacity, long refillPerSecond, LongSupplier nanoClock) {
+		if (capacity < 1 || refillPerSecond < 0) {
+			throw new IllegalArgumentException("Invalid derivation budget");
+		}
+		this.capacity = capacity;
+		this.refillPerSecond = refillPerSecond;
+		this.nanoClock = nanoClock;
+		this.available = capacity;
+		this.lastRefill = nanoClock.getAsLong();
+	}
+
+	/**
+	 * Takes {@code units} if that many are available.
+	 */
+	public synchronized boolean tryAcquire(long units) {
+		refill();
+		if (units > available) {
+			denied++;
+			return false;
+		}
+		available -= units;
+		return true;
+	}
+
+	/**
+	 * Returns units taken for work that turned out to be legitimate.
+	 */
+	public synchronized void refund(long units) {
+		available = Math.min(capacity, available + units);
+	}
+
+	public synchronized long available() {
+		refill();
+		return available;
+	}
+
+	/**
+	 * Frames rejected for lack of budget.
+	 */
+	public synchronized long deniedCount() {
+		return denied;
+	}
+
+	private void refill() {
+		long now = nanoClock.getAsLong();
+		if (available >= capacity) {
+			lastRefill = now;
+			return;
+		}
+		double units = (now - lastRefill) / 1e9 * refillPerSecond;
+		if (units >= capacity - available) {
+			available = capacity;
+			lastRefill = now;
+		} else if (units >= 1) {
+			// Keep the fractional remainder for the next call.
+			available += (long) units;
+			lastRefill += (long) ((long) units * 1e9 / refillPerSecond);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import com.talosprotocol.talos.crypto.AeadContext;
+import com.talosprotocol.talos.crypto.SecretBuffer;
+import com.talosprotocol.talos.metrics.TalosMetrics;
+
+/**
+ * Encrypts an arbitrarily long payload as one ratchet message, sealed in
+ * fixed-size segments so memory use does not grow with the payload. Obtain
+ * one from {@link RatchetSession#encryptStream}; read it back with
+ * {@link RatchetSession#decryptStream}.
+ *
+ * <pre>
+ * version(1) | dh(32) | pn(varint) | n(varint) | segment size(varint) | segment...
+ * </pre>
+ *
+ * Each segment is {@code segment size} bytes of plaintext sealed with
+ * ChaCha20-Poly1305, except the last, which holds the remainder (possibly a
+ * whole segment, and empty only for an empty payload). All segments use one
+ * key derived from the message key and the message's canonical header as
+ * AAD; segment {@code i} has nonce {@code i} (11 bytes, big-endian) followed
+ * by a flag byte set only on the last segment, so reordering, dropping or
+ * truncating segments fails authentication.
+ * <p>
+ * Nothing is written until the first segment fills; {@link #close} seals the
+ * last segment and closes the sink. {@link #flush} cannot emit a partial
+ * segment and only flushes the sink. Not thread-safe.
+ */
+public final class EncryptingStream extends OutputStream implements WritableByteChannel {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+	static final byte VERSION = 0x02;
+	static final int TAG_SIZE = AeadContext.TAG_SIZE;
+
+	private final WritableByteChannel channel;
+	private final OutputStream stream;
+	private final AeadContext aead = new AeadContext();
+	private final SecretBuffer key;
+	private final byte[] aad;
+	private final byte[] nonce = new byte[AeadContext.NONCE_SIZE];
+	private final byte[] plain;
+	private final byte[] sealed;
+	private final ByteBuffer sealedBuffer;
+	private final long start;
+
+	private byte[] header;
+	private int plainLength;
+	private long segment;
+	private long plaintextBytes;
+	private long wireBytes;
+	private boolean closed;
+
+	EncryptingStream(WritableByteChannel channel, OutputStream stream, byte[] dh, int pn, int n, int segmentSize,
+			SecretBuffer key, byte[] aad) {
+		this.channel = channel;
+		this.stream = stream;
+		this.key = key;
+		this.aad = aad;
+		this.plain = new byte[segmentSize];
+		this.sealed = new byte[segmentSize + TAG_SIZE];
+		this.sealedBuffer = ByteBuffer.wrap(sealed);
+		TalosMetrics metrics = TalosMetrics.current();
+		this.start = metrics.enabled() ? System.nanoTime() : 0L;
+
+		ByteBuffer h = ByteBuffer.allocate(1 + RatchetFrame.DH_SIZE + 15);
+		h.put(VERSION).put(dh, 0, RatchetFrame.DH_SIZE);
+		RatchetFrame.writeVarint(h, pn);
+		RatchetFrame.writeVarint(h, n);
+		RatchetFrame.writeVarint(h, segmentSize);
+		this.header = Arrays.copyOf(h.array(), h.position());
+	}
+
+	static void checkSegmentSize(int segmentSize) {
+		if (segmentSize < 1 || segmentSize > FrameValidator.DEFAULT_MAX_FRAME_BYTES - TAG_SIZE) {
+			throw new IllegalArgumentException("Segment size must be between 1 and "
+					+ (FrameValidator.DEFAULT_MAX_FRAME_BYTES - TAG_SIZE));
+		}
+	}
+
+	/**
+	 * Nonce for segment {@code index}.
+	 */
+	static void segmentNonce(byte[] nonce, long index, boolean last) {
+		Arrays.fill(nonce, 0, nonce.length - 9, (byte) 0);
+		for (int i = nonce.length - 2; i >= nonce.length - 9; i--) {
+			nonce[i] = (byte) index;
+			index >>>= 8;
+		}
+		nonce[nonce.length - 1] = (byte) (last ? 1 : 0);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (plainLength == plain.length) {
+			seal(false);
+		}
+		plain[plainLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if ((off | len) < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (plainLength == plain.length) {
+				seal(false);
+			}
+			int n = Math.min(len, plain.length - plainLength);
+			System.arraycopy(b, off, plain, plainLength, n);
+			plainLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		int written = src.remaining();
+		while (src.hasRemaining()) {
+			if (plainLength == plain.length) {
+				seal(false);
+			}
+			int n = Math.min(src.remaining(), plain.length - plainLength);
+			src.get(plain, plainLength, n);
+			plainLength += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Encrypts everything a blocking {@code source} yields until end of
+	 * stream. Reads go straight into the segment buffer, so a
+	 * {@link java.nio.channels.FileChannel} source costs one copy per byte
+	 * before encryption and no intermediate buffers.
+	 *
+	 * @return bytes read from {@code source}
+	 */
+	public long transferFrom(ReadableByteChannel source) throws IOException {
+		ensureOpen();
+		ByteBuffer window = ByteBuffer.wrap(plain);
+		ByteBuffer lookahead = ByteBuffer.allocate(1);
+		long total = 0;
+		while (true) {
+			if (plainLength == plain.length) {
+				// Seal a full segment only once more data is known to follow.
+				lookahead.clear();
+				if (readSome(source, lookahead) < 0) {
+					return total;
+				}
+				seal(false);
+				plain[plainLength++] = lookahead.get(0);
+				total++;
+			}
+			window.limit(plain.length).position(plainLength);
+			int n = readSome(source, window);
+			if (n < 0) {
+				return total;
+			}
+			plainLength += n;
+			total += n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (stream != null) {
+			stream.flush();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Seals the last segment and closes the sink.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			seal(true);
+			TalosMetrics metrics = TalosMetrics.current();
+			if (start != 0L && metrics.enabled()) {
+				metrics.recordEncrypt(System.nanoTime() - start, plaintextBytes, wireBytes);
+			}
+		} finally {
+			closed = true;
+			key.close();
+			Arrays.fill(plain, (byte) 0);
+			if (stream != null) {
+				stream.close();
+			} else {
+				channel.close();
+			}
+		}
+	}
+
+	private void seal(boolean last) throws IOException {
+		if (header != null) {
+			writeFully(header, header.length);
+			header = null;
+		}
+		segmentNonce(nonce, segment++, last);
+		int n = aead.encrypt(key, nonce, aad, 0, aad.length, plain, 0, plainLength, sealed, 0);
+		writeFully(sealed, n);
+		plaintextBytes += plainLength;
+		plainLength = 0;
+	}
+
+	private void writeFully(byte[] b, int len) throws IOException {
+		wireBytes += len;
+		if (stream != null) {
+			stream.write(b, 0, len);
+			return;
+		}
+		ByteBuffer buf = b == sealed ? sealedBuffer : ByteBuffer.wrap(b);
+		buf.clear().limit(len);
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private static int readSome(ReadableByteChannel source, ByteBuffer dst) throws IOException {
+		int n;
+		do {
+			n = source.read(dst);
+		} while (n == 0 && dst.hasRemaining());
+		return n;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.talosprotocol.talos.canonical.Base64Url;
+import com.talosprotocol.talos.ratchet.FrameValidator.Reason;
+
+/**
+ * Single-pass reader for the JSON wire envelope
+ * {@code {"ciphertext","header":{"c","dh","n","pn"},"nonce"}}, {@code "c"}
+ * being optional. Fields are pulled
+ * off a Jackson token stream in any order. Base64url values are validated and
+ * decoded straight from the input bytes, leaving Jackson to skip over them, so
+ * neither a tree nor intermediate strings or character buffers are built;
+ * only strings with escapes go through the parser's text. The header AAD is
+ * rebuilt with {@link CanonicalHeaderWriter}.
+ * <p>
+ * Envelopes that writer cannot reproduce byte for byte (extra or repeated
+ * header fields, a padded key) or that repeat an envelope field are left to
+ * the generic tree path: {@link #parse} returns null for them.
+ */
+final class EnvelopeParser {
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private static final int DH = 1;
+	private static final int N = 2;
+	private static final int PN = 4;
+	private static final int HEADER = 8;
+	private static final int NONCE = 16;
+	private static final int CIPHERTEXT = 32;
+	private static final int CODEC = 64;
+
+	private final JsonParser parser;
+	private final byte[] buf;
+	private final int len;
+	private final FrameValidator validator;
+	private final AsciiView raw = new AsciiView();
+	private final CharView text = new CharView();
+	private int seen;
+
+	private String codecId;
+	private PayloadCodec codec;
+	private String dhText;
+	private byte[] dh;
+	private int n;
+	private int pn;
+	private byte[] nonce;
+	private byte[] ciphertext;
+
+	private EnvelopeParser(JsonParser parser, byte[] buf, int len, FrameValidator validator) {
+		this.parser = parser;
+		this.buf = buf;
+		this.len = len;
+		this.validator = validator;
+	}
+
+	/**
+	 * Parses the decoded envelope in {@code buf[0, len)}, applying the checks
+	 * of {@link FrameValidator#checkEnvelope}. A key equal to
+	 * {@code knownDhText} resolves to {@code knownDh} without decoding.
+	 *
+	 * @return the message, or null if the envelope needs the tree path
+	 */
+	static RatchetSession.Inbound parse(byte[] buf, int len, FrameValidator validator, String knownDhText,
+			byte[] knownDh) {
+		EnvelopeParser p;
+		try (JsonParser parser = FACTORY.createParser(buf, 0, len)) {
+			p = new EnvelopeParser(parser, buf, len, validator);
+			if (!p.readEnvelope(knownDhText, knownDh)) {
+				return null;
+			}
+		} catch (IOException e) {
+			throw validator.reject(Reason.BAD_JSON);
+		}
+		// Built once the parser is done with buf, which shares the writer's
+		// thread-local buffer.
+		byte[] headerBytes = CanonicalHeaderWriter.get().header(p.codecId, p.dhText, p.n, p.pn);
+		return new RatchetSession.Inbound(p.dh, p.pn, p.n, headerBytes, p.nonce, p.ciphertext, p.codec);
+	}
+
+	private boolean readEnvelope(String knownDhText, byte[] knownDh) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw validator.reject(Reason.BAD_JSON);
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.currentName();
+			JsonToken value = parser.nextToken();
+			switch (name) {
+			case "header":
+				if (!first(HEADER)) {
+					return false;
+				}
+				if (value != JsonToken.START_OBJECT) {
+					throw validator.reject(Reason.MISSING_FIELD);
+				}
+				if (!readHeader(knownDhText, knownDh)) {
+					return false;
+				}
+				break;
+			case "nonce":
+				if (!first(NONCE)) {
+					return false;
+				}
+				nonce = decode(value, RatchetFrame.NONCE_SIZE, RatchetFrame.NONCE_SIZE, Reason.BAD_NONCE);
+				break;
+			case "ciphertext":
+				if (!first(CIPHERTEXT)) {
+					return false;
+				}
+				ciphertext = decode(value, RatchetFrame.TAG_SIZE, Integer.MAX_VALUE, Reason.TOO_SHORT);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		if ((seen & HEADER) == 0 || (seen & (DH | N | PN)) != (DH | N | PN) || (seen & NONCE) == 0
+				|| (seen & CIPHERTEXT) == 0) {
+			throw validator.reject(Reason.MISSING_FIELD);
+		}
+		return true;
+	}
+
+	private boolean readHeader(String knownDhText, byte[] knownDh) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.currentName();
+			JsonToken value = parser.nextToken();
+			switch (name) {
+			case "c":
+				if (!first(CODEC)) {
+					return false;
+				}
+				codecId = string(value).toString();
+				codec = validator.checkCodec(codecId);
+				break;
+			case "dh":
+				if (!first(DH) || !readKey(value, knownDhText, knownDh)) {
+					return false;
+				}
+				break;
+			case "n":
+				if (!first(N)) {
+					return false;
+				}
+				n = counter(value);
+				break;
+			case "pn":
+				if (!first(PN)) {
+					return false;
+				}
+				pn = counter(value);
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean readKey(JsonToken value, String knownDhText, byte[] knownDh) throws IOException {
+		CharSequence s = string(value);
+		validator.checkBase64(s, RatchetFrame.DH_SIZE, RatchetFrame.DH_SIZE, Reason.BAD_KEY);
+		if (s.charAt(s.length() - 1) == '=') {
+			return false;
+		}
+		if (knownDhText != null && knownDhText.contentEquals(s)) {
+			dhText = knownDhText;
+			dh = knownDh;
+		} else {
+			dhText = s.toString();
+			dh = new byte[RatchetFrame.DH_SIZE];
+			Base64Url.decode(s, dh);
+		}
+		return true;
+	}
+
+	private int counter(JsonToken value) throws IOException {
+		if (value != JsonToken.VALUE_NUMBER_INT) {
+			throw validator.reject(Reason.MISSING_FIELD);
+		}
+		if (parser.getNumberType() != JsonParser.NumberType.INT || parser.getIntValue() < 0) {
+			throw validator.reject(Reason.COUNTER_RANGE);
+		}
+		return parser.getIntValue();
+	}
+
+	private byte[] decode(JsonToken value, int minBytes, int maxBytes, Reason wrongLength) throws IOException {
+		CharSequence s = string(value);
+		byte[] out = new byte[validator.checkBase64(s, minBytes, maxBytes, wrongLength)];
+		Base64Url.decode(s, out);
+		return out;
+	}
+
+	private CharSequence string(JsonToken value) throws IOException {
+		if (value != JsonToken.VALUE_STRING) {
+			throw validator.reject(Reason.MISSING_FIELD);
+		}
+		// The token starts at the opening quote; an unescaped ASCII string runs
+		// to the next quote.
+		long quote = parser.currentTokenLocation().getByteOffset();
+		if (quote >= 0 && quote < len && buf[(int) quote] == '"') {
+			int start = (int) quote + 1;
+			int end = start;
+			while (end < len && buf[end] > '"' && buf[end] != '\\') {
+				end++;
+			}
+			if (end < len && buf[end] == '"') {
+				raw.set(buf, start, end - start);
+				return raw;
+			}
+		}
+		text.set(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+		return text;
+	}
+
+	private boolean first(int field) {
+		if ((seen & field) != 0) {
+			return false;
+		}
+		seen |= field;
+		return true;
+	}
+
+	/**
+	 * Window onto ASCII input bytes.
+	 */
+	private static final class AsciiView implements CharSequence {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+
+		void set(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Window onto the parser's text buffer, valid until the next token.
+	 */
+	private static final class CharView implements CharSequence {
+		private char[] chars;
+		private int offset;
+		private int length;
+
+		void set(char[] chars, int offset, int length) {
+			this.chars = chars;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return chars[offset + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(chars, offset + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, offset, length);
+		}
+	}
+}
@@ -0,0 +1,804 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+/**
+ * {@link SessionStore} backed by a single append-only journal file.
+ *
+ * <pre>
+ * record := length(4) | crc32c(4) | type(1) | idLength(2) | id | payload
+ * </pre>
+ *
+ * A save appends one record: a {@link RatchetStateCodec#encodeCore core}
+ * record when the session's skipped-key store has not changed since its last
+ * save, a delta carrying the core and the keys stored and removed since then
+ * when it has, and a full snapshot when the store is new to the journal or the
+ * deltas since the last snapshot have grown larger than it. A session's newest
+ * snapshot, the deltas after it and a newer core record are live; an in-memory
+ * index holds their offsets, so opening the store scans the file once without
+ * decoding any state. A torn tail left by a crash is truncated on open; a
+ * damaged record with intact data after it fails the open instead, so no saved
+ * state is thrown away.
+ * <p>
+ * When dead records make up more than half of a journal larger than the
+ * compaction threshold, a background thread rewrites the live records to a
+ * new file that atomically replaces the old one. Saves keep appending to the
+ * live file meanwhile and are carried over when the files are swapped.
+ */
+public class FileSessionStore implements SessionStore {
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+	static final byte SNAPSHOT = 1;
+	static final byte CORE = 2;
+	static final byte DELETE = 3;
+	static final byte DELTA = 4;
+
+	// length + crc + type + idLength
+	private static final int RECORD_HEADER = 4 + 4 + 1 + 2;
+	private static final int MAX_RECORD = 64 << 20;
+	private static final int SCAN_BUFFER = 1 << 20;
+
+	private final Path path;
+	private final boolean syncOnWrite;
+	private final long compactionThreshold;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Held for a whole compaction; taken before lock.
+	private final ReentrantLock compactLock = new ReentrantLock();
+	private final Map<String, Entry> index = new HashMap<>();
+	private final CRC32C crc = new CRC32C();
+
+	private FileChannel channel;
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+	private long end;
+	private long liveBytes;
+	private long compactions;
+	private boolean compactionQueued;
+	private Executor compactionExecutor;
+	private ExecutorService ownedCompactionExecutor;
+	private volatile Supplier<SkippedKeyStore> skippedKeys = SkippedKeyStore::new;
+
+	private static final class Entry {
+		final int idLength;
+		long snapshotPos;
+		int snapshotLength;
+		// Positions and lengths of the deltas after the snapshot, oldest first.
+		final List<long[]> deltas = new ArrayList<>();
+		long deltaBytes;
+		long corePos = -1;
+		int coreLength;
+		// Store whose contents the journal reflects, and its modCount then.
+		WeakReference<SkippedKeyStore> store;
+		long storeModCount;
+
+		Entry(int idLength) {
+			this.idLength = idLength;
+		}
+
+		long liveBytes() {
+			return snapshotLength + deltaBytes + (corePos < 0 ? 0 : coreLength);
+		}
+
+		void snapshot(long pos, int length) {
+			snapshotPos = pos;
+			snapshotLength = length;
+			deltas.clear();
+			deltaBytes = 0;
+			corePos = -1;
+		}
+
+		void delta(long pos, int length) {
+			deltas.add(new long[]{pos, length});
+			deltaBytes += length;
+			corePos = -1;
+		}
+
+		/**
+		 * Copy of the record positions, for reading outside the lock.
+		 */
+		Entry positions() {
+			Entry c = new Entry(idLength);
+			c.snapshotPos = snapshotPos;
+			c.snapshotLength = snapshotLength;
+			c.deltas.addAll(deltas);
+			c.deltaBytes = deltaBytes;
+			c.corePos = corePos;
+			c.coreLength = coreLength;
+			return c;
+		}
+
+		/**
+		 * Moves the records to a compacted journal: everything before
+		 * {@code cutoff} was folded into the snapshot at {@code pos}, and
+		 * later records moved by {@code shift}.
+		 */
+		void rebase(long cutoff, long shift, long pos, int length) {
+			if (snapshotPos >= cutoff) {
+				shift(shift);
+				return;
+			}
+			List<long[]> later = new ArrayList<>();
+			for (long[] d : deltas) {
+				if (d[0] >= cutoff) {
+					later.add(new long[]{d[0] + shift, d[1]});
+				}
+			}
+			long laterCore = corePos >= cutoff ? corePos + shift : -1;
+			snapshot(pos, length);
+			for (long[] d : later) {
+				delta(d[0], (int) d[1]);
+			}
+			corePos = laterCore;
+		}
+
+		void shift(long shift) {
+			snapshotPos += shift;
+			for (long[] d : deltas) {
+				d[0] += shift;
+			}
+			if (corePos >= 0) {
+				corePos += shift;
+			}
+		}
+
+		void track(SkippedKeyStore skipped) {
+			store = new WeakReference<>(skipped);
+			storeModCount = skipped.modCount();
+			skipped.startChangeLog();
+		}
+	}
+
+	/**
+	 * Opens or creates the journal at {@code path} without forcing each write
+	 * to disk; call {@link #flush()} at durability points.
+	 */
+	public FileSessionStore(Path path) {
+		this(path, false, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * @param syncOnWrite
+	 *            force every appended record to stable storage
+	 * @param compactionThreshold
+	 *            journal size in bytes below which compaction never runs
+	 */
+	public FileSessionStore(Path path, boolean syncOnWrite, long compactionThreshold) {
+		this.path = path;
+		this.syncOnWrite = syncOnWrite;
+		this.compactionThreshold = compactionThreshold;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open session journal " + path, e);
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			closeAfter(e);
+			throw new UncheckedIOException("Cannot open session journal " + path, e);
+		} catch (RuntimeException e) {
+			closeAfter(e);
+			throw e;
+		}
+	}
+
+	private void closeAfter(Exception failure) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Creates the skipped-key store of every state loaded from now on, so
+	 * custom {@link SkippedKeyStore} limits survive a save and load. The
+	 * default uses {@link SkippedKeyStore#SkippedKeyStore()}.
+	 */
+	public void setSkippedKeyStores(Supplier<SkippedKeyStore> skippedKeys) {
+		this.skippedKeys = skippedKeys;
+	}
+
+	/**
+	 * Runs automatic compactions on {@code executor}, which the caller keeps
+	 * ownership of. By default a daemon thread is started on the first
+	 * compaction and stopped by {@link #close()}.
+	 */
+	public void setCompactionExecutor(Executor executor) {
+		lock.lock();
+		try {
+			this.compactionExecutor = executor;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void save(String sessionId, RatchetState state) {
+		byte[] id = idBytes(sessionId);
+		SkippedKeyStore store = state.skipped_message_keys;
+		lock.lock();
+		try {
+			Entry e = index.get(sessionId);
+			List<SkippedKeyStore.Change> changes = e != null && e.store != null && e.store.get() == store
+					? store.changesSince(e.storeModCount)
+					: null;
+			if (changes != null && changes.isEmpty()) {
+				long pos = append(CORE, id, RatchetStateCodec.encodeCore(state));
+				liveBytes -= e.liveBytes();
+				e.corePos = pos;
+				e.coreLength = (int) (end - pos);
+			} else if (changes != null && e.deltaBytes < e.snapshotLength) {
+				long pos = append(DELTA, id, RatchetStateCodec.encodeDelta(state, changes));
+				liveBytes -= e.liveBytes();
+				e.delta(pos, (int) (end - pos));
+				e.track(store);
+			} else {
+				long pos = append(SNAPSHOT, id, RatchetStateCodec.encode(state));
+				if (e == null) {
+					e = new Entry(id.length);
+					index.put(sessionId, e);
+				} else {
+					liveBytes -= e.liveBytes();
+				}
+				e.snapshot(pos, (int) (end - pos));
+				e.track(store);
+			}
+			liveBytes += e.liveBytes();
+			maybeCompact();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public RatchetState load(String sessionId) {
+		lock.lock();
+		try {
+			Entry e = index.get(sessionId);
+			if (e == null) {
+				return null;
+			}
+			RatchetState state = replay(e);
+			e.track(state.skipped_message_keys);
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		lock.lock();
+		try {
+			Entry e = index.remove(sessionId);
+			if (e != null) {
+				append(DELETE, idBytes(sessionId), new byte[0]);
+				liveBytes -= e.liveBytes();
+				maybeCompact();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String sessionId) {
+		lock.lock();
+		try {
+			return index.containsKey(sessionId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return index.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<String> sessionIds() {
+		lock.lock();
+		try {
+			return new HashSet<>(index.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() {
+		lock.lock();
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a running compaction, then closes the journal.
+	 */
+	@Override
+	public void close() {
+		compactLock.lock();
+		try {
+			lock.lock();
+			try {
+				if (ownedCompactionExecutor != null) {
+					ownedCompactionExecutor.shutdown();
+				}
+				channel.force(false);
+				channel.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			compactLock.unlock();
+		}
+	}
+
+	/**
+	 * Current journal size in bytes.
+	 */
+	public long journalBytes() {
+		lock.lock();
+		try {
+			return end;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Bytes of the journal still referenced by the index.
+	 */
+	public long liveBytes() {
+		lock.lock();
+		try {
+			return liveBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long compactionCount() {
+		lock.lock();
+		try {
+			return compactions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the journal so it holds one snapshot per live session. Only
+	 * the final swap holds the store lock; saves made while the live records
+	 * are rewritten are copied over at the swap.
+	 */
+	public void compact() {
+		compactLock.lock();
+		try {
+			Map<Entry, Entry> atCutoff = new IdentityHashMap<>();
+			Map<Entry, String> ids = new IdentityHashMap<>();
+			long cutoff;
+			lock.lock();
+			try {
+				if (!channel.isOpen()) {
+					return;
+				}
+				cutoff = end;
+				for (Map.Entry<String, Entry> me : index.entrySet()) {
+					atCutoff.put(me.getValue(), me.getValue().positions());
+					ids.put(me.getValue(), me.getKey());
+				}
+			} finally {
+				lock.unlock();
+			}
+			compact(cutoff, atCutoff, ids);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Session journal compaction failed", e);
+		} finally {
+			compactLock.unlock();
+		}
+	}
+
+	private void compact(long cutoff, Map<Entry, Entry> atCutoff, Map<Entry, String> ids) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+		CRC32C recordCrc = new CRC32C();
+		ByteBuffer out = ByteBuffer.allocate(SCAN_BUFFER);
+		// New snapshot positions, applied to the index only once the new file
+		// is in place.
+		Map<Entry, long[]> moved = new IdentityHashMap<>();
+		long pos = 0;
+		long written = 0;
+		try (FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			// Records before the cutoff never change, so they are read without
+			// the lock while saves append after it.
+			for (Map.Entry<Entry, Entry> me : atCutoff.entrySet()) {
+				Entry e = me.getValue();
+				ByteBuffer record;
+				if (e.corePos < 0 && e.deltas.isEmpty()) {
+					record = read(e.snapshotPos, e.snapshotLength);
+				} else {
+					byte[] payload = RatchetStateCodec.encode(replay(e));
+					byte[] id = idBytes(ids.get(me.getKey()));
+					record = encodeRecord(ByteBuffer.allocate(RECORD_HEADER + id.length + payload.length),
+							recordCrc, SNAPSHOT, id, payload);
+				}
+				if (out.remaining() < record.remaining()) {
+					written += flushTo(target, out, written);
+					if (out.capacity() < record.remaining()) {
+						out = ByteBuffer.allocate(record.remaining());
+					}
+				}
+				moved.put(me.getKey(), new long[]{pos, record.remaining()});
+				pos += record.remaining();
+				out.put(record);
+			}
+			flushTo(target, out, written);
+			lock.lock();
+			try {
+				long shift = pos - cutoff;
+				long tail = end - cutoff;
+				for (long copied = 0; copied < tail;) {
+					copied += channel.transferTo(cutoff + copied, tail - copied, target.position(pos + copied));
+				}
+				target.force(true);
+				target.close();
+				channel.close();
+				try {
+					Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				liveBytes = 0;
+				for (Entry e : index.values()) {
+					long[] m = moved.get(e);
+					if (m != null) {
+						e.rebase(cutoff, shift, m[0], (int) m[1]);
+					} else {
+						e.shift(shift);
+					}
+					liveBytes += e.liveBytes();
+				}
+				end = pos + tail;
+				compactions++;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Queues a compaction once dead records make up more than half of a
+	 * journal over the threshold. Called with the lock held.
+	 */
+	private void maybeCompact() {
+		if (compactionQueued || end <= compactionThreshold || end <= 2 * liveBytes || !channel.isOpen()) {
+			return;
+		}
+		Executor executor = compactionExecutor;
+		if (executor == null) {
+			if (ownedCompactionExecutor == null) {
+				ownedCompactionExecutor = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "talos-journal-compaction");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			executor = ownedCompactionExecutor;
+		}
+		compactionQueued = true;
+		executor.execute(() -> {
+			try {
+				compact();
+			} finally {
+				lock.lock();
+				try {
+					compactionQueued = false;
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
+	}
+
+	private long append(byte type, byte[] id, byte[] payload) {
+		ByteBuffer record = encodeRecord(type, id, payload);
+		long pos = end;
+		try {
+			writeFully(channel, record, pos);
+			if (syncOnWrite) {
+				channel.force(false);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Session journal write failed", e);
+		}
+		end = pos + record.limit();
+		return pos;
+	}
+
+	private ByteBuffer encodeRecord(byte type, byte[] id, byte[] payload) {
+		int length = 1 + 2 + id.length + payload.length;
+		if (writeBuffer.capacity() < 8 + length) {
+			writeBuffer = ByteBuffer.allocate(Math.max(8 + length, writeBuffer.capacity() * 2));
+		}
+		return encodeRecord(writeBuffer, crc, type, id, payload);
+	}
+
+	private static ByteBuffer encodeRecord(ByteBuffer b, CRC32C crc, byte type, byte[] id, byte[] payload) {
+		int length = 1 + 2 + id.length + payload.length;
+		b.clear();
+		b.putInt(length);
+		b.putInt(0);
+		b.put(type);
+		b.putShort((short) id.length);
+		b.put(id);
+		b.put(payload);
+		crc.reset();
+		crc.update(b.array(), 8, length);
+		b.putInt(4, (int) crc.getValue());
+		return b.flip();
+	}
+
+	/**
+	 * The state {@code e} describes: its snapshot with every later record
+	 * applied.
+	 */
+	private RatchetState replay(Entry e) {
+		RatchetState state = RatchetStateCodec.decode(readPayload(e, e.snapshotPos, e.snapshotLength), skippedKeys);
+		for (long[] d : e.deltas) {
+			state = RatchetStateCodec.decode(readPayload(e, d[0], (int) d[1]), state);
+		}
+		if (e.corePos >= 0) {
+			state = RatchetStateCodec.decode(readPayload(e, e.corePos, e.coreLength), state);
+		}
+		return state;
+	}
+
+	private byte[] readPayload(Entry e, long recordPos, int recordLength) {
+		int skip = RECORD_HEADER + e.idLength;
+		ByteBuffer b = read(recordPos + skip, recordLength - skip);
+		return b.array();
+	}
+
+	private ByteBuffer read(long pos, int length) {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		try {
+			while (b.hasRemaining()) {
+				if (channel.read(b, pos + b.position()) < 0) {
+					throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Session journal truncated");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Session journal read failed", e);
+		}
+		return b.flip();
+	}
+
+	private static int flushTo(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+		b.flip();
+		int n = b.remaining();
+		writeFully(ch, b, pos);
+		b.clear();
+		return n;
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += ch.write(b, pos);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the journal and truncates a torn tail.
+	 *
+	 * @throws TalosError if a damaged record is not the tail
+	 */
+	private void recover() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER).flip();
+		long readPos = 0;
+		long pos = 0;
+		int badLength = -1;
+		boolean pastEnd = false;
+		while (true) {
+			if (buf.remaining() < 8) {
+				readPos = fill(buf, readPos);
+				if (buf.remaining() < 8) {
+					break;
+				}
+			}
+			int length = buf.getInt(buf.position());
+			if (length < 3 || length > MAX_RECORD) {
+				badLength = length;
+				break;
+			}
+			if (buf.remaining() < 8 + length) {
+				if (buf.capacity() < 8 + length) {
+					ByteBuffer bigger = ByteBuffer.allocate(8 + length);
+					bigger.put(buf).flip();
+					buf = bigger;
+				}
+				readPos = fill(buf, readPos);
+				if (buf.remaining() < 8 + length) {
+					pastEnd = true;
+					break;
+				}
+			}
+			int p = buf.position();
+			crc.reset();
+			crc.update(buf.array(), p + 8, length);
+			if ((int) crc.getValue() != buf.getInt(p + 4)) {
+				badLength = length;
+				break;
+			}
+			byte type = buf.get(p + 8);
+			int idLength = buf.getShort(p + 9) & 0xFFFF;
+			if (3 + idLength > length) {
+				badLength = length;
+				break;
+			}
+			String id = new String(buf.array(), p + RECORD_HEADER, idLength, StandardCharsets.UTF_8);
+			apply(type, id, idLength, pos, 8 + length);
+			pos += 8 + length;
+			buf.position(p + 8 + length);
+		}
+		// A record running past the end is an interrupted append only if no
+		// intact record follows its header; otherwise its length is damaged.
+		if ((badLength >= 0 && !isTornTail(pos, badLength)) || (pastEnd && recordFollows(pos + 8))) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Session journal " + path
+					+ " is corrupt at offset " + pos);
+		}
+		if (channel.size() > pos) {
+			channel.truncate(pos);
+		}
+		end = pos;
+		liveBytes = 0;
+		for (Entry e : index.values()) {
+			liveBytes += e.liveBytes();
+		}
+	}
+
+	/**
+	 * True if the complete but damaged record at {@code pos} is what an
+	 * interrupted append leaves behind: the last record in the file, or
+	 * followed by nothing but zeros.
+	 */
+	private boolean isTornTail(long pos, int length) throws IOException {
+		long size = channel.size();
+		if (length >= 3 && length <= MAX_RECORD && pos + 8 + length == size) {
+			return true;
+		}
+		ByteBuffer b = ByteBuffer.allocate(SCAN_BUFFER);
+		for (long p = pos; p < size; p += b.position()) {
+			b.clear();
+			if (channel.read(b, p) < 0) {
+				break;
+			}
+			for (int i = 0; i < b.position(); i++) {
+				if (b.get(i) != 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * True if an intact record starts anywhere from {@code from} to the end
+	 * of the file. Only called on a tail shorter than the longest record.
+	 */
+	private boolean recordFollows(long from) throws IOException {
+		long size = channel.size();
+		if (size - from < RECORD_HEADER) {
+			return false;
+		}
+		ByteBuffer tail = read(from, (int) (size - from));
+		byte[] a = tail.array();
+		for (int p = 0; p + RECORD_HEADER <= a.length; p++) {
+			int length = tail.getInt(p);
+			if (length < 3 || length > a.length - p - 8) {
+				continue;
+			}
+			byte type = a[p + 8];
+			int idLength = tail.getShort(p + 9) & 0xFFFF;
+			if (type < SNAPSHOT || type > DELTA || 3 + idLength > length) {
+				continue;
+			}
+			crc.reset();
+			crc.update(a, p + 8, length);
+			if ((int) crc.getValue() == tail.getInt(p + 4)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long fill(ByteBuffer buf, long readPos) throws IOException {
+		buf.compact();
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, readPos);
+			if (n < 0) {
+				break;
+			}
+			readPos += n;
+		}
+		buf.flip();
+		return readPos;
+	}
+
+	private void apply(byte type, String id, int idLength, long pos, int length) {
+		switch (type) {
+			case SNAPSHOT : {
+				index.computeIfAbsent(id, k -> new Entry(idLength)).snapshot(pos, length);
+				break;
+			}
+			case DELTA : {
+				Entry e = index.get(id);
+				if (e != null) {
+					e.delta(pos, length);
+				}
+				break;
+			}
+			case CORE : {
+				Entry e = index.get(id);
+				if (e != null) {
+					e.corePos = pos;
+					e.coreLength = length;
+				}
+				break;
+			}
+			case DELETE :
+				index.remove(id);
+				break;
+			default :
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Unknown session journal record " + type);
+		}
+	}
+
+	private static byte[] idBytes(String sessionId) {
+		byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+		if (id.length > 0xFFFF) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Session id too long");
+		}
+		return id;
+	}
+}
@@ -0,0 +1,228 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.metrics.TalosMetrics;
+
+/**
+ * Cheap structural checks on inbound frames, run before any key material is
+ * touched: frame size, base64url alphabet, required envelope fields, key and
+ * nonce lengths and counter ranges. Each string is scanned once.
+ * <p>
+ * Rejections throw one preallocated, stackless {@link TalosError}
+ * ({@link TalosErrorCode#TALOS_FRAME_INVALID}) per {@link Reason}, so junk
+ * traffic costs no exception construction, and are counted by reason here
+ * and through {@link TalosMetrics#recordFrameRejected}. Thread-safe; sessions
+ * share {@link #DEFAULT} unless given their own.
+ */
+public final class FrameValidator {
+	/**
+	 * Largest decoded frame (JSON envelope or binary frame) accepted.
+	 */
+	public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+	public static final FrameValidator DEFAULT = new FrameValidator(DEFAULT_MAX_FRAME_BYTES);
+
+	public enum Reason {
+		TOO_LARGE("Frame too large"),
+		NOT_BASE64("Frame is not base64url"),
+		BAD_JSON("Invalid wire message JSON"),
+		MISSING_FIELD("Missing or mistyped envelope field"),
+		BAD_KEY("Ratchet key must be 32 bytes"),
+		BAD_NONCE("Nonce must be 12 bytes"),
+		TOO_SHORT("Ciphertext too short"),
+		COUNTER_RANGE("Counter out of range"),
+		BAD_VERSION("Unsupported frame version"),
+		TRUNCATED("Truncated frame"),
+		TOO_MANY_SKIPPED("Too many skipped messages"),
+		KEY_UNAVAILABLE("Message key already used or unavailable"),
+		UNKNOWN_CODEC("Unsupported payload codec"),
+		BAD_PAYLOAD("Payload does not decode");
+
+		private final TalosError error;
+
+		Reason(String message) {
+			this.error = new TalosError(TalosErrorCode.TALOS_FRAME_INVALID, message, false);
+		}
+
+		/**
+		 * The shared error thrown for this reason.
+		 */
+		public TalosError error() {
+			return error;
+		}
+	}
+
+	private final int maxFrameBytes;
+	private final LongAdder[] rejected = new LongAdder[Reason.values().length];
+
+	public FrameValidator(int maxFrameBytes) {
+		if (maxFrameBytes < 1) {
+			throw new IllegalArgumentException("maxFrameBytes must be positive");
+		}
+		this.maxFrameBytes = maxFrameBytes;
+		for (int i = 0; i < rejected.length; i++) {
+			rejected[i] = new LongAdder();
+		}
+	}
+
+	public int maxFrameBytes() {
+		return maxFrameBytes;
+	}
+
+	/**
+	 * Counts a rejection and returns the error to throw.
+	 */
+	public TalosError reject(Reason reason) {
+		rejected[reason.ordinal()].increment();
+		TalosMetrics.current().recordFrameRejected(reason.name());
+		return reason.error;
+	}
+
+	public long rejectedCount(Reason reason) {
+		return rejected[reason.ordinal()].sum();
+	}
+
+	public Map<Reason, Long> rejectedCounts() {
+		Map<Reason, Long> counts = new EnumMap<>(Reason.class);
+		for (Reason r : Reason.values()) {
+			counts.put(r, rejected[r.ordinal()].sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Checks the size and alphabet of a base64url JSON wire message.
+	 *
+	 * @return the decoded length
+	 */
+	int checkWire(CharSequence wire) {
+		if (wire == null) {
+			throw reject(Reason.MISSING_FIELD);
+		}
+		if (wire.length() > maxWireChars()) {
+			throw reject(Reason.TOO_LARGE);
+		}
+		int decoded = base64Length(wire);
+		if (decoded < 0) {
+			throw reject(Reason.NOT_BASE64);
+		}
+		if (decoded > maxFrameBytes) {
+			throw reject(Reason.TOO_LARGE);
+		}
+		return decoded;
+	}
+
+	/**
+	 * Checks that a parsed envelope has a header with a 32-byte {@code dh},
+	 * non-negative int {@code n} and {@code pn} and an optional string
+	 * {@code c}, a 12-byte {@code nonce} and a
+	 * ciphertext holding at least a tag, all as base64url strings.
+	 */
+	void checkEnvelope(JsonNode envelope) {
+		if (envelope == null || !envelope.isObject()) {
+			throw reject(Reason.BAD_JSON);
+		}
+		JsonNode header = envelope.get("header");
+		if (header == null || !header.isObject()) {
+			throw reject(Reason.MISSING_FIELD);
+		}
+		JsonNode codec = header.get("c");
+		if (codec != null && !codec.isTextual()) {
+			throw reject(Reason.MISSING_FIELD);
+		}
+		checkBase64Field(header.get("dh"), RatchetFrame.DH_SIZE, RatchetFrame.DH_SIZE, Reason.BAD_KEY);
+		checkCounter(header.get("n"));
+		checkCounter(header.get("pn"));
+		checkBase64Field(envelope.get("nonce"), RatchetFrame.NONCE_SIZE, RatchetFrame.NONCE_SIZE, Reason.BAD_NONCE);
+		checkBase64Field(envelope.get("ciphertext"), RatchetFrame.TAG_SIZE, Integer.MAX_VALUE, Reason.TOO_SHORT);
+	}
+
+	/**
+	 * The registered codec named by a header's {@code "c"} field.
+	 */
+	PayloadCodec checkCodec(String id) {
+		PayloadCodec codec = PayloadCodecs.forId(id);
+		if (codec == null) {
+			throw reject(Reason.UNKNOWN_CODEC);
+		}
+		return codec;
+	}
+
+	/**
+	 * Checks the size of a binary frame; {@link RatchetFrame#read} checks the
+	 * layout.
+	 */
+	void checkBinary(int frameLength) {
+		if (frameLength > maxFrameBytes) {
+			throw reject(Reason.TOO_LARGE);
+		}
+	}
+
+	private int maxWireChars() {
+		// Unpadded encoding plus up to two padding characters.
+		long chars = (long) maxFrameBytes / 3 * 4 + 4;
+		return (int) Math.min(Integer.MAX_VALUE, chars);
+	}
+
+	private void checkBase64Field(JsonNode node, int minBytes, int maxBytes, Reason wrongLength) {
+		if (node == null || !node.isTextual()) {
+			throw reject(Reason.MISSING_FIELD);
+		}
+		checkBase64(node.textValue(), minBytes, maxBytes, wrongLength);
+	}
+
+	/**
+	 * Checks a base64url field value.
+	 *
+	 * @return the decoded length
+	 */
+	int checkBase64(CharSequence text, int minBytes, int maxBytes, Reason wrongLength) {
+		int decoded = base64Length(text);
+		if (decoded < 0) {
+			throw reject(Reason.NOT_BASE64);
+		}
+		if (decoded < minBytes || decoded > maxBytes) {
+			throw reject(wrongLength);
+		}
+		return decoded;
+	}
+
+	private void checkCounter(JsonNode node) {
+		if (node == null || !node.isIntegralNumber()) {
+			throw reject(Reason.MISSING_FIELD);
+		}
+		if (!node.canConvertToInt() || node.intValue() < 0) {
+			throw reject(Reason.COUNTER_RANGE);
+		}
+	}
+
+	/**
+	 * Decoded length of base64url {@code s}, allowing up to two trailing
+	 * {@code '='}, or -1 if {@code s} is not valid base64url.
+	 */
+	static int base64Length(CharSequence s) {
+		int len = s.length();
+		int end = len;
+		while (end > 0 && len - end < 2 && s.charAt(end - 1) == '=') {
+			end--;
+		}
+		for (int i = 0; i < end; i++) {
+			char c = s.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-'
+					|| c == '_')) {
+				return -1;
+			}
+		}
+		int rem = end % 4;
+		if (rem == 1 || (end < len && len % 4 != 0)) {
+			return -1;
+		}
+		return end / 4 * 3 + (rem == 0 ? 0 : rem - 1);
+	}
+}
@@ -0,0 +1,503 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+/**
+ * {@link SessionStore} keeping each session in a fixed-size slot of a
+ * memory-mapped segment file, so idle sessions cost page cache rather than
+ * heap. The heap holds only the id-to-slot index.
+ *
+ * <pre>
+ * slot := copy copy
+ * copy := generation(8) | status(1) | idLength(1) | id(64) | flags(1)
+ *         | skippedCount(1) | n_s(4) | n_r(4) | pn(4) | keys(6 x 32)
+ *         | skipped(4 x (dh(32) | n(4) | mk(32) | storedAt(8))) | crc32c(4)
+ * </pre>
+ *
+ * Keys are fixed at 32 bytes and up to {@link #INLINE_SKIPPED_KEYS} skipped
+ * message keys live in the slot. A session with more skipped keys is marked
+ * as overflowing and its state is kept in a {@link FileSessionStore} journal
+ * next to the segments until it fits inline again.
+ * <p>
+ * Each save writes generation {@code g + 1} to the copy the newest
+ * generation {@code g} is not in, so a save torn by a crash leaves the
+ * previous state intact; a delete writes a free marker the same way. On
+ * open, each slot takes its newest copy that passes its checksum, and slots
+ * with none are free.
+ * <p>
+ * Use with {@link RatchetSessionManager#RatchetSessionManager(SessionStore, int)}
+ * to keep only recently used sessions on the heap.
+ */
+public class MappedSessionStore implements SessionStore {
+	public static final int MAX_ID_BYTES = 64;
+	public static final int INLINE_SKIPPED_KEYS = 4;
+	public static final int DEFAULT_SLOTS_PER_SEGMENT = 1 << 16;
+
+	private static final int KEY_SIZE = 32;
+	private static final int KEY_FIELDS = 6;
+	private static final int SKIPPED_ENTRY = KEY_SIZE + 4 + KEY_SIZE + 8;
+
+	private static final byte FREE = 0;
+	private static final byte INLINE = 1;
+	private static final byte OVERFLOW = 2;
+
+	private static final int GENERATION = 0;
+	private static final int STATUS = GENERATION + 8;
+	private static final int ID_LENGTH = STATUS + 1;
+	private static final int ID = ID_LENGTH + 1;
+	private static final int FLAGS = ID + MAX_ID_BYTES;
+	private static final int SKIPPED_COUNT = FLAGS + 1;
+	private static final int COUNTERS = SKIPPED_COUNT + 1;
+	private static final int KEYS = COUNTERS + 12;
+	private static final int SKIPPED = KEYS + KEY_FIELDS * KEY_SIZE;
+	private static final int CRC = SKIPPED + INLINE_SKIPPED_KEYS * SKIPPED_ENTRY;
+	static final int COPY_SIZE = CRC + 4;
+	static final int SLOT_SIZE = 2 * COPY_SIZE;
+
+	private final Path dir;
+	private final int slotsPerSegment;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, Integer> index = new HashMap<>();
+	private final Set<String> overflowing = new HashSet<>();
+	private final List<FileChannel> channels = new ArrayList<>();
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final FileSessionStore overflow;
+	private final CRC32C crc = new CRC32C();
+	private final byte[] slot = new byte[COPY_SIZE];
+	private volatile Supplier<SkippedKeyStore> skippedKeys = SkippedKeyStore::new;
+
+	// Newest generation written to each slot.
+	private long[] generations = new long[0];
+	private int[] free = new int[64];
+	private int freeCount;
+
+	public MappedSessionStore(Path dir) {
+		this(dir, DEFAULT_SLOTS_PER_SEGMENT);
+	}
+
+	public MappedSessionStore(Path dir, int slotsPerSegment) {
+		if (slotsPerSegment < 1 || (long) slotsPerSegment * SLOT_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid segment size");
+		}
+		this.dir = dir;
+		this.slotsPerSegment = slotsPerSegment;
+		try {
+			Files.createDirectories(dir);
+			for (int i = 0; Files.exists(segmentPath(i)); i++) {
+				mapSegment(i);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open session segments in " + dir, e);
+		}
+		this.overflow = new FileSessionStore(dir.resolve("overflow.journal"));
+		recover();
+	}
+
+	/**
+	 * Creates the skipped-key store of every state loaded from now on, so
+	 * custom {@link SkippedKeyStore} limits survive a save and load. The
+	 * default uses {@link SkippedKeyStore#SkippedKeyStore()}.
+	 */
+	public void setSkippedKeyStores(Supplier<SkippedKeyStore> skippedKeys) {
+		this.skippedKeys = skippedKeys;
+		overflow.setSkippedKeyStores(skippedKeys);
+	}
+
+	@Override
+	public void save(String sessionId, RatchetState state) {
+		byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+		if (id.length > MAX_ID_BYTES) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Session id longer than " + MAX_ID_BYTES
+					+ " bytes");
+		}
+		lock.lock();
+		try {
+			Integer s = index.get(sessionId);
+			int slotIndex = s != null ? s : allocate();
+			if (fitsInline(state)) {
+				writeInline(slotIndex, id, state);
+				if (overflowing.remove(sessionId)) {
+					overflow.delete(sessionId);
+				}
+			} else {
+				overflow.save(sessionId, state);
+				writeOverflowMarker(slotIndex, id);
+				overflowing.add(sessionId);
+			}
+			index.put(sessionId, slotIndex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public RatchetState load(String sessionId) {
+		lock.lock();
+		try {
+			Integer s = index.get(sessionId);
+			if (s == null) {
+				return null;
+			}
+			if (overflowing.contains(sessionId)) {
+				return overflow.load(sessionId);
+			}
+			return readInline(s);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		lock.lock();
+		try {
+			Integer s = index.remove(sessionId);
+			if (s == null) {
+				return;
+			}
+			if (overflowing.remove(sessionId)) {
+				overflow.delete(sessionId);
+			}
+			Arrays.fill(slot, (byte) 0);
+			slot[STATUS] = FREE;
+			store(s);
+			// The free marker is durable; wipe the keys in the older copy.
+			segment(s).put(copyOffset(s, generations[s] - 1), slot);
+			release(s);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String sessionId) {
+		lock.lock();
+		try {
+			return index.containsKey(sessionId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return index.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<String> sessionIds() {
+		lock.lock();
+		try {
+			return new HashSet<>(index.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sessions whose skipped keys did not fit in their slot.
+	 */
+	public int overflowCount() {
+		lock.lock();
+		try {
+			return overflowing.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int segmentCount() {
+		lock.lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() {
+		lock.lock();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			overflow.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			flush();
+			for (FileChannel ch : channels) {
+				ch.close();
+			}
+			overflow.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static boolean fitsInline(RatchetState state) {
+		byte[][] keys = keys(state);
+		for (byte[] k : keys) {
+			if (k != null && k.length != KEY_SIZE) {
+				return false;
+			}
+		}
+		SkippedKeyStore skipped = state.skipped_message_keys;
+		if (skipped.size() > INLINE_SKIPPED_KEYS) {
+			return false;
+		}
+		boolean[] fits = {true};
+		skipped.forEach((dh, n, mk, storedAt) -> fits[0] &= dh.length == KEY_SIZE && mk.length == KEY_SIZE);
+		return fits[0];
+	}
+
+	private void writeInline(int s, byte[] id, RatchetState state) {
+		Arrays.fill(slot, (byte) 0);
+		slot[STATUS] = INLINE;
+		writeId(id);
+		byte[][] keys = keys(state);
+		int flags = 0;
+		for (int i = 0; i < KEY_FIELDS; i++) {
+			if (keys[i] != null) {
+				flags |= 1 << i;
+				System.arraycopy(keys[i], 0, slot, KEYS + i * KEY_SIZE, KEY_SIZE);
+			}
+		}
+		slot[FLAGS] = (byte) flags;
+		putInt(COUNTERS, state.n_s);
+		putInt(COUNTERS + 4, state.n_r);
+		putInt(COUNTERS + 8, state.pn);
+
+		int[] pos = {SKIPPED};
+		state.skipped_message_keys.forEach((dh, n, mk, storedAt) -> {
+			System.arraycopy(dh, 0, slot, pos[0], KEY_SIZE);
+			putInt(pos[0] + KEY_SIZE, n);
+			System.arraycopy(mk, 0, slot, pos[0] + KEY_SIZE + 4, KEY_SIZE);
+			putLong(pos[0] + 2 * KEY_SIZE + 4, storedAt);
+			pos[0] += SKIPPED_ENTRY;
+		});
+		slot[SKIPPED_COUNT] = (byte) state.skipped_message_keys.size();
+		store(s);
+	}
+
+	private void writeOverflowMarker(int s, byte[] id) {
+		Arrays.fill(slot, (byte) 0);
+		slot[STATUS] = OVERFLOW;
+		writeId(id);
+		store(s);
+	}
+
+	private RatchetState readInline(int s) {
+		segment(s).get(copyOffset(s, generations[s]), slot);
+		RatchetState state = new RatchetState();
+		state.skipped_message_keys = skippedKeys.get();
+		int flags = slot[FLAGS];
+		byte[][] keys = new byte[KEY_FIELDS][];
+		for (int i = 0; i < KEY_FIELDS; i++) {
+			if ((flags & (1 << i)) != 0) {
+				keys[i] = Arrays.copyOfRange(slot, KEYS + i * KEY_SIZE, KEYS + (i + 1) * KEY_SIZE);
+			}
+		}
+		state.dh_private = keys[0];
+		state.dh_public = keys[1];
+		state.dh_remote = keys[2];
+		state.root_key = keys[3];
+		state.chain_key_s = keys[4];
+		state.chain_key_r = keys[5];
+		state.n_s = getInt(COUNTERS);
+		state.n_r = getInt(COUNTERS + 4);
+		state.pn = getInt(COUNTERS + 8);
+
+		byte[] chain = null;
+		for (int i = 0, pos = SKIPPED; i < slot[SKIPPED_COUNT]; i++, pos += SKIPPED_ENTRY) {
+			byte[] dh = Arrays.copyOfRange(slot, pos, pos + KEY_SIZE);
+			// Share one array per chain, as the live store does.
+			if (chain != null && Arrays.equals(chain, dh)) {
+				dh = chain;
+			}
+			chain = dh;
+			byte[] mk = Arrays.copyOfRange(slot, pos + KEY_SIZE + 4, pos + 2 * KEY_SIZE + 4);
+			state.skipped_message_keys.restore(dh, getInt(pos + KEY_SIZE), mk, getLong(pos + 2 * KEY_SIZE + 4));
+		}
+		Arrays.fill(slot, (byte) 0);
+		return state;
+	}
+
+	private void writeId(byte[] id) {
+		slot[ID_LENGTH] = (byte) id.length;
+		System.arraycopy(id, 0, slot, ID, id.length);
+	}
+
+	/**
+	 * Writes the copy in {@code slot} as the next generation of slot
+	 * {@code s}, leaving the current one alone.
+	 */
+	private void store(int s) {
+		long generation = generations[s] + 1;
+		putLong(GENERATION, generation);
+		crc.reset();
+		crc.update(slot, 0, CRC);
+		putInt(CRC, (int) crc.getValue());
+		segment(s).put(copyOffset(s, generation), slot);
+		generations[s] = generation;
+		Arrays.fill(slot, (byte) 0);
+	}
+
+	private void recover() {
+		Set<String> overflowIds = overflow.sessionIds();
+		for (int s = segments.size() * slotsPerSegment - 1; s >= 0; s--) {
+			long newest = 0;
+			for (int copy = 0; copy < 2; copy++) {
+				segment(s).get(offset(s) + copy * COPY_SIZE, slot);
+				if (isValidCopy(copy) && getLong(GENERATION) > newest) {
+					newest = getLong(GENERATION);
+				}
+			}
+			generations[s] = newest;
+			if (newest == 0) {
+				release(s);
+				continue;
+			}
+			segment(s).get(copyOffset(s, newest), slot);
+			byte status = slot[STATUS];
+			if (status == FREE) {
+				release(s);
+				continue;
+			}
+			String id = new String(slot, ID, slot[ID_LENGTH] & 0xFF, StandardCharsets.UTF_8);
+			if (status == OVERFLOW && !overflowIds.contains(id)) {
+				// The journal entry never made it to disk.
+				release(s);
+				continue;
+			}
+			index.put(id, s);
+			if (status == OVERFLOW) {
+				overflowing.add(id);
+			}
+		}
+		for (String id : overflowIds) {
+			if (!overflowing.contains(id)) {
+				overflow.delete(id);
+			}
+		}
+		Arrays.fill(slot, (byte) 0);
+	}
+
+	/**
+	 * True if the copy in {@code slot}, read from position {@code copy}, is
+	 * intact and belongs there.
+	 */
+	private boolean isValidCopy(int copy) {
+		crc.reset();
+		crc.update(slot, 0, CRC);
+		long generation = getLong(GENERATION);
+		return (int) crc.getValue() == getInt(CRC) && generation > 0 && (generation & 1) == copy
+				&& (slot[ID_LENGTH] & 0xFF) <= MAX_ID_BYTES;
+	}
+
+	private int allocate() {
+		if (freeCount == 0) {
+			try {
+				mapSegment(segments.size());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot grow session segments in " + dir, e);
+			}
+			for (int s = segments.size() * slotsPerSegment - 1; s >= (segments.size() - 1) * slotsPerSegment; s--) {
+				release(s);
+			}
+		}
+		return free[--freeCount];
+	}
+
+	private void release(int s) {
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = s;
+	}
+
+	private void mapSegment(int i) throws IOException {
+		FileChannel ch = FileChannel.open(segmentPath(i), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channels.add(ch);
+		segments.add(ch.map(FileChannel.MapMode.READ_WRITE, 0, (long) slotsPerSegment * SLOT_SIZE));
+		generations = Arrays.copyOf(generations, segments.size() * slotsPerSegment);
+	}
+
+	private Path segmentPath(int i) {
+		return dir.resolve("segment-" + i + ".dat");
+	}
+
+	private MappedByteBuffer segment(int s) {
+		return segments.get(s / slotsPerSegment);
+	}
+
+	private int offset(int s) {
+		return (s % slotsPerSegment) * SLOT_SIZE;
+	}
+
+	private int copyOffset(int s, long generation) {
+		return offset(s) + (int) (generation & 1) * COPY_SIZE;
+	}
+
+	private static byte[][] keys(RatchetState state) {
+		return new byte[][]{state.dh_private, state.dh_public, state.dh_remote, state.root_key, state.chain_key_s,
+				state.chain_key_r};
+	}
+
+	private void putInt(int pos, int v) {
+		slot[pos] = (byte) (v >>> 24);
+		slot[pos + 1] = (byte) (v >>> 16);
+		slot[pos + 2] = (byte) (v >>> 8);
+		slot[pos + 3] = (byte) v;
+	}
+
+	private void putLong(int pos, long v) {
+		putInt(pos, (int) (v >>> 32));
+		putInt(pos + 4, (int) v);
+	}
+
+	private int getInt(int pos) {
+		return (slot[pos] & 0xFF) << 24 | (slot[pos + 1] & 0xFF) << 16 | (slot[pos + 2] & 0xFF) << 8
+				| (slot[pos + 3] & 0xFF);
+	}
+
+	private long getLong(int pos) {
+		return (long) getInt(pos) << 32 | (getInt(pos + 4) & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,32 @@
+package com.talosprotocol.talos.ratchet;
+
+/**
+ * Transforms a JSON message's plaintext before encryption, typically to
+ * compress it. A sender applies its codec through
+ * {@link RatchetSession#setPayloadCodec}; the codec's {@link #id} then goes
+ * into the header as {@code "c"}, which is part of the AAD, and the receiver
+ * looks it up in {@link PayloadCodecs}. Implementations must be thread-safe.
+ */
+public interface PayloadCodec {
+	/**
+	 * Short name carried in the header: 1 to 32 characters from
+	 * {@code [a-z0-9-]}.
+	 */
+	String id();
+
+	/**
+	 * Encodes {@code payload}, or returns null to send it as is, e.g. because
+	 * it is too small or would not shrink.
+	 */
+	byte[] encode(byte[] payload);
+
+	/**
+	 * Decodes {@code data[off, off + len)}, producing at most
+	 * {@code maxLength} bytes.
+	 *
+	 * @throws RuntimeException
+	 *             if the data is malformed or decodes to more than
+	 *             {@code maxLength} bytes
+	 */
+	byte[] decode(byte[] data, int off, int len, int maxLength);
+}
@@ -0,0 +1,82 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The codecs a receiver accepts, by {@link PayloadCodec#id}, and negotiation
+ * of the one to send with. {@link DeflateCodec} is always registered.
+ * <p>
+ * Peers that do not know the {@code "c"} header field would authenticate it
+ * and return the encoded bytes as plaintext, so only send with a codec both
+ * sides advertise.
+ */
+public final class PayloadCodecs {
+	/**
+	 * Prefix of the feature flag a peer advertises for each codec it accepts.
+	 */
+	public static final String FEATURE_PREFIX = "ratchet-codec-";
+
+	private static final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+
+	static {
+		register(DeflateCodec.DEFAULT);
+	}
+
+	private PayloadCodecs() {
+	}
+
+	/**
+	 * Accepts messages encoded with {@code codec}, replacing any codec with
+	 * the same id.
+	 */
+	public static void register(PayloadCodec codec) {
+		String id = codec.id();
+		if (!isValidId(id)) {
+			throw new IllegalArgumentException("Invalid codec id: " + id);
+		}
+		codecs.put(id, codec);
+	}
+
+	/**
+	 * The registered codec named {@code id}, or null.
+	 */
+	public static PayloadCodec forId(String id) {
+		return codecs.get(id);
+	}
+
+	/**
+	 * Feature flag advertising {@code codec}.
+	 */
+	public static String feature(PayloadCodec codec) {
+		return FEATURE_PREFIX + codec.id();
+	}
+
+	/**
+	 * The first of {@code preferred} the peer advertises, or null to send
+	 * uncompressed.
+	 */
+	public static PayloadCodec negotiate(List<? extends PayloadCodec> preferred, Collection<String> peerFeatures) {
+		for (PayloadCodec codec : preferred) {
+			if (peerFeatures.contains(feature(codec))) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	static boolean isValidId(String id) {
+		if (id == null || id.isEmpty() || id.length() > 32) {
+			return false;
+		}
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
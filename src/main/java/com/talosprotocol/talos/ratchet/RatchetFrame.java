@@ -0,0 +1,134 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.ByteBuffer;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Fixed-layout header of a {@link WireFormat#BINARY} ratchet frame.
+ *
+ * <pre>
+ * version(1) | dh(32) | pn(varint) | n(varint) | nonce(12) | ciphertext+tag
+ * </pre>
+ *
+ * Counters are unsigned LEB128. The ciphertext runs to the end of the frame.
+ */
+final class RatchetFrame {
+	static final byte VERSION = 0x01;
+	static final int DH_SIZE = 32;
+	static final int NONCE_SIZE = 12;
+	static final int TAG_SIZE = 16;
+
+	final byte[] dh;
+	final int pn;
+	final int n;
+	final byte[] nonce;
+
+	private RatchetFrame(byte[] dh, int pn, int n, byte[] nonce) {
+		this.dh = dh;
+		this.pn = pn;
+		this.n = n;
+		this.nonce = nonce;
+	}
+
+	static int length(int pn, int n, int plaintextLength) {
+		return 1 + DH_SIZE + varintLength(pn) + varintLength(n) + NONCE_SIZE + plaintextLength + TAG_SIZE;
+	}
+
+	static void writeHeader(ByteBuffer out, byte[] dh, int pn, int n, byte[] nonce) {
+		if (nonce.length != NONCE_SIZE) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Nonce must be 12 bytes");
+		}
+		out.put(VERSION);
+		out.put(dh, 0, DH_SIZE);
+		writeVarint(out, pn);
+		writeVarint(out, n);
+		out.put(nonce);
+	}
+
+	/**
+	 * Reads the header and leaves {@code in} positioned at the ciphertext.
+	 * Malformed frames are rejected through {@code validator}.
+	 */
+	static RatchetFrame read(ByteBuffer in, FrameValidator validator) {
+		validator.checkBinary(in.remaining());
+		if (in.remaining() < 1 + DH_SIZE) {
+			throw validator.reject(FrameValidator.Reason.TRUNCATED);
+		}
+		if (in.get() != VERSION) {
+			throw validator.reject(FrameValidator.Reason.BAD_VERSION);
+		}
+		byte[] dh = new byte[DH_SIZE];
+		in.get(dh);
+		int pn = readCounter(in);
+		int n = pn < 0 ? -1 : readCounter(in);
+		if (n < 0) {
+			throw validator.reject(FrameValidator.Reason.COUNTER_RANGE);
+		}
+		if (in.remaining() < NONCE_SIZE) {
+			throw validator.reject(FrameValidator.Reason.TRUNCATED);
+		}
+		byte[] nonce = new byte[NONCE_SIZE];
+		in.get(nonce);
+		if (in.remaining() < TAG_SIZE) {
+			throw validator.reject(FrameValidator.Reason.TOO_SHORT);
+		}
+		return new RatchetFrame(dh, pn, n, nonce);
+	}
+
+	static int varintLength(int v) {
+		int len = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			len++;
+		}
+		return len;
+	}
+
+	static void writeVarint(ByteBuffer out, int v) {
+		if (v < 0) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Negative counter");
+		}
+		while ((v & ~0x7F) != 0) {
+			out.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	static int readVarint(ByteBuffer in) {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			if (shift == 28 && (b & 0xF8) != 0) {
+				// Fifth byte may only carry bits 28..30 of a non-negative int.
+				break;
+			}
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new TalosError(TalosErrorCode.TALOS_FRAME_INVALID, "Counter out of range");
+	}
+
+	/**
+	 * {@link #readVarint} for untrusted frames: -1 instead of an exception if
+	 * the counter is truncated or out of range.
+	 */
+	private static int readCounter(ByteBuffer in) {
+		int result = 0;
+		for (int shift = 0; shift < 35 && in.hasRemaining(); shift += 7) {
+			byte b = in.get();
+			if (shift == 28 && (b & 0xF8) != 0) {
+				return -1;
+			}
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		return -1;
+	}
+}
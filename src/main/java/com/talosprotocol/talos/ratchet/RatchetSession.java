@@ -1,33 +1,76 @@
 package com.talosprotocol.talos.ratchet;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talosprotocol.talos.canonical.Base64Url;
 import com.talosprotocol.talos.crypto.Crypto;
 import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+import com.talosprotocol.talos.crypto.SecretAllocator;
+import com.talosprotocol.talos.crypto.SecretBuffer;
 import com.talosprotocol.talos.errors.TalosError;
 import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.metrics.TalosMetrics;
 
+/**
+ * Double Ratchet session. Instances are not thread-safe; share them across
+ * threads through {@link RatchetSessionManager}.
+ */
 public class RatchetSession {
 	private static final byte[] EMPTY_SALT = null;
 	private static final byte[] INFO_ROOT = "talos-double-ratchet-root".getBytes(StandardCharsets.UTF_8);
-	private static final byte[] INFO_MESSAGE = "talos-double-ratchet-message".getBytes(StandardCharsets.UTF_8);
-	private static final byte[] INFO_CHAIN = "talos-double-ratchet-chain".getBytes(StandardCharsets.UTF_8);
+	static final byte[] INFO_MESSAGE = "talos-double-ratchet-message".getBytes(StandardCharsets.UTF_8);
+	static final byte[] INFO_CHAIN = "talos-double-ratchet-chain".getBytes(StandardCharsets.UTF_8);
 	private static final byte[] INFO_X3DH = "x3dh-init".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] INFO_STREAM = "talos-double-ratchet-stream".getBytes(StandardCharsets.UTF_8);
 
 	private static final int MAX_SKIP = 1000;
+	// Messages per fork-join leaf in encryptBatch and decryptBatch.
+	private static final int SEAL_SPLIT_THRESHOLD = 4;
 
-	private final RatchetState state = new RatchetState();
+	private final RatchetState state;
+
+	// Receive keys derived ahead of time; see enableReceiveKeyWindow.
+	private int receiveWindowSize;
+	private Executor receiveWindowExecutor;
+	private CompletableFuture<ReceiveKeyWindow> receiveWindow;
+
+	private DerivationBudget derivationBudget;
+	private FrameValidator frameValidator = FrameValidator.DEFAULT;
+	private PayloadCodec payloadCodec;
+
+	// Base64url forms of the current DH public keys, valid while the state
+	// still holds the array they were computed from.
+	private byte[] localDhSource;
+	private String localDhB64;
+	private byte[] remoteDhSource;
+	private String remoteDhB64;
 	private static final ObjectMapper mapper = new ObjectMapper();
 
 	public byte[] testNextRatchetKey = null;
 
+	/**
+	 * Session state. The session advances chain keys in place and zeroes root
+	 * and chain key arrays when it replaces them; copy them to keep them.
+	 */
 	public static class RatchetState {
 		public byte[] dh_private;
 		public byte[] dh_public;
@@ -38,13 +81,93 @@ public class RatchetSession {
 		public int n_s = 0;
 		public int n_r = 0;
 		public int pn = 0;
-		public Map<String, byte[]> skipped_message_keys = new HashMap<>();
+		public SkippedKeyStore skipped_message_keys = new SkippedKeyStore();
+	}
+
+	public RatchetSession() {
+		this(new RatchetState());
+	}
+
+	/**
+	 * Resumes a session from a saved state, e.g. one read back through a
+	 * {@link SessionStore}. The session takes ownership of {@code state}.
+	 */
+	public RatchetSession(RatchetState state) {
+		this.state = state;
 	}
 
 	public RatchetState getState() {
 		return state;
 	}
 
+	/**
+	 * Derives up to {@code size} upcoming receiving-chain keys on
+	 * {@code executor} ahead of the messages that need them. Decryption never
+	 * waits for the window: a key that is not ready yet is derived inline as
+	 * before, and a window that no longer matches the chain is discarded. The
+	 * window is refilled once half of it has been used. A size of 0 disables
+	 * pre-derivation.
+	 */
+	public void enableReceiveKeyWindow(int size, Executor executor) {
+		if (size < 0 || size > MAX_SKIP) {
+			throw new IllegalArgumentException("Receive key window must be between 0 and " + MAX_SKIP);
+		}
+		discardReceiveWindow();
+		this.receiveWindowSize = size;
+		this.receiveWindowExecutor = executor;
+		prefetchReceiveKeys();
+	}
+
+	/**
+	 * Same as {@link #enableReceiveKeyWindow(int, Executor)} on the common
+	 * fork-join pool.
+	 */
+	public void enableReceiveKeyWindow(int size) {
+		enableReceiveKeyWindow(size, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Limits the key derivation that frames can trigger before they are
+	 * authenticated; frames over budget fail with
+	 * {@link TalosErrorCode#TALOS_DENIED} and leave the session unchanged.
+	 * Null, the default, means unlimited. The budget is not part of the saved
+	 * state.
+	 */
+	public void setDerivationBudget(DerivationBudget budget) {
+		this.derivationBudget = budget;
+	}
+
+	public DerivationBudget getDerivationBudget() {
+		return derivationBudget;
+	}
+
+	/**
+	 * Replaces the shared {@link FrameValidator#DEFAULT}, e.g. to change the
+	 * frame size limit or count rejections separately.
+	 */
+	public void setFrameValidator(FrameValidator validator) {
+		this.frameValidator = validator == null ? FrameValidator.DEFAULT : validator;
+	}
+
+	public FrameValidator getFrameValidator() {
+		return frameValidator;
+	}
+
+	/**
+	 * Encodes the plaintext of outgoing JSON messages with {@code codec},
+	 * typically one picked by {@link PayloadCodecs#negotiate}; the codec may
+	 * still send a given message as is. Null, the default, sends everything
+	 * as is. Binary frames and streams are never encoded. Incoming messages
+	 * are decoded with whichever registered codec their header names.
+	 */
+	public void setPayloadCodec(PayloadCodec codec) {
+		this.payloadCodec = codec;
+	}
+
+	public PayloadCodec getPayloadCodec() {
+		return payloadCodec;
+	}
+
 	public void initializeAsInitiator(byte[] sk_identity, byte[] pk_peer, byte[] prekey_public,
 			byte[] signed_prekey_public, byte[] onetime_prekey_public, byte[] test_ephemeral_private) {
 
@@ -59,12 +182,13 @@ public class RatchetSession {
 		state.dh_remote = signed_prekey_public;
 
 		byte[] dh_x3dh = Crypto.x25519Dh(state.dh_private, signed_prekey_public);
-		state.root_key = Crypto.hkdfDerive(dh_x3dh, EMPTY_SALT, INFO_X3DH, 32);
+		byte[] x3dh_root = Crypto.hkdfDerive(dh_x3dh, EMPTY_SALT, INFO_X3DH, 32);
 
 		byte[] dh_shared = dh_x3dh;
-		byte[] rk_ck = kdfRk(state.root_key, dh_shared);
+		byte[] rk_ck = kdfRk(x3dh_root, dh_shared);
 		state.root_key = Arrays.copyOfRange(rk_ck, 0, 32);
 		state.chain_key_s = Arrays.copyOfRange(rk_ck, 32, 64);
+		wipe(dh_x3dh, x3dh_root, rk_ck);
 
 		state.pn = 0;
 		state.n_s = 0;
@@ -78,12 +202,13 @@ public class RatchetSession {
 		state.dh_remote = pk_ephemeral;
 
 		byte[] dh_x3dh = Crypto.x25519Dh(state.dh_private, pk_ephemeral);
-		state.root_key = Crypto.hkdfDerive(dh_x3dh, EMPTY_SALT, INFO_X3DH, 32);
+		byte[] x3dh_root = Crypto.hkdfDerive(dh_x3dh, EMPTY_SALT, INFO_X3DH, 32);
 
 		byte[] dh_shared = dh_x3dh;
-		byte[] rk_ck = kdfRk(state.root_key, dh_shared);
+		byte[] rk_ck = kdfRk(x3dh_root, dh_shared);
 		state.root_key = Arrays.copyOfRange(rk_ck, 0, 32);
 		state.chain_key_r = Arrays.copyOfRange(rk_ck, 32, 64);
+		wipe(dh_x3dh, x3dh_root, rk_ck);
 
 		state.chain_key_s = null;
 		state.n_r = 0;
@@ -103,132 +228,1032 @@ public class RatchetSession {
 
 		byte[] dh_shared = Crypto.x25519Dh(state.dh_private, state.dh_remote);
 		byte[] rk_ck = kdfRk(state.root_key, dh_shared);
+		wipe(state.root_key, state.chain_key_s);
 		state.root_key = Arrays.copyOfRange(rk_ck, 0, 32);
 		state.chain_key_s = Arrays.copyOfRange(rk_ck, 32, 64);
+		wipe(dh_shared, rk_ck);
 
 		state.pn = state.n_s;
 		state.n_s = 0;
 	}
 
 	public String encrypt(byte[] plaintext, byte[] explicitNonce) {
+		TalosMetrics metrics = TalosMetrics.current();
+		long start = metrics.enabled() ? System.nanoTime() : 0L;
 		if (state.chain_key_s == null) {
 			initializeSendingChain();
 		}
 
-		byte[][] kdfResults = kdfCk(state.chain_key_s);
-		byte[] mk = kdfResults[0];
-		state.chain_key_s = kdfResults[1];
+		int n = state.n_s;
+		String wire;
+		try (SecretBuffer mk = kdfCk(state.chain_key_s)) {
+			state.n_s++;
+			wire = seal(mk, localDhB64(), n, state.pn, plaintext, explicitNonce, payloadCodec);
+		}
+		if (start != 0L) {
+			metrics.recordEncrypt(System.nanoTime() - start, plaintext.length, wire.length());
+		}
+		return wire;
+	}
 
-		Map<String, Object> header = new TreeMap<>();
-		header.put("dh", b64u(state.dh_public));
-		header.put("pn", state.pn);
-		header.put("n", state.n_s);
-		state.n_s++;
+	/**
+	 * Encrypts several messages in order. Message keys are derived serially;
+	 * sealing and framing then run across the common fork-join pool. The
+	 * result equals calling {@code encrypt(plaintext, null)} for each element.
+	 */
+	public List<String> encryptBatch(List<byte[]> plaintexts) {
+		int size = plaintexts.size();
+		if (size == 0) {
+			return new ArrayList<>();
+		}
+		if (state.chain_key_s == null) {
+			initializeSendingChain();
+		}
+
+		SecretBuffer[] keys = new SecretBuffer[size];
+		String[] wires = new String[size];
+		AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		try {
+			int firstN = state.n_s;
+			for (int i = 0; i < size; i++) {
+				keys[i] = kdfCk(state.chain_key_s);
+			}
+			state.n_s += size;
+
+			SealBatch task = new SealBatch(localDhB64(), state.pn, firstN, keys, plaintexts, payloadCodec, wires,
+					failure, 0, size);
+			if (size <= SEAL_SPLIT_THRESHOLD) {
+				task.compute();
+			} else {
+				ForkJoinPool.commonPool().invoke(task);
+			}
+		} finally {
+			// Every leaf has finished, so no key is still in use.
+			for (SecretBuffer key : keys) {
+				if (key != null) {
+					key.close();
+				}
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return new ArrayList<>(Arrays.asList(wires));
+	}
 
-		byte[] headerBytes = canonicalize(header);
+	/**
+	 * Seals {@code [from, to)}. A failing element is recorded in
+	 * {@code failure} rather than thrown, so sibling leaves never outlive the
+	 * batch; elements after a failure are skipped.
+	 */
+	private static final class SealBatch extends RecursiveAction {
+		private final String dh;
+		private final int pn;
+		private final int firstN;
+		private final SecretBuffer[] keys;
+		private final List<byte[]> plaintexts;
+		private final PayloadCodec codec;
+		private final String[] wires;
+		private final AtomicReference<RuntimeException> failure;
+		private final int from;
+		private final int to;
+
+		SealBatch(String dh, int pn, int firstN, SecretBuffer[] keys, List<byte[]> plaintexts, PayloadCodec codec,
+				String[] wires, AtomicReference<RuntimeException> failure, int from, int to) {
+			this.dh = dh;
+			this.pn = pn;
+			this.firstN = firstN;
+			this.keys = keys;
+			this.plaintexts = plaintexts;
+			this.codec = codec;
+			this.wires = wires;
+			this.failure = failure;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SEAL_SPLIT_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SealBatch(dh, pn, firstN, keys, plaintexts, codec, wires, failure, from, mid),
+						new SealBatch(dh, pn, firstN, keys, plaintexts, codec, wires, failure, mid, to));
+				return;
+			}
+			TalosMetrics metrics = TalosMetrics.current();
+			for (int i = from; i < to && failure.get() == null; i++) {
+				long start = metrics.enabled() ? System.nanoTime() : 0L;
+				byte[] plaintext = plaintexts.get(i);
+				try (SecretBuffer mk = keys[i]) {
+					wires[i] = seal(mk, dh, firstN + i, pn, plaintext, null, codec);
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+					return;
+				}
+				if (start != 0L) {
+					metrics.recordEncrypt(System.nanoTime() - start, plaintext.length, wires[i].length());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Payload encoding, AEAD and JSON framing for one message; touches no
+	 * session state.
+	 */
+	private static String seal(SecretBuffer mk, String dh, int n, int pn, byte[] plaintext, byte[] explicitNonce,
+			PayloadCodec codec) {
+		String codecId = null;
+		if (codec != null) {
+			byte[] encoded = codec.encode(plaintext);
+			if (encoded != null) {
+				plaintext = encoded;
+				codecId = codec.id();
+			}
+		}
+		byte[] headerBytes = CanonicalHeaderWriter.get().header(codecId, dh, n, pn);
 
 		byte[] nonce = explicitNonce;
 		if (nonce == null) {
 			nonce = new byte[12];
 		}
 
-		byte[] ciphertext = Crypto.encryptWithNonce(mk, nonce, plaintext, headerBytes);
+		byte[] ciphertext = new byte[plaintext.length + 16];
+		Crypto.encryptWithNonce(mk, nonce, plaintext, 0, plaintext.length, headerBytes, ciphertext, 0);
+
+		CanonicalHeaderWriter envelope = CanonicalHeaderWriter.get();
+		envelope.envelope(ciphertext, headerBytes, nonce);
+		return envelope.toBase64Url();
+	}
+
+	/**
+	 * Encrypts the remaining bytes of {@code plaintext} as a
+	 * {@link WireFormat#BINARY} frame written to {@code out}. The session only
+	 * advances if {@code out} has room for the whole frame.
+	 *
+	 * @return frame length in bytes
+	 */
+	public int encryptToBuffer(ByteBuffer plaintext, byte[] explicitNonce, ByteBuffer out) {
+		TalosMetrics metrics = TalosMetrics.current();
+		long start = metrics.enabled() ? System.nanoTime() : 0L;
+		if (state.chain_key_s == null) {
+			initializeSendingChain();
+		}
+
+		int frameLength = RatchetFrame.length(state.pn, state.n_s, plaintext.remaining());
+		if (out.remaining() < frameLength) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT,
+					"Output buffer too small: need " + frameLength + " bytes, have " + out.remaining());
+		}
 
-		Map<String, Object> envelope = new TreeMap<>();
-		envelope.put("header", header);
-		envelope.put("nonce", b64u(nonce));
-		envelope.put("ciphertext", b64u(ciphertext));
+		int pn = state.pn;
+		int n = state.n_s;
+		byte[] headerBytes = headerAad(localDhB64(), pn, n);
+		byte[] nonce = explicitNonce;
+		if (nonce == null) {
+			nonce = new byte[12];
+		}
 
-		byte[] wireBytes = canonicalize(envelope);
-		return b64u(wireBytes);
+		int outStart = out.position();
+		int ptLength = plaintext.remaining();
+		try (SecretBuffer mk = kdfCk(state.chain_key_s)) {
+			state.n_s++;
+			RatchetFrame.writeHeader(out, state.dh_public, pn, n, nonce);
+			Crypto.encryptWithNonce(mk, nonce, plaintext, headerBytes, out);
+		}
+		int written = out.position() - outStart;
+		if (start != 0L) {
+			metrics.recordEncrypt(System.nanoTime() - start, ptLength, written);
+		}
+		return written;
 	}
 
 	public byte[] decrypt(String wireMessageB64) {
-		byte[] wireBytes = d64u(wireMessageB64);
+		TalosMetrics metrics = TalosMetrics.current();
+		if (!metrics.enabled()) {
+			return decryptJson(wireMessageB64);
+		}
+		long start = System.nanoTime();
+		try {
+			byte[] plaintext = decryptJson(wireMessageB64);
+			recordDecrypt(metrics, start, wireMessageB64.length(), plaintext.length);
+			return plaintext;
+		} catch (RuntimeException e) {
+			recordDecryptFailure(metrics, e);
+			throw e;
+		}
+	}
+
+	private byte[] decryptJson(String wireMessageB64) {
+		Inbound m = parseJson(wireMessageB64);
+		return decryptMessage(m.dh, m.pn, m.n, m.headerBytes, m.nonce, m.ciphertext, 0, m.ciphertext.length,
+				m.codec);
+	}
+
+	/**
+	 * Reverses the sender's payload codec, if any. Runs before the message
+	 * is committed, so a payload that fails to decode leaves the session
+	 * unchanged, like one that fails to authenticate.
+	 */
+	private byte[] decodePayload(PayloadCodec codec, byte[] payload) {
+		if (codec == null) {
+			return payload;
+		}
+		try {
+			return codec.decode(payload, 0, payload.length, frameValidator.maxFrameBytes());
+		} catch (RuntimeException e) {
+			throw frameValidator.reject(FrameValidator.Reason.BAD_PAYLOAD);
+		}
+	}
+
+	/**
+	 * A parsed JSON envelope.
+	 */
+	static final class Inbound {
+		final byte[] dh;
+		final int pn;
+		final int n;
+		final byte[] headerBytes;
+		final byte[] nonce;
+		final byte[] ciphertext;
+		final PayloadCodec codec;
+
+		Inbound(byte[] dh, int pn, int n, byte[] headerBytes, byte[] nonce, byte[] ciphertext, PayloadCodec codec) {
+			this.dh = dh;
+			this.pn = pn;
+			this.n = n;
+			this.headerBytes = headerBytes;
+			this.nonce = nonce;
+			this.ciphertext = ciphertext;
+			this.codec = codec;
+		}
+	}
+
+	private Inbound parseJson(String wireMessageB64) {
+		FrameValidator validator = frameValidator;
+		validator.checkWire(wireMessageB64);
+		CanonicalHeaderWriter wire = CanonicalHeaderWriter.get();
+		wire.decodeBase64Url(wireMessageB64);
+		String knownDh = state.dh_remote != null ? remoteDhB64() : null;
+		Inbound m = EnvelopeParser.parse(wire.buffer(), wire.length(), validator, knownDh, state.dh_remote);
+		return m != null ? m : parseTree(wire, validator);
+	}
+
+	/**
+	 * Envelopes {@link EnvelopeParser} leaves alone, such as headers with
+	 * extra fields: parsed into a tree and the header canonicalized
+	 * generically.
+	 */
+	private Inbound parseTree(CanonicalHeaderWriter wire, FrameValidator validator) {
 		JsonNode envelope;
 		try {
-			envelope = mapper.readTree(wireBytes);
+			envelope = mapper.readTree(wire.buffer(), 0, wire.length());
 		} catch (Exception e) {
-			throw new TalosError(TalosErrorCode.TALOS_FRAME_INVALID, "Invalid wire message JSON");
+			throw validator.reject(FrameValidator.Reason.BAD_JSON);
 		}
+		validator.checkEnvelope(envelope);
 
 		JsonNode headerNode = envelope.get("header");
-		byte[] dhRemote = d64u(headerNode.get("dh").asText());
+		String dhText = headerNode.get("dh").asText();
+		byte[] dhRemote = state.dh_remote != null && dhText.equals(remoteDhB64()) ? state.dh_remote : d64u(dhText);
 		int pn = headerNode.get("pn").asInt();
 		int n = headerNode.get("n").asInt();
 
-		byte[] headerBytes = canonicalize(headerNode);
+		JsonNode codecNode = headerNode.get("c");
+		PayloadCodec codec = codecNode != null ? validator.checkCodec(codecNode.textValue()) : null;
+
+		byte[] headerBytes = headerAad(headerNode);
 		byte[] nonce = d64u(envelope.get("nonce").asText());
 		byte[] ciphertext = d64u(envelope.get("ciphertext").asText());
+		return new Inbound(dhRemote, pn, n, headerBytes, nonce, ciphertext, codec);
+	}
+
+	/**
+	 * Decrypts several JSON wire messages from one peer. Message keys are
+	 * resolved one message after another in list order, each on top of the
+	 * previous one, as {@link #decrypt} would; the AEAD checks then run across
+	 * the common fork-join pool and the results are committed in order. Once a
+	 * message fails authentication, the messages after it are decrypted again
+	 * one at a time. A message that cannot be parsed, authenticated or
+	 * decoded yields null at its index instead of failing the batch.
+	 */
+	public List<byte[]> decryptBatch(List<String> wireMessagesB64) {
+		int size = wireMessagesB64.size();
+		Inbound[] messages = new Inbound[size];
+		PendingReceive[] pending = new PendingReceive[size];
+		byte[][] plaintexts = new byte[size][];
+		RuntimeException[] errors = new RuntimeException[size];
+		long[] nanos = new long[size];
+		TalosMetrics metrics = TalosMetrics.current();
+		try {
+			PendingReceive previous = null;
+			for (int i = 0; i < size; i++) {
+				try {
+					Inbound m = parseJson(wireMessagesB64.get(i));
+					messages[i] = m;
+					pending[i] = prepareReceive(previous, m.dh, m.pn, m.n, m.ciphertext.length);
+					previous = pending[i];
+				} catch (RuntimeException e) {
+					errors[i] = e;
+				}
+			}
+
+			OpenBatch task = new OpenBatch(messages, pending, plaintexts, errors, nanos, 0, size);
+			if (size <= SEAL_SPLIT_THRESHOLD) {
+				task.compute();
+			} else {
+				ForkJoinPool.commonPool().invoke(task);
+			}
 
-		byte[] plaintext = trySkippedMessageKeys(dhRemote, n, ciphertext, headerBytes, nonce);
-		if (plaintext != null)
+			// Decode and commit in order. After the first message that fails
+			// to authenticate or decode, later keys were derived on top of it
+			// and are dropped; those messages are decrypted again one by one.
+			boolean replay = false;
+			for (int i = 0; i < size; i++) {
+				if (!replay || messages[i] == null) {
+					if (plaintexts[i] != null) {
+						try {
+							plaintexts[i] = decodePayload(messages[i].codec, plaintexts[i]);
+						} catch (RuntimeException e) {
+							plaintexts[i] = null;
+							errors[i] = e;
+						}
+					}
+					if (plaintexts[i] != null) {
+						commit(pending[i]);
+						if (metrics.enabled()) {
+							metrics.recordDecrypt(nanos[i], messages[i].ciphertext.length, plaintexts[i].length);
+						}
+					} else {
+						recordDecryptFailure(metrics, errors[i]);
+						replay |= pending[i] != null;
+					}
+					continue;
+				}
+				if (pending[i] != null) {
+					if (pending[i].cost > 0) {
+						derivationBudget.refund(pending[i].cost);
+					}
+					pending[i].close();
+					pending[i] = null;
+				}
+				plaintexts[i] = decryptOrNull(metrics, messages[i]);
+			}
+		} finally {
+			for (PendingReceive r : pending) {
+				if (r != null) {
+					r.close();
+				}
+			}
+		}
+		prefetchReceiveKeys();
+		if (metrics.enabled()) {
+			metrics.recordSkippedKeys(state.skipped_message_keys.size());
+		}
+		return new ArrayList<>(Arrays.asList(plaintexts));
+	}
+
+	private byte[] decryptOrNull(TalosMetrics metrics, Inbound m) {
+		long start = metrics.enabled() ? System.nanoTime() : 0L;
+		try (PendingReceive r = prepareReceive(null, m.dh, m.pn, m.n, m.ciphertext.length)) {
+			byte[] plaintext = decodePayload(m.codec,
+					open(r.mk, m.nonce, m.ciphertext, 0, m.ciphertext.length, m.headerBytes));
+			commit(r);
+			if (start != 0L) {
+				metrics.recordDecrypt(System.nanoTime() - start, m.ciphertext.length, plaintext.length);
+			}
 			return plaintext;
+		} catch (RuntimeException e) {
+			recordDecryptFailure(metrics, e);
+			return null;
+		}
+	}
 
-		if (!Arrays.equals(dhRemote, state.dh_remote)) {
-			skipMessageKeys(pn);
-			dhRatchet(dhRemote);
+	private static final class OpenBatch extends RecursiveAction {
+		private final Inbound[] messages;
+		private final PendingReceive[] pending;
+		private final byte[][] plaintexts;
+		private final RuntimeException[] errors;
+		private final long[] nanos;
+		private final int from;
+		private final int to;
+
+		OpenBatch(Inbound[] messages, PendingReceive[] pending, byte[][] plaintexts, RuntimeException[] errors,
+				long[] nanos, int from, int to) {
+			this.messages = messages;
+			this.pending = pending;
+			this.plaintexts = plaintexts;
+			this.errors = errors;
+			this.nanos = nanos;
+			this.from = from;
+			this.to = to;
 		}
 
-		skipMessageKeys(n);
+		@Override
+		protected void compute() {
+			if (to - from > SEAL_SPLIT_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new OpenBatch(messages, pending, plaintexts, errors, nanos, from, mid),
+						new OpenBatch(messages, pending, plaintexts, errors, nanos, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				Inbound m = messages[i];
+				if (pending[i] == null) {
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					plaintexts[i] = open(pending[i].mk, m.nonce, m.ciphertext, 0, m.ciphertext.length,
+							m.headerBytes);
+				} catch (RuntimeException e) {
+					errors[i] = e;
+				}
+				nanos[i] = System.nanoTime() - start;
+			}
+		}
+	}
 
-		byte[][] kdfResults = kdfCk(state.chain_key_r);
-		byte[] mk = kdfResults[0];
-		state.chain_key_r = kdfResults[1];
-		state.n_r++;
+	/**
+	 * Opens a stream that encrypts everything written to it as one message, in
+	 * segments of {@link EncryptingStream#DEFAULT_SEGMENT_SIZE} bytes. The
+	 * message takes the next sending counter straight away; nothing is
+	 * written to {@code sink} until the first segment fills or the stream is
+	 * closed.
+	 */
+	public EncryptingStream encryptStream(WritableByteChannel sink) {
+		return encryptStream(sink, EncryptingStream.DEFAULT_SEGMENT_SIZE);
+	}
 
-		return Crypto.decryptWithNonce(mk, nonce, ciphertext, headerBytes);
+	public EncryptingStream encryptStream(WritableByteChannel sink, int segmentSize) {
+		return openEncryptingStream(sink, null, segmentSize);
 	}
 
-	private void dhRatchet(byte[] dh_remote) {
-		state.pn = state.n_s;
-		state.n_s = 0;
-		state.n_r = 0;
-		state.dh_remote = dh_remote;
+	public EncryptingStream encryptStream(OutputStream sink) {
+		return encryptStream(sink, EncryptingStream.DEFAULT_SEGMENT_SIZE);
+	}
 
-		byte[] dh_shared = Crypto.x25519Dh(state.dh_private, state.dh_remote);
-		byte[] rk_ck = kdfRk(state.root_key, dh_shared);
-		state.root_key = Arrays.copyOfRange(rk_ck, 0, 32);
-		state.chain_key_r = Arrays.copyOfRange(rk_ck, 32, 64);
+	public EncryptingStream encryptStream(OutputStream sink, int segmentSize) {
+		return openEncryptingStream(null, sink, segmentSize);
+	}
+
+	private EncryptingStream openEncryptingStream(WritableByteChannel channel, OutputStream stream,
+			int segmentSize) {
+		EncryptingStream.checkSegmentSize(segmentSize);
+		if (state.chain_key_s == null) {
+			initializeSendingChain();
+		}
+		int pn = state.pn;
+		int n = state.n_s;
+		byte[] aad = headerAad(localDhB64(), pn, n);
+		SecretBuffer key;
+		try (SecretBuffer mk = kdfCk(state.chain_key_s)) {
+			state.n_s++;
+			key = streamKey(mk);
+		}
+		return new EncryptingStream(channel, stream, state.dh_public, pn, n, segmentSize, key, aad);
+	}
+
+	/**
+	 * Reads the header and first segment of a stream written by
+	 * {@link #encryptStream} and returns a stream over the plaintext. The
+	 * session only advances once the first segment authenticates, and is not
+	 * touched by later reads. Failures are reported as for {@link #decrypt};
+	 * {@code source} is left open if this throws.
+	 */
+	public DecryptingStream decryptStream(ReadableByteChannel source) throws IOException {
+		return openDecryptingStream(new DecryptingStream(source, null, frameValidator));
+	}
+
+	public DecryptingStream decryptStream(InputStream source) throws IOException {
+		return openDecryptingStream(new DecryptingStream(null, source, frameValidator));
+	}
+
+	private DecryptingStream openDecryptingStream(DecryptingStream stream) throws IOException {
+		try {
+			stream.readHeader();
+			try (PendingReceive r = prepareReceive(null, stream.dh, stream.pn, stream.n, RatchetFrame.TAG_SIZE)) {
+				String dh = Arrays.equals(stream.dh, state.dh_remote) ? remoteDhB64() : b64u(stream.dh);
+				stream.start(streamKey(r.mk), headerAad(dh, stream.pn, stream.n));
+				commit(r);
+			}
+			prefetchReceiveKeys();
+			return stream;
+		} catch (IOException | RuntimeException e) {
+			stream.discard();
+			TalosMetrics metrics = TalosMetrics.current();
+			if (metrics.enabled() && e instanceof RuntimeException) {
+				recordDecryptFailure(metrics, (RuntimeException) e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Key for the segments of a stream message, kept apart from the message
+	 * key so no segment can be passed off as a single-frame message.
+	 */
+	private static SecretBuffer streamKey(SecretBuffer mk) {
+		byte[] ikm = mk.toByteArray();
+		byte[] key = Crypto.hkdfDerive(ikm, EMPTY_SALT, INFO_STREAM, 32);
+		try {
+			return SecretAllocator.KEYS.copyOf(key);
+		} finally {
+			wipe(ikm, key);
+		}
+	}
+
+	/**
+	 * Decrypts one {@link WireFormat#BINARY} frame occupying the remaining bytes
+	 * of {@code frame}. The buffer's position is advanced past the frame.
+	 */
+	public byte[] decryptFromBuffer(ByteBuffer frame) {
+		TalosMetrics metrics = TalosMetrics.current();
+		if (!metrics.enabled()) {
+			return decryptFrame(frame);
+		}
+		long start = System.nanoTime();
+		int frameLength = frame.remaining();
+		try {
+			byte[] plaintext = decryptFrame(frame);
+			recordDecrypt(metrics, start, frameLength, plaintext.length);
+			return plaintext;
+		} catch (RuntimeException e) {
+			recordDecryptFailure(metrics, e);
+			throw e;
+		}
+	}
+
+	private byte[] decryptFrame(ByteBuffer frame) {
+		RatchetFrame parsed = RatchetFrame.read(frame, frameValidator);
+		String dh = Arrays.equals(parsed.dh, state.dh_remote) ? remoteDhB64() : b64u(parsed.dh);
+		byte[] headerBytes = headerAad(dh, parsed.pn, parsed.n);
+
+		byte[] ciphertext;
+		int offset;
+		int length = frame.remaining();
+		if (frame.hasArray()) {
+			ciphertext = frame.array();
+			offset = frame.arrayOffset() + frame.position();
+		} else {
+			ciphertext = new byte[length];
+			offset = 0;
+			frame.duplicate().get(ciphertext);
+		}
+		frame.position(frame.limit());
+		return decryptMessage(parsed.dh, parsed.pn, parsed.n, headerBytes, parsed.nonce, ciphertext, offset, length,
+				null);
+	}
+
+	private void recordDecrypt(TalosMetrics metrics, long start, int wireLength, int plaintextLength) {
+		metrics.recordDecrypt(System.nanoTime() - start, wireLength, plaintextLength);
+		metrics.recordSkippedKeys(state.skipped_message_keys.size());
+	}
+
+	private static void recordDecryptFailure(TalosMetrics metrics, RuntimeException e) {
+		metrics.recordDecryptFailure(e instanceof TalosError ? ((TalosError) e).getCode() : null);
+	}
+
+	private byte[] decryptMessage(byte[] dhRemote, int pn, int n, byte[] headerBytes, byte[] nonce,
+			byte[] ciphertext, int offset, int length, PayloadCodec codec) {
+		try (PendingReceive r = prepareReceive(null, dhRemote, pn, n, length)) {
+			byte[] plaintext = decodePayload(codec, open(r.mk, nonce, ciphertext, offset, length, headerBytes));
+			commit(r);
+			prefetchReceiveKeys();
+			return plaintext;
+		}
+	}
+
+	/**
+	 * Finds or derives the key for message {@code n} of chain {@code dhRemote}
+	 * on top of {@code parent}, or of the session state if null, without
+	 * changing either.
+	 *
+	 * @throws TalosError
+	 *             {@link TalosErrorCode#TALOS_FRAME_INVALID} for a frame that
+	 *             cannot be keyed, {@link TalosErrorCode#TALOS_DENIED} if the
+	 *             derivation budget is exhausted
+	 */
+	private PendingReceive prepareReceive(PendingReceive parent, byte[] dhRemote, int pn, int n, int length) {
+		if (length < 16) {
+			throw frameValidator.reject(FrameValidator.Reason.TOO_SHORT);
+		}
+		if (n < 0 || pn < 0) {
+			throw frameValidator.reject(FrameValidator.Reason.COUNTER_RANGE);
+		}
+
+		PendingReceive r = new PendingReceive(parent);
+		try {
+			if (r.takeSkipped(dhRemote, n)) {
+				return r;
+			}
+
+			boolean ratchet = !Arrays.equals(dhRemote, r.dhRemote);
+			long cost;
+			if (ratchet) {
+				int skipOld = r.chainKeyR == null ? 0 : pn - r.nR;
+				if (skipOld > MAX_SKIP || n > MAX_SKIP) {
+					throw frameValidator.reject(FrameValidator.Reason.TOO_MANY_SKIPPED);
+				}
+				cost = Math.max(0, skipOld) + DerivationBudget.DH_RATCHET_UNITS + n;
+			} else {
+				if (r.chainKeyR == null || n < r.nR) {
+					throw frameValidator.reject(FrameValidator.Reason.KEY_UNAVAILABLE);
+				}
+				if (n - r.nR > MAX_SKIP) {
+					throw frameValidator.reject(FrameValidator.Reason.TOO_MANY_SKIPPED);
+				}
+				cost = n - r.nR;
+			}
+			if (cost > 0 && derivationBudget != null) {
+				if (!derivationBudget.tryAcquire(cost)) {
+					throw new TalosError(TalosErrorCode.TALOS_DENIED, "Derivation budget exhausted");
+				}
+				r.cost = cost;
+			}
+
+			if (ratchet) {
+				if (r.chainKeyR != null) {
+					r.skipTo(pn);
+				}
+				r.ratchet(dhRemote);
+			}
+			r.skipTo(n);
+			r.mk = SecretAllocator.KEYS.allocate();
+			r.nextKey(r.mk, null);
+			return r;
+		} catch (RuntimeException e) {
+			r.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Receiving-side changes for one message: the message key plus the state
+	 * the session moves to once the message authenticates. Keys the session
+	 * holds are never modified; a chain key is copied before it is advanced.
+	 * Closing without {@link #commit} zeroes everything this receive derived.
+	 */
+	private final class PendingReceive implements AutoCloseable {
+		final PendingReceive parent;
+		final ReceiveKeyWindow window;
+
+		// Session state as it will be after this message.
+		byte[] dhPrivate;
+		byte[] dhPublic;
+		byte[] dhRemote;
+		byte[] rootKey;
+		byte[] chainKeyS;
+		byte[] chainKeyR;
+		int nS;
+		int nR;
+		int pn;
+		byte[] nextRatchetKey;
+
+		// Arrays created here rather than inherited.
+		boolean ownsChainKeyR;
+		boolean ratcheted;
+		boolean ownsDhPrivate;
+
+		SecretBuffer mk;
+		SkippedKeyStore.KeyId consumed;
+		LinkedHashMap<SkippedKeyStore.KeyId, byte[]> skipped;
+		int windowFrom = -1;
+		int windowTo;
+		long cost;
+		boolean committed;
 
-		initializeSendingChain();
+		PendingReceive(PendingReceive parent) {
+			this.parent = parent;
+			if (parent == null) {
+				window = readyReceiveWindow();
+				dhPrivate = state.dh_private;
+				dhPublic = state.dh_public;
+				dhRemote = state.dh_remote;
+				rootKey = state.root_key;
+				chainKeyS = state.chain_key_s;
+				chainKeyR = state.chain_key_r;
+				nS = state.n_s;
+				nR = state.n_r;
+				pn = state.pn;
+				nextRatchetKey = testNextRatchetKey;
+			} else {
+				window = parent.window;
+				dhPrivate = parent.dhPrivate;
+				dhPublic = parent.dhPublic;
+				dhRemote = parent.dhRemote;
+				rootKey = parent.rootKey;
+				chainKeyS = parent.chainKeyS;
+				chainKeyR = parent.chainKeyR;
+				nS = parent.nS;
+				nR = parent.nR;
+				pn = parent.pn;
+				nextRatchetKey = parent.nextRatchetKey;
+			}
+		}
+
+		/**
+		 * Looks for a stored key for {@code (dh, n)}, including keys skipped by
+		 * uncommitted parents and excluding keys they used.
+		 */
+		boolean takeSkipped(byte[] dh, int n) {
+			SkippedKeyStore.KeyId id = new SkippedKeyStore.KeyId(new SkippedKeyStore.ChainId(dh), n);
+			byte[] key = null;
+			for (PendingReceive p = parent; p != null && !p.committed; p = p.parent) {
+				if (id.equals(p.consumed)) {
+					return false;
+				}
+				if (key == null && p.skipped != null) {
+					key = p.skipped.get(id);
+				}
+			}
+			if (key == null) {
+				key = state.skipped_message_keys.peek(dh, n);
+			}
+			if (key == null) {
+				return false;
+			}
+			mk = SecretAllocator.KEYS.copyOf(key);
+			consumed = id;
+			return true;
+		}
+
+		void skipTo(int until) {
+			while (nR < until) {
+				byte[] key = new byte[32];
+				SkippedKeyStore.KeyId id = new SkippedKeyStore.KeyId(new SkippedKeyStore.ChainId(dhRemote), nR);
+				nextKey(null, key);
+				if (skipped == null) {
+					skipped = new LinkedHashMap<>();
+				}
+				skipped.put(id, key);
+			}
+		}
+
+		/**
+		 * Derives the key for message {@code nR} into {@code out} or
+		 * {@code outBytes} and advances the chain, using the pre-derived
+		 * window when it holds the key.
+		 */
+		void nextKey(SecretBuffer out, byte[] outBytes) {
+			if (window != null && window.covers(dhRemote, nR) && window.messageKeys[nR - window.startN] != null) {
+				byte[] key = window.messageKeys[nR - window.startN];
+				if (out != null) {
+					out.copyFrom(key);
+				} else {
+					System.arraycopy(key, 0, outBytes, 0, key.length);
+				}
+				if (ownsChainKeyR) {
+					wipe(chainKeyR);
+				}
+				chainKeyR = window.chainKeyAfter(nR);
+				ownsChainKeyR = false;
+				if (windowFrom < 0) {
+					windowFrom = nR;
+				}
+				windowTo = nR + 1;
+			} else {
+				if (!ownsChainKeyR) {
+					chainKeyR = chainKeyR.clone();
+					ownsChainKeyR = true;
+				}
+				if (out != null) {
+					Crypto.hkdfChainStep(chainKeyR, INFO_MESSAGE, out, INFO_CHAIN, chainKeyR);
+				} else {
+					Crypto.hkdfChainStep(chainKeyR, INFO_MESSAGE, outBytes, INFO_CHAIN, chainKeyR);
+				}
+			}
+			nR++;
+		}
+
+		/**
+		 * DH ratchet step to {@code newRemote}, followed by a new sending chain.
+		 */
+		void ratchet(byte[] newRemote) {
+			pn = nS;
+			nS = 0;
+			nR = 0;
+			dhRemote = newRemote;
+
+			byte[] dhShared = Crypto.x25519Dh(dhPrivate, dhRemote);
+			byte[] rkCk = kdfRk(rootKey, dhShared);
+			if (ownsChainKeyR) {
+				wipe(chainKeyR);
+			}
+			byte[] receivingRoot = Arrays.copyOfRange(rkCk, 0, 32);
+			chainKeyR = Arrays.copyOfRange(rkCk, 32, 64);
+			ownsChainKeyR = true;
+			wipe(dhShared, rkCk);
+
+			KeyPairX25519 pair;
+			if (nextRatchetKey != null) {
+				pair = new KeyPairX25519(nextRatchetKey, Crypto.x25519GetPublic(nextRatchetKey));
+				nextRatchetKey = null;
+			} else {
+				pair = Crypto.x25519Generate();
+				ownsDhPrivate = true;
+			}
+			dhPrivate = pair.privateKey;
+			dhPublic = pair.publicKey;
+
+			dhShared = Crypto.x25519Dh(dhPrivate, dhRemote);
+			rkCk = kdfRk(receivingRoot, dhShared);
+			rootKey = Arrays.copyOfRange(rkCk, 0, 32);
+			chainKeyS = Arrays.copyOfRange(rkCk, 32, 64);
+			wipe(receivingRoot, dhShared, rkCk);
+			ratcheted = true;
+
+			pn = nS;
+			nS = 0;
+		}
+
+		/**
+		 * Closes the message key; without a commit, also zeroes everything
+		 * derived here.
+		 */
+		@Override
+		public void close() {
+			if (mk != null) {
+				mk.close();
+			}
+			if (committed) {
+				return;
+			}
+			if (ownsChainKeyR) {
+				wipe(chainKeyR);
+			}
+			if (ratcheted) {
+				wipe(rootKey, chainKeyS);
+			}
+			if (ownsDhPrivate) {
+				wipe(dhPrivate);
+			}
+			if (skipped != null) {
+				for (byte[] key : skipped.values()) {
+					wipe(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies an authenticated receive to the session. Its parent must have
+	 * been committed first.
+	 */
+	private void commit(PendingReceive r) {
+		SkippedKeyStore store = state.skipped_message_keys;
+		if (r.consumed != null) {
+			wipe(store.take(r.consumed.chain.dh, r.consumed.n));
+		}
+		if (r.skipped != null) {
+			for (Map.Entry<SkippedKeyStore.KeyId, byte[]> e : r.skipped.entrySet()) {
+				store.put(e.getKey().chain.dh, e.getKey().n, e.getValue());
+			}
+		}
+		if (r.windowFrom >= 0) {
+			for (int i = r.windowFrom; i < r.windowTo; i++) {
+				wipe(r.window.takeMessageKey(i));
+				byte[] ck = r.window.chainKeyAfter(i);
+				if (ck != r.chainKeyR) {
+					wipe(ck);
+				}
+			}
+		}
+		if (r.ratcheted) {
+			wipe(state.root_key, state.chain_key_s);
+			state.dh_private = r.dhPrivate;
+			state.dh_public = r.dhPublic;
+			state.dh_remote = r.dhRemote;
+			state.root_key = r.rootKey;
+			state.chain_key_s = r.chainKeyS;
+			state.n_s = r.nS;
+			state.pn = r.pn;
+			testNextRatchetKey = r.nextRatchetKey;
+			TalosMetrics.current().recordDhRatchetStep();
+		}
+		if (state.chain_key_r != r.chainKeyR) {
+			wipe(state.chain_key_r);
+			state.chain_key_r = r.chainKeyR;
+		}
+		state.n_r = r.nR;
+		if (r.cost > 0) {
+			derivationBudget.refund(r.cost);
+		}
+		r.committed = true;
+	}
+
+	private ReceiveKeyWindow readyReceiveWindow() {
+		CompletableFuture<ReceiveKeyWindow> f = receiveWindow;
+		if (f == null || !f.isDone() || f.isCompletedExceptionally()) {
+			return null;
+		}
+		return f.join();
 	}
 
-	private byte[] kdfRk(byte[] rk, byte[] dh_out) {
+	/**
+	 * Starts deriving the next window unless one is in flight or the current
+	 * one still has at least half its keys ahead of the chain position.
+	 */
+	private void prefetchReceiveKeys() {
+		if (receiveWindowSize == 0 || state.chain_key_r == null) {
+			return;
+		}
+		if (receiveWindow != null && !receiveWindow.isDone()) {
+			return;
+		}
+		ReceiveKeyWindow current = readyReceiveWindow();
+		if (current != null && current.covers(state.dh_remote, state.n_r)
+				&& current.startN + current.size() - state.n_r >= (receiveWindowSize + 1) / 2) {
+			return;
+		}
+		discardReceiveWindow();
+
+		byte[] dh = state.dh_remote;
+		byte[] ck = state.chain_key_r.clone();
+		int startN = state.n_r;
+		int size = Math.min(receiveWindowSize, MAX_SKIP);
+		try {
+			receiveWindow = CompletableFuture.supplyAsync(() -> {
+				try {
+					return ReceiveKeyWindow.derive(dh, ck, startN, size);
+				} finally {
+					Arrays.fill(ck, (byte) 0);
+				}
+			}, receiveWindowExecutor);
+		} catch (RejectedExecutionException e) {
+			Arrays.fill(ck, (byte) 0);
+		}
+	}
+
+	private void discardReceiveWindow() {
+		ReceiveKeyWindow window = readyReceiveWindow();
+		if (window != null) {
+			window.wipe();
+		}
+		receiveWindow = null;
+	}
+
+	private static byte[] kdfRk(byte[] rk, byte[] dh_out) {
 		byte[] ikm = new byte[rk.length + dh_out.length];
 		System.arraycopy(rk, 0, ikm, 0, rk.length);
 		System.arraycopy(dh_out, 0, ikm, rk.length, dh_out.length);
-		return Crypto.hkdfDerive(ikm, EMPTY_SALT, INFO_ROOT, 64);
+		try {
+			return Crypto.hkdfDerive(ikm, EMPTY_SALT, INFO_ROOT, 64);
+		} finally {
+			wipe(ikm);
+		}
 	}
 
-	private byte[][] kdfCk(byte[] ck) {
-		byte[] mk = Crypto.hkdfDerive(ck, EMPTY_SALT, INFO_MESSAGE, 32);
-		byte[] nextCk = Crypto.hkdfDerive(ck, EMPTY_SALT, INFO_CHAIN, 32);
-		return new byte[][]{mk, nextCk};
+	/**
+	 * Symmetric-ratchet step: returns the message key in a pooled buffer and
+	 * advances {@code ck} in place, overwriting the previous chain key.
+	 */
+	private static SecretBuffer kdfCk(byte[] ck) {
+		SecretBuffer mk = SecretAllocator.KEYS.allocate();
+		try {
+			Crypto.hkdfChainStep(ck, INFO_MESSAGE, mk, INFO_CHAIN, ck);
+		} catch (RuntimeException e) {
+			mk.close();
+			throw e;
+		}
+		return mk;
 	}
 
-	private void skipMessageKeys(int until) {
-		if (state.n_r + MAX_SKIP < until) {
-			throw new TalosError(TalosErrorCode.TALOS_FRAME_INVALID, "Too many skipped messages");
+	private static void wipe(byte[]... keys) {
+		for (byte[] key : keys) {
+			if (key != null) {
+				Arrays.fill(key, (byte) 0);
+			}
 		}
-		while (state.n_r < until) {
-			byte[][] kdfResults = kdfCk(state.chain_key_r);
-			byte[] mk = kdfResults[0];
-			state.chain_key_r = kdfResults[1];
+	}
 
-			String key = b64u(state.dh_remote) + "|" + state.n_r;
-			state.skipped_message_keys.put(key, mk);
-			state.n_r++;
-		}
+	private static byte[] open(SecretBuffer mk, byte[] nonce, byte[] ciphertext, int offset, int length, byte[] aad) {
+		byte[] plaintext = new byte[length - 16];
+		Crypto.decryptWithNonce(mk, nonce, ciphertext, offset, length, aad, plaintext, 0);
+		return plaintext;
+	}
+
+	/**
+	 * Canonical header bytes used as AAD by every wire format.
+	 */
+	private byte[] headerAad(String dh, int pn, int n) {
+		return CanonicalHeaderWriter.get().header(dh, n, pn);
 	}
 
-	private byte[] trySkippedMessageKeys(byte[] dhRemote, int n, byte[] ciphertext, byte[] aad, byte[] nonce) {
-		String key = b64u(dhRemote) + "|" + n;
-		if (state.skipped_message_keys.containsKey(key)) {
-			byte[] mk = state.skipped_message_keys.remove(key);
-			return Crypto.decryptWithNonce(mk, nonce, ciphertext, aad);
+	/**
+	 * AAD for a received JSON header. Headers carrying only the three standard
+	 * fields take the hand-written path; anything else is canonicalized
+	 * generically so the peer's exact header bytes are authenticated.
+	 */
+	private byte[] headerAad(JsonNode headerNode) {
+		JsonNode dh = headerNode.get("dh");
+		JsonNode pn = headerNode.get("pn");
+		JsonNode n = headerNode.get("n");
+		if (headerNode.size() == 3 && dh != null && dh.isTextual() && pn != null && pn.isInt() && n != null
+				&& n.isInt() && CanonicalHeaderWriter.isPlainBase64Url(dh.textValue())) {
+			return headerAad(dh.textValue(), pn.intValue(), n.intValue());
 		}
-		return null;
+		return canonicalize(headerNode);
 	}
 
 	private byte[] canonicalize(Object obj) {
@@ -239,11 +1264,27 @@ public class RatchetSession {
 		}
 	}
 
+	private String localDhB64() {
+		if (localDhSource != state.dh_public) {
+			localDhB64 = b64u(state.dh_public);
+			localDhSource = state.dh_public;
+		}
+		return localDhB64;
+	}
+
+	private String remoteDhB64() {
+		if (remoteDhSource != state.dh_remote) {
+			remoteDhB64 = b64u(state.dh_remote);
+			remoteDhSource = state.dh_remote;
+		}
+		return remoteDhB64;
+	}
+
 	private String b64u(byte[] data) {
-		return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+		return Base64Url.encodeToString(data);
 	}
 
 	private byte[] d64u(String s) {
-		return Base64.getUrlDecoder().decode(s);
+		return Base64Url.decode(s);
 	}
 }
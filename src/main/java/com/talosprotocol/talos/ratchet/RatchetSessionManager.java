@@ -0,0 +1,349 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+/**
+ * Thread-safe registry of {@link RatchetSession}s keyed by session or peer id.
+ * <p>
+ * Each session has its own lock, so operations on one session run strictly
+ * one at a time in arrival order while different sessions proceed in
+ * parallel. The lock is a {@link ReentrantLock} rather than a monitor so
+ * waiting virtual threads do not pin their carrier.
+ * <p>
+ * When backed by a {@link SessionStore}, every successful operation saves the
+ * session before its result is returned, so a session reloaded after a crash
+ * never re-derives a message key that has already been handed out. The
+ * manager keeps at most a fixed number of sessions on the heap; others are
+ * loaded from the store on first access, and the least recently used hot
+ * session is dropped when the limit is exceeded. {@link #flush()} forces the
+ * store to stable storage.
+ */
+public class RatchetSessionManager {
+	// Extra eviction candidates picked in case some are busy.
+	private static final int EVICTION_SLACK = 4;
+
+	private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<>();
+	private final SessionStore store;
+	private final int maxHotSessions;
+
+	// Access-ordered view of the hot sessions; only used with a store.
+	private final LinkedHashMap<String, Boolean> lru = new LinkedHashMap<>(16, 0.75f, true);
+	private final ReentrantLock lruLock = new ReentrantLock();
+
+	private volatile Function<String, DerivationBudget> budgets;
+
+	private static final class Entry {
+		// Null until a loading entry has read the session from the store.
+		RatchetSession session;
+		final ReentrantLock lock = new ReentrantLock(true);
+		// Set under lock once the session has been written back and dropped.
+		boolean evicted;
+		// Set under lock once the session is gone for good.
+		boolean removed;
+
+		Entry(RatchetSession session) {
+			this.session = session;
+		}
+	}
+
+	public RatchetSessionManager() {
+		this.store = null;
+		this.maxHotSessions = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param store
+	 *            holds every registered session; the manager saves a session
+	 *            after every operation on it
+	 * @param maxHotSessions
+	 *            sessions kept on the heap
+	 */
+	public RatchetSessionManager(SessionStore store, int maxHotSessions) {
+		if (maxHotSessions < 1) {
+			throw new IllegalArgumentException("maxHotSessions must be positive");
+		}
+		this.store = store;
+		this.maxHotSessions = maxHotSessions;
+	}
+
+	/**
+	 * Assigns a {@link DerivationBudget} to every session registered or loaded
+	 * from the store from now on. Return the same instance for all sessions of
+	 * a peer to budget per peer; null from the function leaves a session
+	 * unlimited.
+	 */
+	public void setDerivationBudgets(Function<String, DerivationBudget> budgets) {
+		this.budgets = budgets;
+	}
+
+	/**
+	 * Registers {@code session} under {@code sessionId}.
+	 *
+	 * @throws TalosError if the id is already in use
+	 */
+	public void register(String sessionId, RatchetSession session) {
+		Entry e = new Entry(applyBudget(sessionId, session));
+		// Saved under the lock so a racing remove sees the stored session.
+		e.lock.lock();
+		try {
+			if ((store != null && store.contains(sessionId)) || sessions.putIfAbsent(sessionId, e) != null) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Session already registered: " + sessionId);
+			}
+			if (store != null) {
+				store.save(sessionId, session.getState());
+			}
+		} finally {
+			e.lock.unlock();
+		}
+		if (store != null) {
+			touch(sessionId);
+			evictExcess(sessionId);
+		}
+	}
+
+	/**
+	 * Removes a session, waiting for any in-flight operation on it to finish.
+	 * Operations that were waiting for it fail as if the session was unknown.
+	 *
+	 * @return the removed session, or null if none was registered
+	 */
+	public RatchetSession remove(String sessionId) {
+		while (true) {
+			Entry e = lockEntry(sessionId);
+			if (e == null) {
+				return null;
+			}
+			try {
+				if (e.evicted) {
+					continue;
+				}
+				if (e.removed) {
+					return null;
+				}
+				// Delete before unlocking so no waiting operation can save the
+				// session back, and before leaving the map so no new caller
+				// loads it again.
+				e.removed = true;
+				if (store != null) {
+					untouch(sessionId);
+					store.delete(sessionId);
+				}
+				sessions.remove(sessionId, e);
+				return e.session;
+			} finally {
+				e.lock.unlock();
+			}
+		}
+	}
+
+	public boolean contains(String sessionId) {
+		return store != null ? store.contains(sessionId) : sessions.containsKey(sessionId);
+	}
+
+	public int size() {
+		return store != null ? store.size() : sessions.size();
+	}
+
+	public Set<String> sessionIds() {
+		return store != null ? store.sessionIds() : sessions.keySet();
+	}
+
+	/**
+	 * Sessions currently held on the heap.
+	 */
+	public int hotSize() {
+		return sessions.size();
+	}
+
+	public String encrypt(String sessionId, byte[] plaintext, byte[] explicitNonce) {
+		return withSession(sessionId, s -> s.encrypt(plaintext, explicitNonce));
+	}
+
+	public byte[] decrypt(String sessionId, String wireMessageB64) {
+		return withSession(sessionId, s -> s.decrypt(wireMessageB64));
+	}
+
+	/**
+	 * Runs {@code op} with exclusive access to the session and, with a store,
+	 * saves the session if {@code op} returns normally. {@code op} must not
+	 * let the session escape.
+	 */
+	public <T> T withSession(String sessionId, Function<RatchetSession, T> op) {
+		while (true) {
+			Entry e = lockEntry(sessionId);
+			if (e == null) {
+				throw unknown(sessionId);
+			}
+			T result;
+			try {
+				if (e.evicted) {
+					continue;
+				}
+				if (e.removed) {
+					throw unknown(sessionId);
+				}
+				result = op.apply(e.session);
+				if (store != null) {
+					store.save(sessionId, e.session.getState());
+				}
+			} finally {
+				e.lock.unlock();
+			}
+			if (store != null) {
+				touch(sessionId);
+				evictExcess(sessionId);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Forces the store to stable storage. Sessions are already saved after
+	 * every operation; a no-op without a store.
+	 */
+	public void flush() {
+		if (store != null) {
+			store.flush();
+		}
+	}
+
+	/**
+	 * Returns the entry for {@code sessionId} with its lock held, or null if
+	 * there is none. With a store, a missing session is loaded through a
+	 * locked placeholder entry, so the store is read outside the map and
+	 * concurrent callers for the same id wait on the placeholder's lock. The
+	 * entry may turn out evicted or removed once locked.
+	 */
+	private Entry lockEntry(String sessionId) {
+		Entry e = sessions.get(sessionId);
+		if (e == null && store != null) {
+			Entry loading = new Entry(null);
+			loading.lock.lock();
+			e = sessions.putIfAbsent(sessionId, loading);
+			if (e == null) {
+				load(sessionId, loading);
+				return loading;
+			}
+		}
+		if (e != null) {
+			e.lock.lock();
+		}
+		return e;
+	}
+
+	/**
+	 * Fills a locked placeholder from the store. A missing session retires it
+	 * as removed; a failed load retires it as evicted so waiters try again.
+	 */
+	private void load(String sessionId, Entry loading) {
+		RatchetState state;
+		try {
+			state = store.load(sessionId);
+			if (state != null) {
+				loading.session = applyBudget(sessionId, new RatchetSession(state));
+			}
+		} catch (RuntimeException ex) {
+			loading.evicted = true;
+			sessions.remove(sessionId, loading);
+			loading.lock.unlock();
+			throw ex;
+		}
+		if (state == null) {
+			loading.removed = true;
+			sessions.remove(sessionId, loading);
+		}
+	}
+
+	private static TalosError unknown(String sessionId) {
+		return new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Unknown session: " + sessionId);
+	}
+
+	private RatchetSession applyBudget(String sessionId, RatchetSession session) {
+		Function<String, DerivationBudget> b = budgets;
+		if (b != null) {
+			session.setDerivationBudget(b.apply(sessionId));
+		}
+		return session;
+	}
+
+	private void untouch(String sessionId) {
+		lruLock.lock();
+		try {
+			lru.remove(sessionId);
+		} finally {
+			lruLock.unlock();
+		}
+	}
+
+	private void touch(String sessionId) {
+		lruLock.lock();
+		try {
+			lru.put(sessionId, Boolean.TRUE);
+		} finally {
+			lruLock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts least recently used sessions other than {@code keep} until the hot
+	 * tier is within its limit. Candidates are picked under {@code lruLock};
+	 * evicting them happens outside it, so other sessions never wait on an
+	 * eviction. Sessions busy in another thread are skipped.
+	 */
+	private void evictExcess(String keep) {
+		int excess = sessions.size() - maxHotSessions;
+		if (excess <= 0) {
+			return;
+		}
+		List<String> candidates = new ArrayList<>();
+		lruLock.lock();
+		try {
+			for (String id : lru.keySet()) {
+				if (!id.equals(keep)) {
+					candidates.add(id);
+					if (candidates.size() >= excess + EVICTION_SLACK) {
+						break;
+					}
+				}
+			}
+		} finally {
+			lruLock.unlock();
+		}
+		for (String id : candidates) {
+			if (sessions.size() <= maxHotSessions) {
+				return;
+			}
+			tryEvict(id);
+		}
+	}
+
+	private void tryEvict(String sessionId) {
+		Entry e = sessions.get(sessionId);
+		if (e == null) {
+			untouch(sessionId);
+			return;
+		}
+		if (!e.lock.tryLock()) {
+			return;
+		}
+		try {
+			// Already saved by the last operation on it. Leave the LRU before
+			// the map so a reload of the session is tracked afresh.
+			untouch(sessionId);
+			e.evicted = true;
+			sessions.remove(sessionId, e);
+		} finally {
+			e.lock.unlock();
+		}
+	}
+}
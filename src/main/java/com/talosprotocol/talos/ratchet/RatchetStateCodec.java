@@ -0,0 +1,319 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+/**
+ * Versioned binary encoding of {@link RatchetState}.
+ *
+ * <pre>
+ * version(1) | flags(1) | key fields | n_s | n_r | pn | [skipped keys | changes]
+ * skipped keys := chainCount | dh* | keyCount | (chainIndex | n | mk | storedAt(8))*
+ * changes := changeCount | (kind(1) | [dh | n | [mk | storedAt(8)]])*
+ * </pre>
+ *
+ * Flag bits 0..5 mark which of dh_private, dh_public, dh_remote, root_key,
+ * chain_key_s and chain_key_r are present; each present key is written as a
+ * length-prefixed byte string. Bit 6 marks a record carrying the skipped-key
+ * section. A <em>core</em> record omits it and is decoded on top of a previous
+ * state whose skipped keys it keeps, which lets a journal log per-message
+ * changes without rewriting the skipped-key store. Bit 7 marks a
+ * <em>delta</em>: a core record followed by the keys stored into and removed
+ * from the previous state's store, which it replays. Integers are unsigned
+ * LEB128 as in {@link RatchetFrame}; timestamps are big-endian longs.
+ */
+public final class RatchetStateCodec {
+	public static final byte VERSION = 0x01;
+
+	private static final int KEY_FIELDS = 6;
+	private static final int FLAG_SKIPPED = 1 << 6;
+	private static final int FLAG_CHANGES = 1 << 7;
+
+	private static final byte CHANGE_REMOVE = 0;
+	private static final byte CHANGE_PUT = 1;
+	private static final byte CHANGE_CLEAR = 2;
+
+	private RatchetStateCodec() {
+	}
+
+	/**
+	 * Full snapshot including skipped message keys.
+	 */
+	public static byte[] encode(RatchetState state) {
+		return encode(state, true);
+	}
+
+	/**
+	 * Keys and counters only; see {@link #decode(byte[], RatchetState)}.
+	 */
+	public static byte[] encodeCore(RatchetState state) {
+		return encode(state, false);
+	}
+
+	/**
+	 * Keys and counters plus the given skipped-key changes; see
+	 * {@link #decode(byte[], RatchetState)}.
+	 */
+	static byte[] encodeDelta(RatchetState state, List<SkippedKeyStore.Change> changes) {
+		byte[] core = encode(state, false);
+		int size = core.length + RatchetFrame.varintLength(changes.size());
+		for (SkippedKeyStore.Change c : changes) {
+			size += 1;
+			if (c.dh != null) {
+				size += bytesLength(c.dh) + RatchetFrame.varintLength(c.n);
+				if (c.mk != null) {
+					size += bytesLength(c.mk) + 8;
+				}
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.put(core);
+		out.put(1, (byte) (core[1] | FLAG_CHANGES));
+		RatchetFrame.writeVarint(out, changes.size());
+		for (SkippedKeyStore.Change c : changes) {
+			if (c.dh == null) {
+				out.put(CHANGE_CLEAR);
+				continue;
+			}
+			out.put(c.mk == null ? CHANGE_REMOVE : CHANGE_PUT);
+			writeBytes(out, c.dh);
+			RatchetFrame.writeVarint(out, c.n);
+			if (c.mk != null) {
+				writeBytes(out, c.mk);
+				out.putLong(c.storedAt);
+			}
+		}
+		return out.array();
+	}
+
+	/**
+	 * True if {@code data} is a full snapshot rather than a core record.
+	 */
+	public static boolean isSnapshot(byte[] data) {
+		return data.length > 1 && (data[1] & FLAG_SKIPPED) != 0;
+	}
+
+	/**
+	 * Decodes a full snapshot into a new state with a default
+	 * {@link SkippedKeyStore}.
+	 */
+	public static RatchetState decode(byte[] data) {
+		return decode(data, null, SkippedKeyStore::new);
+	}
+
+	/**
+	 * Decodes a full snapshot, restoring its skipped keys into a store from
+	 * {@code skippedKeys}, whose limits then apply.
+	 */
+	public static RatchetState decode(byte[] data, Supplier<SkippedKeyStore> skippedKeys) {
+		return decode(data, null, skippedKeys);
+	}
+
+	/**
+	 * Decodes a snapshot, core or delta record. Core and delta records take
+	 * their skipped keys from {@code previous}, whose store is shared, not
+	 * copied; a delta updates that store in place.
+	 */
+	public static RatchetState decode(byte[] data, RatchetState previous) {
+		return decode(data, previous, SkippedKeyStore::new);
+	}
+
+	private static RatchetState decode(byte[] data, RatchetState previous, Supplier<SkippedKeyStore> skippedKeys) {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		try {
+			if (in.get() != VERSION) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Unsupported ratchet state version");
+			}
+			int flags = in.get() & 0xFF;
+			if ((flags & ~(FLAG_SKIPPED | FLAG_CHANGES | ((1 << KEY_FIELDS) - 1))) != 0
+					|| (flags & (FLAG_SKIPPED | FLAG_CHANGES)) == (FLAG_SKIPPED | FLAG_CHANGES)) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Unknown ratchet state flags");
+			}
+			RatchetState state = new RatchetState();
+			byte[][] fields = new byte[KEY_FIELDS][];
+			for (int i = 0; i < KEY_FIELDS; i++) {
+				if ((flags & (1 << i)) != 0) {
+					fields[i] = readBytes(in);
+				}
+			}
+			state.dh_private = fields[0];
+			state.dh_public = fields[1];
+			state.dh_remote = fields[2];
+			state.root_key = fields[3];
+			state.chain_key_s = fields[4];
+			state.chain_key_r = fields[5];
+			state.n_s = RatchetFrame.readVarint(in);
+			state.n_r = RatchetFrame.readVarint(in);
+			state.pn = RatchetFrame.readVarint(in);
+
+			if ((flags & FLAG_SKIPPED) != 0) {
+				state.skipped_message_keys = skippedKeys.get();
+				readSkipped(in, state.skipped_message_keys);
+			} else if (previous != null) {
+				state.skipped_message_keys = previous.skipped_message_keys;
+				if ((flags & FLAG_CHANGES) != 0) {
+					readChanges(in, state.skipped_message_keys);
+				}
+			} else {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Core record without a base state");
+			}
+			if (in.hasRemaining()) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Trailing bytes in ratchet state");
+			}
+			return state;
+		} catch (BufferUnderflowException e) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Truncated ratchet state");
+		}
+	}
+
+	private static byte[] encode(RatchetState state, boolean withSkipped) {
+		byte[][] fields = {state.dh_private, state.dh_public, state.dh_remote, state.root_key, state.chain_key_s,
+				state.chain_key_r};
+		int flags = withSkipped ? FLAG_SKIPPED : 0;
+		int size = 2 + RatchetFrame.varintLength(state.n_s) + RatchetFrame.varintLength(state.n_r)
+				+ RatchetFrame.varintLength(state.pn);
+		for (int i = 0; i < KEY_FIELDS; i++) {
+			if (fields[i] != null) {
+				flags |= 1 << i;
+				size += bytesLength(fields[i]);
+			}
+		}
+
+		SkippedSection skipped = null;
+		if (withSkipped) {
+			skipped = new SkippedSection(state.skipped_message_keys);
+			size += skipped.length;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.put(VERSION);
+		out.put((byte) flags);
+		for (byte[] field : fields) {
+			if (field != null) {
+				writeBytes(out, field);
+			}
+		}
+		RatchetFrame.writeVarint(out, state.n_s);
+		RatchetFrame.writeVarint(out, state.n_r);
+		RatchetFrame.writeVarint(out, state.pn);
+		if (skipped != null) {
+			skipped.write(out);
+		}
+		return out.array();
+	}
+
+	/**
+	 * Skipped keys grouped by chain, collected in one pass so the encoded size
+	 * is known before writing.
+	 */
+	private static final class SkippedSection {
+		final List<byte[]> chains = new ArrayList<>();
+		final Map<SkippedKeyStore.ChainId, Integer> chainIndex = new HashMap<>();
+		final List<Object[]> keys = new ArrayList<>();
+		int length;
+
+		SkippedSection(SkippedKeyStore store) {
+			store.forEach((dh, n, mk, storedAt) -> {
+				Integer index = chainIndex.computeIfAbsent(new SkippedKeyStore.ChainId(dh), c -> {
+					chains.add(dh);
+					length += bytesLength(dh);
+					return chains.size() - 1;
+				});
+				keys.add(new Object[]{index, n, mk, storedAt});
+				length += RatchetFrame.varintLength(index) + RatchetFrame.varintLength(n) + bytesLength(mk) + 8;
+			});
+			length += RatchetFrame.varintLength(chains.size()) + RatchetFrame.varintLength(keys.size());
+		}
+
+		void write(ByteBuffer out) {
+			RatchetFrame.writeVarint(out, chains.size());
+			for (byte[] dh : chains) {
+				writeBytes(out, dh);
+			}
+			RatchetFrame.writeVarint(out, keys.size());
+			for (Object[] k : keys) {
+				RatchetFrame.writeVarint(out, (Integer) k[0]);
+				RatchetFrame.writeVarint(out, (Integer) k[1]);
+				writeBytes(out, (byte[]) k[2]);
+				out.putLong((Long) k[3]);
+			}
+		}
+	}
+
+	private static void readSkipped(ByteBuffer in, SkippedKeyStore store) {
+		int chainCount = RatchetFrame.readVarint(in);
+		checkCount(in, chainCount);
+		byte[][] chains = new byte[chainCount][];
+		for (int i = 0; i < chainCount; i++) {
+			chains[i] = readBytes(in);
+		}
+		int keyCount = RatchetFrame.readVarint(in);
+		checkCount(in, keyCount);
+		for (int i = 0; i < keyCount; i++) {
+			int chain = RatchetFrame.readVarint(in);
+			if (chain >= chainCount) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Skipped key chain index out of range");
+			}
+			int n = RatchetFrame.readVarint(in);
+			byte[] mk = readBytes(in);
+			store.restore(chains[chain], n, mk, in.getLong());
+		}
+	}
+
+	private static void readChanges(ByteBuffer in, SkippedKeyStore store) {
+		int count = RatchetFrame.readVarint(in);
+		checkCount(in, count);
+		for (int i = 0; i < count; i++) {
+			byte kind = in.get();
+			if (kind == CHANGE_CLEAR) {
+				store.apply(new SkippedKeyStore.Change(null, 0, null, 0));
+				continue;
+			}
+			if (kind != CHANGE_REMOVE && kind != CHANGE_PUT) {
+				throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Unknown skipped key change");
+			}
+			byte[] dh = readBytes(in);
+			int n = RatchetFrame.readVarint(in);
+			if (kind == CHANGE_PUT) {
+				byte[] mk = readBytes(in);
+				store.apply(new SkippedKeyStore.Change(dh, n, mk, in.getLong()));
+			} else {
+				store.apply(new SkippedKeyStore.Change(dh, n, null, 0));
+			}
+		}
+	}
+
+	private static int bytesLength(byte[] b) {
+		return RatchetFrame.varintLength(b.length) + b.length;
+	}
+
+	private static void writeBytes(ByteBuffer out, byte[] b) {
+		RatchetFrame.writeVarint(out, b.length);
+		out.put(b);
+	}
+
+	private static byte[] readBytes(ByteBuffer in) {
+		int len = RatchetFrame.readVarint(in);
+		checkCount(in, len);
+		byte[] b = new byte[len];
+		in.get(b);
+		return b;
+	}
+
+	// Every counted item takes at least one byte; reject counts that cannot fit
+	// before allocating for them.
+	private static void checkCount(ByteBuffer in, int count) {
+		if (count > in.remaining()) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Truncated ratchet state");
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.function.Function;
+
+import org.reactivestreams.Publisher;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactor adapter over {@link AsyncRatchetSessionManager}. Requires
+ * {@code reactor-core} on the classpath.
+ * <p>
+ * Single operations are lazy: nothing is queued until the {@link Mono} is
+ * subscribed. Stream operators process one message at a time per session with
+ * {@code concatMap}, so output order matches input order, at most
+ * {@code prefetch} upstream messages are requested ahead, and an error stops
+ * the stream before any later message touches the session.
+ */
+public class ReactiveRatchetSessionManager {
+	public static final int DEFAULT_PREFETCH = 32;
+
+	private final AsyncRatchetSessionManager async;
+	private final int prefetch;
+
+	public ReactiveRatchetSessionManager(AsyncRatchetSessionManager async) {
+		this(async, DEFAULT_PREFETCH);
+	}
+
+	public ReactiveRatchetSessionManager(AsyncRatchetSessionManager async, int prefetch) {
+		this.async = async;
+		this.prefetch = prefetch;
+	}
+
+	public Mono<String> encrypt(String sessionId, byte[] plaintext) {
+		return Mono.fromFuture(() -> async.encrypt(sessionId, plaintext, null));
+	}
+
+	public Mono<byte[]> decrypt(String sessionId, String wireMessageB64) {
+		return Mono.fromFuture(() -> async.decrypt(sessionId, wireMessageB64));
+	}
+
+	public Flux<String> encrypt(String sessionId, Publisher<byte[]> plaintexts) {
+		return Flux.from(plaintexts).concatMap(pt -> encrypt(sessionId, pt), prefetch);
+	}
+
+	public Flux<byte[]> decrypt(String sessionId, Publisher<String> wireMessages) {
+		return Flux.from(wireMessages).concatMap(wire -> decrypt(sessionId, wire), prefetch);
+	}
+
+	/**
+	 * Operator for {@link Flux#transform}: {@code plaintexts.transform(reactive.encryptor(id))}.
+	 */
+	public Function<Flux<byte[]>, Flux<String>> encryptor(String sessionId) {
+		return plaintexts -> encrypt(sessionId, plaintexts);
+	}
+
+	public Function<Flux<String>, Flux<byte[]>> decryptor(String sessionId) {
+		return wireMessages -> decrypt(sessionId, wireMessages);
+	}
+}
@@ -0,0 +1,81 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Arrays;
+
+import com.talosprotocol.talos.crypto.Crypto;
+
+/**
+ * Message keys {@code startN .. startN+size-1} of one receiving chain,
+ * together with the chain key following each of them. Derivation is a pure
+ * function of the chain key and counter, so a window can be computed on any
+ * thread and checked against the session state before use.
+ */
+final class ReceiveKeyWindow {
+	final byte[] dh;
+	final int startN;
+	final byte[][] messageKeys;
+	final byte[][] chainKeys;
+
+	private ReceiveKeyWindow(byte[] dh, int startN, int size) {
+		this.dh = dh;
+		this.startN = startN;
+		this.messageKeys = new byte[size][];
+		this.chainKeys = new byte[size][];
+	}
+
+	/**
+	 * Derives {@code size} keys starting at message {@code startN}, whose
+	 * chain key is {@code chainKey}.
+	 */
+	static ReceiveKeyWindow derive(byte[] dh, byte[] chainKey, int startN, int size) {
+		ReceiveKeyWindow w = new ReceiveKeyWindow(dh, startN, size);
+		byte[] ck = chainKey;
+		for (int i = 0; i < size; i++) {
+			byte[] mk = new byte[32];
+			byte[] next = new byte[32];
+			Crypto.hkdfChainStep(ck, RatchetSession.INFO_MESSAGE, mk, RatchetSession.INFO_CHAIN, next);
+			w.messageKeys[i] = mk;
+			w.chainKeys[i] = next;
+			ck = next;
+		}
+		return w;
+	}
+
+	int size() {
+		return messageKeys.length;
+	}
+
+	/**
+	 * True if this window holds message {@code n} of chain {@code chainDh}.
+	 */
+	boolean covers(byte[] chainDh, int n) {
+		return n >= startN && n - startN < messageKeys.length && Arrays.equals(dh, chainDh);
+	}
+
+	/**
+	 * Hands message key {@code n} to the caller; the window forgets it.
+	 */
+	byte[] takeMessageKey(int n) {
+		byte[] mk = messageKeys[n - startN];
+		messageKeys[n - startN] = null;
+		return mk;
+	}
+
+	byte[] chainKeyAfter(int n) {
+		return chainKeys[n - startN];
+	}
+
+	/**
+	 * Zeroes every key not yet handed out. Chain keys following a taken
+	 * message key may be in use by the session and are left alone.
+	 */
+	void wipe() {
+		for (int i = 0; i < messageKeys.length; i++) {
+			if (messageKeys[i] != null) {
+				Arrays.fill(messageKeys[i], (byte) 0);
+				Arrays.fill(chainKeys[i], (byte) 0);
+				messageKeys[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Set;
+
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+/**
+ * Durable storage for ratchet session state, keyed by session id.
+ * <p>
+ * Implementations must be safe for concurrent use. Callers save a session
+ * after every operation that changed it; a store may persist only what
+ * changed since the previous save. A saved state must not be modified
+ * concurrently with the {@link #save} call.
+ */
+public interface SessionStore extends AutoCloseable {
+
+	void save(String sessionId, RatchetState state);
+
+	/**
+	 * @return the last saved state, or null if none
+	 */
+	RatchetState load(String sessionId);
+
+	void delete(String sessionId);
+
+	boolean contains(String sessionId);
+
+	int size();
+
+	/**
+	 * Snapshot of the stored ids.
+	 */
+	Set<String> sessionIds();
+
+	/**
+	 * Forces saved data to stable storage.
+	 */
+	void flush();
+
+	@Override
+	void close();
+}
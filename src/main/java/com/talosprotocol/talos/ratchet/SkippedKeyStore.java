@@ -0,0 +1,385 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Message keys derived for messages that have not arrived yet, indexed by the
+ * sender's ratchet public key and message number.
+ * <p>
+ * The store is bounded globally and per chain. When a bound is hit the oldest
+ * key, of the store or of the chain, goes first. A per-chain index in
+ * insertion order finds it without scanning other chains. Keys older than the
+ * configured maximum age are dropped lazily on the next access. Every key
+ * leaving the store other than through {@link #take} is zeroed. Not
+ * thread-safe; it belongs to one session.
+ */
+public class SkippedKeyStore {
+	public static final int DEFAULT_MAX_KEYS = 2000;
+	public static final int DEFAULT_MAX_KEYS_PER_CHAIN = 1000;
+
+	/**
+	 * Rough heap cost of one stored key: map node, index key, entry, the
+	 * 32-byte key array and the chain index node.
+	 */
+	static final int ENTRY_BYTES = 40 + 24 + 24 + 48 + 40;
+	// Chain id, its 32-byte dh array, map node and per-chain index.
+	private static final int CHAIN_BYTES = 32 + 16 + 48 + 112;
+
+	private final int maxKeys;
+	private final int maxKeysPerChain;
+	private final long maxAgeMillis;
+	private final LongSupplier clock;
+
+	// Insertion order: the head is always the oldest key, globally and within
+	// each chain's set.
+	private final LinkedHashMap<KeyId, Entry> keys = new LinkedHashMap<>();
+	private final Map<ChainId, LinkedHashSet<KeyId>> chains = new HashMap<>();
+
+	private long evicted;
+	private long expired;
+	private long modCount;
+	// Changes since changeLogBase, recorded only once a journal asks for them
+	// and dropped when they would outgrow a full snapshot.
+	private List<Change> changeLog;
+	private long changeLogBase;
+
+	public SkippedKeyStore() {
+		this(DEFAULT_MAX_KEYS, DEFAULT_MAX_KEYS_PER_CHAIN, 0, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            keys older than this are discarded; 0 disables expiry
+	 * @param clock
+	 *            millisecond time source
+	 */
+	public SkippedKeyStore(int maxKeys, int maxKeysPerChain, long maxAgeMillis, LongSupplier clock) {
+		if (maxKeys < 1 || maxKeysPerChain < 1 || maxAgeMillis < 0) {
+			throw new IllegalArgumentException("Invalid skipped key store limits");
+		}
+		this.maxKeys = maxKeys;
+		this.maxKeysPerChain = maxKeysPerChain;
+		this.maxAgeMillis = maxAgeMillis;
+		this.clock = clock;
+	}
+
+	static final class ChainId {
+		final byte[] dh;
+		private final int hash;
+
+		ChainId(byte[] dh) {
+			this.dh = dh;
+			this.hash = Arrays.hashCode(dh);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ChainId && hash == ((ChainId) o).hash && Arrays.equals(dh, ((ChainId) o).dh);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	static final class KeyId {
+		final ChainId chain;
+		final int n;
+
+		KeyId(ChainId chain, int n) {
+			this.chain = chain;
+			this.n = n;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof KeyId && n == ((KeyId) o).n && chain.equals(((KeyId) o).chain);
+		}
+
+		@Override
+		public int hashCode() {
+			return chain.hash * 31 + n;
+		}
+	}
+
+	private static final class Entry {
+		final byte[] mk;
+		final long storedAt;
+
+		Entry(byte[] mk, long storedAt) {
+			this.mk = mk;
+			this.storedAt = storedAt;
+		}
+	}
+
+	/**
+	 * One recorded change: a key stored ({@code mk} set) or removed
+	 * ({@code mk} null). A null {@code dh} clears the store.
+	 */
+	static final class Change {
+		final byte[] dh;
+		final int n;
+		final byte[] mk;
+		final long storedAt;
+
+		Change(byte[] dh, int n, byte[] mk, long storedAt) {
+			this.dh = dh;
+			this.n = n;
+			this.mk = mk;
+			this.storedAt = storedAt;
+		}
+	}
+
+	/**
+	 * Stores {@code mk} for message {@code n} of the chain keyed by {@code dh}.
+	 * The store keeps references to both arrays; neither may be modified
+	 * afterwards.
+	 */
+	public void put(byte[] dh, int n, byte[] mk) {
+		long now = clock.getAsLong();
+		expire(now);
+		insert(dh, n, mk, now);
+	}
+
+	/**
+	 * Re-inserts a key read back from storage with its original timestamp.
+	 * Keys must be restored oldest first, as {@link #forEach} visits them.
+	 */
+	void restore(byte[] dh, int n, byte[] mk, long storedAtMillis) {
+		insert(dh, n, mk, storedAtMillis);
+	}
+
+	private void insert(byte[] dh, int n, byte[] mk, long storedAt) {
+		ChainId chain = new ChainId(dh);
+		KeyId id = new KeyId(chain, n);
+		// A replaced key moves to the tail of both orders, which keeps
+		// the head the oldest for expiry.
+		Entry previous = keys.remove(id);
+		keys.put(id, new Entry(mk, storedAt));
+		modCount++;
+		record(dh, n, mk, storedAt);
+		LinkedHashSet<KeyId> chainKeys = chains.computeIfAbsent(chain, c -> new LinkedHashSet<>());
+		if (previous != null) {
+			Arrays.fill(previous.mk, (byte) 0);
+			chainKeys.remove(id);
+		}
+		chainKeys.add(id);
+		if (chainKeys.size() > maxKeysPerChain) {
+			evictOldest(chainKeys.iterator().next());
+		}
+		while (keys.size() > maxKeys) {
+			evictOldest(keys.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Removes and returns the key for message {@code n} of chain {@code dh}, or
+	 * null if it was never stored, already used, evicted or expired.
+	 */
+	public byte[] take(byte[] dh, int n) {
+		expire(clock.getAsLong());
+		KeyId id = new KeyId(new ChainId(dh), n);
+		Entry e = keys.remove(id);
+		if (e == null) {
+			return null;
+		}
+		modCount++;
+		record(dh, n, null, 0);
+		unindex(id);
+		return e.mk;
+	}
+
+	/**
+	 * The key for message {@code n} of chain {@code dh} without removing it,
+	 * or null. The array stays owned by the store.
+	 */
+	byte[] peek(byte[] dh, int n) {
+		expire(clock.getAsLong());
+		Entry e = keys.get(new KeyId(new ChainId(dh), n));
+		return e == null ? null : e.mk;
+	}
+
+	public boolean contains(byte[] dh, int n) {
+		return keys.containsKey(new KeyId(new ChainId(dh), n));
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public boolean isEmpty() {
+		return keys.isEmpty();
+	}
+
+	public int chainSize(byte[] dh) {
+		LinkedHashSet<KeyId> chainKeys = chains.get(new ChainId(dh));
+		return chainKeys == null ? 0 : chainKeys.size();
+	}
+
+	public int chainCount() {
+		return chains.size();
+	}
+
+	public int maxKeys() {
+		return maxKeys;
+	}
+
+	public int maxKeysPerChain() {
+		return maxKeysPerChain;
+	}
+
+	public long maxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * Keys dropped because a global or per-chain bound was reached.
+	 */
+	public long evictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * Keys dropped for exceeding the maximum age.
+	 */
+	public long expiredCount() {
+		return expired;
+	}
+
+	/**
+	 * Approximate heap held by stored keys, in bytes.
+	 */
+	public long estimatedBytes() {
+		return (long) keys.size() * ENTRY_BYTES + (long) chains.size() * CHAIN_BYTES;
+	}
+
+	/**
+	 * Incremented on every insertion or removal; lets persistence layers skip
+	 * rewriting an unchanged store.
+	 */
+	public long modCount() {
+		return modCount;
+	}
+
+	/**
+	 * Zeroes and drops every key.
+	 */
+	public void clear() {
+		for (Entry e : keys.values()) {
+			Arrays.fill(e.mk, (byte) 0);
+		}
+		keys.clear();
+		chains.clear();
+		modCount++;
+		record(null, 0, null, 0);
+	}
+
+	/**
+	 * Visits stored keys oldest first.
+	 */
+	public void forEach(Visitor visitor) {
+		for (Map.Entry<KeyId, Entry> e : keys.entrySet()) {
+			visitor.visit(e.getKey().chain.dh, e.getKey().n, e.getValue().mk, e.getValue().storedAt);
+		}
+	}
+
+	public interface Visitor {
+		void visit(byte[] dh, int n, byte[] mk, long storedAtMillis);
+	}
+
+	/**
+	 * Starts recording changes for {@link #changesSince}, discarding any
+	 * recorded so far.
+	 */
+	void startChangeLog() {
+		changeLog = new ArrayList<>();
+		changeLogBase = modCount;
+	}
+
+	/**
+	 * Changes made since the store stood at {@code modCount}, oldest first, or
+	 * null if they were not all recorded. Stored keys are shared with the
+	 * store.
+	 */
+	List<Change> changesSince(long modCount) {
+		return changeLog != null && changeLogBase == modCount ? changeLog : null;
+	}
+
+	/**
+	 * Replays a change recorded by another instance, as read back from a
+	 * journal.
+	 */
+	void apply(Change change) {
+		if (change.dh == null) {
+			clear();
+		} else if (change.mk != null) {
+			restore(change.dh, change.n, change.mk, change.storedAt);
+		} else {
+			KeyId id = new KeyId(new ChainId(change.dh), change.n);
+			Entry e = keys.remove(id);
+			if (e != null) {
+				dropped(id, e);
+			}
+		}
+	}
+
+	private void record(byte[] dh, int n, byte[] mk, long storedAt) {
+		if (changeLog == null) {
+			return;
+		}
+		if (changeLog.size() >= maxKeys) {
+			changeLog = null;
+			return;
+		}
+		changeLog.add(new Change(dh, n, mk, storedAt));
+	}
+
+	private void expire(long now) {
+		if (maxAgeMillis == 0) {
+			return;
+		}
+		Iterator<Map.Entry<KeyId, Entry>> it = keys.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<KeyId, Entry> e = it.next();
+			if (now - e.getValue().storedAt < maxAgeMillis) {
+				break;
+			}
+			it.remove();
+			dropped(e.getKey(), e.getValue());
+			expired++;
+		}
+	}
+
+	private void evictOldest(KeyId id) {
+		dropped(id, keys.remove(id));
+		evicted++;
+	}
+
+	/**
+	 * Zeroes a key already removed from {@link #keys} and drops it from the
+	 * chain index.
+	 */
+	private void dropped(KeyId id, Entry e) {
+		Arrays.fill(e.mk, (byte) 0);
+		modCount++;
+		record(id.chain.dh, id.n, null, 0);
+		unindex(id);
+	}
+
+	private void unindex(KeyId id) {
+		LinkedHashSet<KeyId> chainKeys = chains.get(id.chain);
+		chainKeys.remove(id);
+		if (chainKeys.isEmpty()) {
+			chains.remove(id.chain);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Collection;
+
+/**
+ * Ratchet message encodings. Both carry the same header fields and use the
+ * canonical JSON header as AEAD associated data, so a message can be moved
+ * between formats without re-encrypting.
+ */
+public enum WireFormat {
+	/**
+	 * base64url(canonical JSON envelope). The conformance format and the
+	 * default.
+	 */
+	JSON,
+	/**
+	 * Compact frame with a fixed-layout header and raw ciphertext; see
+	 * {@link RatchetSession#encryptToBuffer}.
+	 */
+	BINARY;
+
+	/**
+	 * Feature flag a peer advertises when it accepts {@link #BINARY} frames.
+	 */
+	public static final String FEATURE_BINARY = "ratchet-binary-frame";
+
+	/**
+	 * Picks {@link #BINARY} only when both sides advertise
+	 * {@link #FEATURE_BINARY}.
+	 */
+	public static WireFormat negotiate(Collection<String> localFeatures, Collection<String> peerFeatures) {
+		if (localFeatures.contains(FEATURE_BINARY) && peerFeatures.contains(FEATURE_BINARY)) {
+			return BINARY;
+		}
+		return JSON;
+	}
+}
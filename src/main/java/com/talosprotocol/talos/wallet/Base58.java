@@ -0,0 +1,123 @@
+package com.talosprotocol.talos.wallet;
+
+import java.util.Arrays;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+/**
+ * Base58 with the Bitcoin alphabet, as used by {@code did:key}.
+ * <p>
+ * The number is held in 32-bit limbs and converted five base-58 digits at a
+ * time (58^5 fits in an int), so a 34-byte multicodec key takes a few dozen
+ * long divisions instead of a {@link java.math.BigInteger} per digit.
+ */
+final class Base58 {
+	private static final char[] ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+	private static final int[] INDEX = new int[128];
+	private static final long BASE5 = 58L * 58 * 58 * 58 * 58;
+
+	static {
+		Arrays.fill(INDEX, -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			INDEX[ALPHABET[i]] = i;
+		}
+	}
+
+	private Base58() {
+	}
+
+	static String encode(byte[] input) {
+		int zeros = 0;
+		while (zeros < input.length && input[zeros] == 0) {
+			zeros++;
+		}
+
+		// Big-endian base-2^32 limbs of the non-zero tail.
+		int byteLen = input.length - zeros;
+		int[] limbs = new int[(byteLen + 3) / 4];
+		for (int i = zeros; i < input.length; i++) {
+			int pos = input.length - 1 - i;
+			limbs[limbs.length - 1 - pos / 4] |= (input[i] & 0xFF) << (8 * (pos % 4));
+		}
+
+		// log(256)/log(58) < 1.366 digits per byte.
+		char[] out = new char[zeros + byteLen * 1366 / 1000 + 6];
+		int at = out.length;
+		int start = 0;
+		while (start < limbs.length) {
+			long rem = 0;
+			for (int i = start; i < limbs.length; i++) {
+				long cur = rem << 32 | (limbs[i] & 0xFFFFFFFFL);
+				limbs[i] = (int) (cur / BASE5);
+				rem = cur % BASE5;
+			}
+			while (start < limbs.length && limbs[start] == 0) {
+				start++;
+			}
+			for (int k = 0; k < 5; k++) {
+				out[--at] = ALPHABET[(int) (rem % 58)];
+				rem /= 58;
+			}
+		}
+		// The last group is padded with '1' digits that are not part of the number.
+		while (at < out.length && out[at] == ALPHABET[0]) {
+			at++;
+		}
+		for (int i = 0; i < zeros; i++) {
+			out[--at] = ALPHABET[0];
+		}
+		return new String(out, at, out.length - at);
+	}
+
+	/**
+	 * @throws TalosError
+	 *             {@link TalosErrorCode#TALOS_INVALID_INPUT} on a character
+	 *             outside the alphabet
+	 */
+	static byte[] decode(CharSequence s, int from, int to) {
+		int zeros = 0;
+		while (from + zeros < to && s.charAt(from + zeros) == ALPHABET[0]) {
+			zeros++;
+		}
+
+		// Little-endian base-2^32 limbs; log(58)/log(256) < 0.733 bytes per digit.
+		int digits = to - from - zeros;
+		int[] limbs = new int[(digits * 733 / 1000 + 1) / 4 + 1];
+		int used = 0;
+		int i = from + zeros;
+		while (i < to) {
+			int chunk = Math.min(5, to - i);
+			long mul = 1;
+			long add = 0;
+			for (int k = 0; k < chunk; k++, i++) {
+				char c = s.charAt(i);
+				int d = c < 128 ? INDEX[c] : -1;
+				if (d < 0) {
+					throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Invalid base58 character");
+				}
+				mul *= 58;
+				add = add * 58 + d;
+			}
+			long carry = add;
+			for (int j = 0; j < used; j++) {
+				long cur = (limbs[j] & 0xFFFFFFFFL) * mul + carry;
+				limbs[j] = (int) cur;
+				carry = cur >>> 32;
+			}
+			if (carry != 0) {
+				limbs[used++] = (int) carry;
+			}
+		}
+
+		int byteLen = used * 4;
+		while (byteLen > 0 && (limbs[(byteLen - 1) / 4] >>> (8 * ((byteLen - 1) % 4)) & 0xFF) == 0) {
+			byteLen--;
+		}
+		byte[] out = new byte[zeros + byteLen];
+		for (int b = 0; b < byteLen; b++) {
+			out[out.length - 1 - b] = (byte) (limbs[b / 4] >>> (8 * (b % 4)));
+		}
+		return out;
+	}
+}
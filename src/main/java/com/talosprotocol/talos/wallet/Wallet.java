@@ -1,14 +1,23 @@
 package com.talosprotocol.talos.wallet;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
 import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
 
+import com.talosprotocol.talos.crypto.BoundedCache;
 import com.talosprotocol.talos.crypto.Crypto;
 import com.talosprotocol.talos.errors.TalosError;
 import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.metrics.TalosMetrics;
 
 /**
  * Talos identity wallet.
@@ -17,8 +26,20 @@ public class Wallet {
 	private final Ed25519PrivateKeyParameters privateKey;
 	private final Ed25519PublicKeyParameters publicKey;
 	private final String name;
+	// Derived from the immutable key on first use; a racing recompute is harmless.
+	private volatile String did;
+	private volatile String address;
 
-	private static final String BASE58_ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+	// Items per fork-join leaf; one Ed25519 verify is tens of microseconds.
+	private static final int BATCH_SPLIT_THRESHOLD = 8;
+
+	private static final String DID_KEY_PREFIX = "did:key:z";
+	// Multicodec varint for ed25519-pub.
+	private static final byte[] ED25519_MULTICODEC = {(byte) 0xED, 0x01};
+	private static final int DID_CACHE_SIZE = 4096;
+	private static final BoundedCache<String, byte[]> DID_CACHE = new BoundedCache<>(DID_CACHE_SIZE);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
 
 	private Wallet(Ed25519PrivateKeyParameters privateKey, String name) {
 		this.privateKey = privateKey;
@@ -43,23 +64,74 @@ public class Wallet {
 	}
 
 	public String toDid() {
-		byte[] prefix = new byte[]{(byte) 0xED, 0x01};
-		byte[] pub = getPublicKey();
-		byte[] input = new byte[prefix.length + pub.length];
-		System.arraycopy(prefix, 0, input, 0, prefix.length);
-		System.arraycopy(pub, 0, input, prefix.length, pub.length);
-
-		return "did:key:z" + encodeBase58(input);
+		String d = did;
+		if (d == null) {
+			byte[] pub = getPublicKey();
+			byte[] input = new byte[ED25519_MULTICODEC.length + pub.length];
+			System.arraycopy(ED25519_MULTICODEC, 0, input, 0, ED25519_MULTICODEC.length);
+			System.arraycopy(pub, 0, input, ED25519_MULTICODEC.length, pub.length);
+			d = DID_KEY_PREFIX + Base58.encode(input);
+			did = d;
+		}
+		return d;
 	}
 
 	public String address() {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] hash = digest.digest(getPublicKey());
-			return bytesToHex(hash);
-		} catch (Exception e) {
-			throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "SHA-256 not available", e);
+		String a = address;
+		if (a == null) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				a = bytesToHex(digest.digest(getPublicKey()));
+			} catch (Exception e) {
+				throw new TalosError(TalosErrorCode.TALOS_CRYPTO_ERROR, "SHA-256 not available", e);
+			}
+			address = a;
+		}
+		return a;
+	}
+
+	/**
+	 * Resolves an Ed25519 {@code did:key} to its raw 32-byte public key.
+	 * Resolved DIDs are kept in a bounded process-wide cache, so repeat peers
+	 * cost one map lookup; malformed DIDs are rejected and never cached.
+	 *
+	 * @return a fresh copy of the public key
+	 * @throws TalosError
+	 *             {@link TalosErrorCode#TALOS_INVALID_INPUT} if {@code did} is
+	 *             not a base58btc Ed25519 {@code did:key}
+	 */
+	public static byte[] publicKeyFromDid(String did) {
+		if (did == null) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "DID is null");
+		}
+		byte[] pub = DID_CACHE.getIfPresent(did);
+		if (pub == null) {
+			pub = DID_CACHE.put(did, parseDid(did));
 		}
+		return pub.clone();
+	}
+
+	public static BoundedCache.Stats didCacheStats() {
+		return DID_CACHE.stats();
+	}
+
+	private static byte[] parseDid(String did) {
+		if (!did.startsWith(DID_KEY_PREFIX)) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Not a base58btc did:key");
+		}
+		// 34 bytes encode to at most 47 base58 digits.
+		if (did.length() > DID_KEY_PREFIX.length() + 47) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "did:key too long");
+		}
+		byte[] raw = Base58.decode(did, DID_KEY_PREFIX.length(), did.length());
+		int keyLen = Ed25519PublicKeyParameters.KEY_SIZE;
+		if (raw.length != ED25519_MULTICODEC.length + keyLen || raw[0] != ED25519_MULTICODEC[0]
+				|| raw[1] != ED25519_MULTICODEC[1]) {
+			throw new TalosError(TalosErrorCode.TALOS_INVALID_INPUT, "Not an Ed25519 did:key");
+		}
+		byte[] pub = new byte[keyLen];
+		System.arraycopy(raw, ED25519_MULTICODEC.length, pub, 0, keyLen);
+		return pub;
 	}
 
 	public byte[] sign(byte[] message) {
@@ -70,41 +142,120 @@ public class Wallet {
 		if (publicKey.length != 32)
 			return false;
 		try {
-			Ed25519PublicKeyParameters pk = new Ed25519PublicKeyParameters(publicKey, 0);
+			Ed25519PublicKeyParameters pk = Crypto.decodeEd25519PublicKey(publicKey);
 			return Crypto.verify(pk, message, signature);
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	private static String encodeBase58(byte[] input) {
-		if (input.length == 0)
-			return "";
+	/**
+	 * One (message, signature, public key) triple for {@link #verifyBatch}.
+	 */
+	public static final class SignedItem {
+		final byte[] message;
+		final byte[] signature;
+		final byte[] publicKey;
+
+		public SignedItem(byte[] message, byte[] signature, byte[] publicKey) {
+			this.message = message;
+			this.signature = signature;
+			this.publicKey = publicKey;
+		}
+	}
+
+	/**
+	 * Verifies many signatures at once. Each distinct public key is decoded a
+	 * single time, through the installed public-key cache if any, and the
+	 * checks are split across the common fork-join pool.
+	 *
+	 * @return bit {@code i} is set iff item {@code i} verifies; malformed items
+	 *         are simply false
+	 */
+	public static BitSet verifyBatch(List<SignedItem> items) {
+		int size = items.size();
+		Ed25519PublicKeyParameters[] keys = new Ed25519PublicKeyParameters[size];
+		Map<ByteBuffer, Ed25519PublicKeyParameters> decoded = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			byte[] pk = items.get(i).publicKey;
+			if (pk == null || pk.length != Ed25519PublicKeyParameters.KEY_SIZE) {
+				continue;
+			}
+			ByteBuffer id = ByteBuffer.wrap(pk);
+			if (!decoded.containsKey(id)) {
+				decoded.put(id, decodeOrNull(pk));
+			}
+			keys[i] = decoded.get(id);
+		}
 
-		BigInteger bi = new BigInteger(1, input);
-		StringBuilder s = new StringBuilder();
-		BigInteger base = BigInteger.valueOf(58);
-		while (bi.compareTo(BigInteger.ZERO) > 0) {
-			BigInteger[] divmod = bi.divideAndRemainder(base);
-			bi = divmod[0];
-			s.insert(0, BASE58_ALPHABET.charAt(divmod[1].intValue()));
+		boolean[] valid = new boolean[size];
+		BatchVerify task = new BatchVerify(items, keys, valid, 0, size);
+		if (size <= BATCH_SPLIT_THRESHOLD) {
+			task.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
 		}
 
-		for (byte b : input) {
-			if (b == 0)
-				s.insert(0, BASE58_ALPHABET.charAt(0));
-			else
-				break;
+		BitSet result = new BitSet(size);
+		for (int i = 0; i < size; i++) {
+			if (valid[i]) {
+				result.set(i);
+			}
 		}
+		return result;
+	}
+
+	private static final class BatchVerify extends RecursiveAction {
+		private final List<SignedItem> items;
+		private final Ed25519PublicKeyParameters[] keys;
+		private final boolean[] valid;
+		private final int from;
+		private final int to;
 
-		return s.toString();
+		BatchVerify(List<SignedItem> items, Ed25519PublicKeyParameters[] keys, boolean[] valid, int from, int to) {
+			this.items = items;
+			this.keys = keys;
+			this.valid = valid;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH_SPLIT_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BatchVerify(items, keys, valid, from, mid), new BatchVerify(items, keys, valid, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				SignedItem item = items.get(i);
+				Ed25519PublicKeyParameters pk = keys[i];
+				if (pk == null || item.message == null || item.signature == null
+						|| item.signature.length != Ed25519.SIGNATURE_SIZE) {
+					continue;
+				}
+				long start = TalosMetrics.start();
+				valid[i] = pk.verify(Ed25519.Algorithm.Ed25519, null, item.message, 0, item.message.length,
+						item.signature, 0);
+				TalosMetrics.stop(TalosMetrics.Operation.ED25519_VERIFY, start);
+			}
+		}
+	}
+
+	private static Ed25519PublicKeyParameters decodeOrNull(byte[] publicKey) {
+		try {
+			return Crypto.decodeEd25519PublicKey(publicKey);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
 	}
 
 	private static String bytesToHex(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-		for (byte b : bytes) {
-			sb.append(String.format("%02x", b));
+		char[] out = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			out[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			out[2 * i + 1] = HEX[bytes[i] & 0xF];
 		}
-		return sb.toString();
+		return new String(out);
 	}
 }
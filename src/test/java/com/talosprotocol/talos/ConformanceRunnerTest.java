@@ -0,0 +1,177 @@
+package com.talosprotocol.talos;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talosprotocol.talos.ConformanceRunner.Kind;
+import com.talosprotocol.talos.ConformanceRunner.Options;
+import com.talosprotocol.talos.ConformanceRunner.Result;
+import com.talosprotocol.talos.ConformanceRunner.Unit;
+
+class ConformanceRunnerTest {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testParseOptions() {
+		Options o = Options.parse("--vectors", "v.json", "--parallel", "--threads", "3", "--repeat", "5", "--shard",
+				"1/4", "--junit-xml", "out.xml", "--json-report", "out.json", "--spring.main.banner-mode=off");
+		assertEquals("v.json", o.vectorsPath);
+		assertTrue(o.parallel);
+		assertEquals(3, o.threads);
+		assertEquals(5, o.repeat);
+		assertEquals(1, o.shardIndex);
+		assertEquals(4, o.shardCount);
+		assertEquals("out.xml", o.junitXml);
+		assertEquals("out.json", o.jsonReport);
+
+		Options defaults = Options.parse();
+		assertNull(defaults.vectorsPath);
+		assertFalse(defaults.parallel);
+		assertEquals(1, defaults.repeat);
+		assertEquals(1, defaults.shardCount);
+	}
+
+	@Test
+	void testParseRejectsBadInput() {
+		for (String[] args : new String[][]{{"--threads", "0"}, {"--threads"}, {"--repeat", "x"},
+				{"--repeat", "-2"}, {"--shard", "4/4"}, {"--shard", "-1/4"}, {"--shard", "1"}, {"--shard", "a/2"},
+				{"--shard", "0/0"}, {"--shard"}}) {
+			assertThrows(IllegalArgumentException.class, () -> Options.parse(args), String.join(" ", args));
+		}
+	}
+
+	@Test
+	void testShard() {
+		List<Unit> units = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			units.add(unit("s", "v" + i, Kind.VECTOR));
+		}
+		assertEquals(units, Options.parse().shard(units));
+		List<Unit> mine = Options.parse("--shard", "1/3").shard(units);
+		assertEquals(List.of("v1", "v4", "v7"), mine.stream().map(u -> u.name).toList());
+
+		// Every unit lands in exactly one shard.
+		int total = 0;
+		for (int k = 0; k < 3; k++) {
+			total += Options.parse("--shard", k + "/3").shard(units).size();
+		}
+		assertEquals(units.size(), total);
+	}
+
+	@Test
+	void testRunCollectsEveryFailure() throws IOException {
+		Files.writeString(dir.resolve("canonical.json"), "["
+				+ "{\"test_id\":\"canonical_ok\",\"input\":{\"b\":1,\"a\":2},\"expected\":{\"canonical\":\"{\\\"a\\\":2,\\\"b\\\":1}\"}},"
+				+ "{\"test_id\":\"canonical_bad\",\"input\":{\"a\":1},\"expected\":{\"canonical\":\"{}\"}},"
+				+ "{\"test_id\":\"canonical_worse\",\"input\":{\"a\":2},\"expected\":{\"canonical\":\"[]\"}},"
+				+ "{\"test_id\":\"mystery_vector\"}]");
+		Files.writeString(dir.resolve("negative.json"), "{\"negative_cases\":["
+				+ "{\"test_id\":\"canonical_neg\",\"input\":{\"a\":1},\"expected\":{\"canonical\":\"nope\"}}]}");
+		Files.writeString(dir.resolve("release.json"),
+				"{\"version\":\"1\",\"vectors\":[\"canonical.json\",\"negative.json\",\"missing.json\"]}");
+
+		ConformanceRunner runner = new ConformanceRunner();
+		List<Unit> units = new ArrayList<>();
+		runner.collect(dir.resolve("release.json").toFile(), units);
+		assertEquals(6, units.size());
+		assertEquals(Kind.NEGATIVE, units.get(4).kind);
+		assertEquals(Kind.LOAD_ERROR, units.get(5).kind);
+
+		for (Options options : new Options[]{Options.parse("--repeat", "2"),
+				Options.parse("--parallel", "--threads", "4", "--repeat", "2")}) {
+			List<Result> results = runner.runAll(units, options);
+			assertEquals(6, results.size());
+			assertNull(results.get(0).failure);
+			assertEquals(2, results.get(0).runs);
+			assertTrue(results.get(1).failure.startsWith("Canonical JSON mismatch"));
+			assertTrue(results.get(2).failure.startsWith("Canonical JSON mismatch"));
+			// A failing run stops repeating.
+			assertEquals(1, results.get(2).runs);
+			assertTrue(results.get(3).skipped);
+			assertNull(results.get(4).failure);
+			assertTrue(results.get(5).failure.contains("missing.json"));
+		}
+	}
+
+	@Test
+	void testJunitXml() {
+		List<Result> results = results();
+		String xml = ConformanceRunner.junitXml(results);
+		assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n"));
+		assertTrue(xml.contains("<testsuite name=\"a&amp;b\" tests=\"2\" failures=\"1\" skipped=\"0\" time=\"0.000300\">"));
+		assertTrue(xml.contains("<testsuite name=\"c\" tests=\"1\" failures=\"0\" skipped=\"1\""));
+		assertTrue(xml.contains("name=\"ok\" time=\"0.000100\"/>"));
+		assertTrue(xml.contains("<failure message=\"got &lt;x&gt; &quot;y&quot;\"/>"));
+		assertTrue(xml.contains("<skipped message=\"no handler\"/>"));
+		assertTrue(xml.endsWith("</testsuites>\n"));
+	}
+
+	@Test
+	void testXmlEscape() {
+		assertEquals("&lt;a href=&quot;x&quot;&gt;&amp;&lt;/a&gt;", ConformanceRunner.xmlEscape("<a href=\"x\">&</a>"));
+		assertEquals("tab\tline\n bell", ConformanceRunner.xmlEscape("tab\tline\n\u0007bell"));
+		assertEquals("é'", ConformanceRunner.xmlEscape("é'"));
+	}
+
+	@Test
+	void testJsonReport() {
+		Options options = Options.parse("--parallel", "--threads", "2", "--repeat", "3");
+		JsonNode report = new ConformanceRunner().jsonReport(results(), options, 2_000_000_000L);
+		assertEquals(3, report.get("total").asInt());
+		assertEquals(1, report.get("passed").asInt());
+		assertEquals(1, report.get("failed").asInt());
+		assertEquals(1, report.get("skipped").asInt());
+		assertEquals(3, report.get("repeat").asInt());
+		assertEquals(2, report.get("threads").asInt());
+		assertEquals(2000.0, report.get("wall_ms").asDouble());
+		assertEquals(1.5, report.get("vectors_per_second").asDouble());
+
+		JsonNode ok = report.get("vectors").get(0);
+		assertEquals("passed", ok.get("status").asText());
+		assertEquals("vector", ok.get("kind").asText());
+		assertEquals(100.0, ok.get("mean_us").asDouble());
+		assertEquals(50.0, ok.get("min_us").asDouble());
+		assertEquals(150.0, ok.get("max_us").asDouble());
+		JsonNode failed = report.get("vectors").get(1);
+		assertEquals("failed", failed.get("status").asText());
+		assertEquals("got <x> \"y\"", failed.get("failure").asText());
+		JsonNode skipped = report.get("vectors").get(2);
+		assertEquals("skipped", skipped.get("status").asText());
+		assertFalse(skipped.has("mean_us"));
+	}
+
+	/**
+	 * A passing, a failing and a skipped result across two suites.
+	 */
+	private static List<Result> results() {
+		Result ok = new Result(unit("a&b", "ok", Kind.VECTOR));
+		ok.record(50_000);
+		ok.record(150_000);
+		Result failed = new Result(unit("a&b", "bad", Kind.TRACE));
+		failed.record(100_000);
+		failed.failure = "got <x> \"y\"";
+		Result skipped = new Result(unit("c", "unknown", Kind.VECTOR));
+		skipped.skipped = true;
+		return List.of(ok, failed, skipped);
+	}
+
+	private static Unit unit(String suite, String name, Kind kind) {
+		return new Unit(suite, name, kind, MAPPER.createObjectNode(), null);
+	}
+}
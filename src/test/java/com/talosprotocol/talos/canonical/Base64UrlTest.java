@@ -0,0 +1,67 @@
+package com.talosprotocol.talos.canonical;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+class Base64UrlTest {
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	@Test
+	void testMatchesJdkCodec() {
+		Random rnd = new Random(3);
+		for (int size = 0; size < 200; size++) {
+			byte[] data = new byte[size];
+			rnd.nextBytes(data);
+			String expected = ENCODER.encodeToString(data);
+
+			assertEquals(expected, Base64Url.encodeToString(data));
+			assertEquals(expected.length(), Base64Url.encodedLength(size));
+			assertArrayEquals(data, Base64Url.decode(expected));
+			assertArrayEquals(data, Base64Url.decode(Base64.getUrlEncoder().encodeToString(data)));
+			assertEquals(size, Base64Url.decodedLength(expected));
+
+			byte[] out = new byte[size + 2];
+			assertEquals(size, Base64Url.decode(expected, out));
+			assertEquals(size, Base64Url.decode(new StringBuilder(expected), out));
+			assertArrayEquals(data, Arrays.copyOf(out, size));
+			assertArrayEquals(data, Base64Url.decode(new StringBuilder(expected)));
+		}
+	}
+
+	@Test
+	void testBufferEncodeMatchesArrayEncode() {
+		byte[] data = new byte[10_000];
+		new Random(5).nextBytes(data);
+		String expected = ENCODER.encodeToString(data);
+
+		for (ByteBuffer src : new ByteBuffer[]{ByteBuffer.wrap(data), ByteBuffer.allocateDirect(data.length)}) {
+			if (src.isDirect()) {
+				src.put(data).flip();
+			}
+			ByteBuffer dst = ByteBuffer.allocateDirect(expected.length());
+			Base64Url.encode(src, dst);
+			assertEquals(0, src.remaining());
+			dst.flip();
+			assertEquals(expected, StandardCharsets.US_ASCII.decode(dst).toString());
+		}
+		assertThrows(IllegalArgumentException.class,
+				() -> Base64Url.encode(ByteBuffer.wrap(data), ByteBuffer.allocate(10)));
+	}
+
+	@Test
+	void testRejectsWhatJdkRejects() {
+		for (String bad : new String[]{"A", "AB+C", "AB/C", "AB=C", "AB C", "ABCDE", "ABéC"}) {
+			assertThrows(IllegalArgumentException.class, () -> Base64.getUrlDecoder().decode(bad), bad);
+			assertThrows(IllegalArgumentException.class, () -> Base64Url.decode(bad), bad);
+			assertThrows(IllegalArgumentException.class, () -> Base64Url.decode(new StringBuilder(bad)), bad);
+		}
+	}
+}
@@ -1,13 +1,28 @@
 package com.talosprotocol.talos.canonical;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 class CanonicalJsonTest {
 
 	@Test
@@ -71,4 +86,131 @@ class CanonicalJsonTest {
 		assertEquals(s1, s2, "Nested permutation failed");
 		assertEquals("{\"x\":{\"y\":2,\"z\":3}}", s1);
 	}
+
+	@JsonPropertyOrder({"zeta", "alpha"})
+	public static class Grant {
+		public String zeta = "z";
+		public int alpha = 1;
+		@JsonProperty("middle")
+		public Map<String, Object> attrs = new LinkedHashMap<>(Map.of("y", 2, "x", List.of(1, 2)));
+	}
+
+	public record Capability(String subject, List<Grant> grants, boolean active) {
+	}
+
+	@Test
+	public void testStreamingMatchesMarshal() throws Exception {
+		Random rnd = new Random(1);
+		for (int i = 0; i < 50; i++) {
+			Object doc = randomValue(rnd, 0);
+			assertArrayEquals(CanonicalJson.marshal(doc), stream(doc), "document " + i);
+		}
+
+		Capability cap = new Capability("did:key:z6Mk", List.of(new Grant(), new Grant()), true);
+		assertArrayEquals(CanonicalJson.marshal(cap), stream(cap));
+		Map<String, Object> wrapped = new HashMap<>();
+		wrapped.put("cap", cap);
+		wrapped.put("arr", new Object[]{new Grant(), null, "s"});
+		assertArrayEquals(CanonicalJson.marshal(wrapped), stream(wrapped));
+	}
+
+	@Test
+	public void testStreamingJsonNode() throws Exception {
+		JsonNode node = new ObjectMapper()
+				.readTree("{\"b\":{\"d\":[3,{\"f\":1,\"e\":null}],\"c\":\"\\u00e9\"},\"a\":1.5}");
+		assertEquals("{\"a\":1.5,\"b\":{\"c\":\"\u00e9\",\"d\":[3,{\"e\":null,\"f\":1}]}}",
+				new String(stream(node), StandardCharsets.UTF_8));
+		assertArrayEquals(CanonicalJson.marshal(node), stream(node));
+	}
+
+	@Test
+	public void testStreamingLargeDocumentDoesNotCloseTarget() throws Exception {
+		List<Object> rows = new ArrayList<>();
+		for (int i = 0; i < 50_000; i++) {
+			Map<String, Object> row = new HashMap<>();
+			row.put("seq", i);
+			row.put("tool", "tool-" + (i % 97));
+			row.put("payload", "x".repeat(40));
+			rows.add(row);
+		}
+		Map<String, Object> doc = Map.of("rows", rows, "count", rows.size());
+
+		boolean[] closed = {false};
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				sink.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				sink.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		CanonicalJson.marshal(doc, out);
+		assertTrue(sink.size() > 4_000_000);
+		assertTrue(!closed[0]);
+		assertArrayEquals(CanonicalJson.marshal(doc), sink.toByteArray());
+	}
+
+	@Test
+	public void testStreamingIntoByteBuffer() throws Exception {
+		Map<String, Object> m = new HashMap<>();
+		m.put("b", 2);
+		m.put("a", List.of("x"));
+
+		ByteBuffer buf = ByteBuffer.allocateDirect(64);
+		buf.put((byte) '#');
+		CanonicalJson.marshal(m, buf);
+		buf.flip();
+		byte[] got = new byte[buf.remaining()];
+		buf.get(got);
+		assertEquals("#{\"a\":[\"x\"],\"b\":2}", new String(got, StandardCharsets.UTF_8));
+
+		assertThrows(BufferOverflowException.class, () -> CanonicalJson.marshal(m, ByteBuffer.allocate(4)));
+	}
+
+	private static byte[] stream(Object v) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CanonicalJson.marshal(v, out);
+		return out.toByteArray();
+	}
+
+	private static Object randomValue(Random rnd, int depth) {
+		int kind = depth > 3 ? rnd.nextInt(6) : rnd.nextInt(8);
+		switch (kind) {
+			case 0 :
+				return null;
+			case 1 :
+				return rnd.nextBoolean();
+			case 2 :
+				return rnd.nextInt();
+			case 3 :
+				return rnd.nextLong();
+			case 4 :
+				return rnd.nextDouble() * 1000;
+			case 5 :
+				return "s\"" + rnd.nextInt(100) + "\u00e9\n";
+			case 6 : {
+				Map<String, Object> m = new HashMap<>();
+				for (int i = rnd.nextInt(6); i > 0; i--) {
+					m.put("k" + rnd.nextInt(1000), randomValue(rnd, depth + 1));
+				}
+				return m;
+			}
+			default : {
+				List<Object> l = new ArrayList<>();
+				for (int i = rnd.nextInt(5); i > 0; i--) {
+					l.add(randomValue(rnd, depth + 1));
+				}
+				return rnd.nextBoolean() ? l : l.toArray();
+			}
+		}
+	}
 }
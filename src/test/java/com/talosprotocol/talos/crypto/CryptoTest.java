@@ -1,16 +1,24 @@
 package com.talosprotocol.talos.crypto;
 
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
 import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import com.talosprotocol.talos.errors.TalosError;
+
 class CryptoTest {
 
 	@Test
@@ -64,6 +72,41 @@ class CryptoTest {
 		assertArrayEquals(plain, decrypted);
 	}
 
+	@Test
+	void testHkdfChainStepMatchesHkdfDerive() {
+		byte[] infoMessage = "talos-double-ratchet-message".getBytes(StandardCharsets.UTF_8);
+		byte[] infoChain = "talos-double-ratchet-chain".getBytes(StandardCharsets.UTF_8);
+		byte[] ck = new byte[32];
+		for (int step = 0; step < 50; step++) {
+			byte[] mk = new byte[32];
+			byte[] nextCk = new byte[32];
+			Crypto.hkdfChainStep(ck, infoMessage, mk, infoChain, nextCk);
+			assertArrayEquals(Crypto.hkdfDerive(ck, null, infoMessage, 32), mk);
+			assertArrayEquals(Crypto.hkdfDerive(ck, null, infoChain, 32), nextCk);
+
+			// In-place update of the chain key gives the same result.
+			byte[] inPlace = ck.clone();
+			Crypto.hkdfChainStep(inPlace, infoMessage, new byte[32], infoChain, inPlace);
+			assertArrayEquals(nextCk, inPlace);
+			ck = nextCk;
+		}
+
+		byte[] longOut = new byte[100];
+		Crypto.hkdfChainStep(ck, infoMessage, longOut, infoChain, new byte[1]);
+		assertArrayEquals(Crypto.hkdfDerive(ck, null, infoMessage, 100), longOut);
+	}
+
+	@Test
+	void testHkdfChainStepRfc5869() {
+		// RFC 5869 test case 3: zero-length salt and info.
+		byte[] ikm = new byte[22];
+		Arrays.fill(ikm, (byte) 0x0b);
+		byte[] okm = new byte[42];
+		Crypto.hkdfChainStep(ikm, new byte[0], okm, null, new byte[0]);
+		assertEquals("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8",
+				Hex.toHexString(okm));
+	}
+
 	@Test
 	void testHmac() {
 		byte[] key = new byte[32];
@@ -71,4 +114,114 @@ class CryptoTest {
 		byte[] mac = Crypto.hmacSha256(key, data);
 		assertEquals(32, mac.length);
 	}
+
+	@Test
+	void testAeadIntoArrayMatchesAllocatingApi() {
+		byte[] key = new byte[32];
+		key[0] = 7;
+		byte[] nonce = new byte[12];
+		byte[] plain = "secret payload".getBytes(StandardCharsets.UTF_8);
+		byte[] ad = "header".getBytes(StandardCharsets.UTF_8);
+		byte[] expected = Crypto.encryptWithNonce(key, nonce, plain, ad);
+
+		byte[] in = new byte[plain.length + 5];
+		System.arraycopy(plain, 0, in, 5, plain.length);
+		byte[] out = new byte[expected.length + 3];
+		int n = Crypto.encryptWithNonce(key, nonce, in, 5, plain.length, ad, out, 3);
+		assertEquals(expected.length, n);
+		assertArrayEquals(expected, Arrays.copyOfRange(out, 3, 3 + n));
+
+		byte[] back = new byte[plain.length];
+		assertEquals(plain.length, Crypto.decryptWithNonce(key, nonce, out, 3, n, ad, back, 0));
+		assertArrayEquals(plain, back);
+	}
+
+	@Test
+	void testAeadDirectBuffers() {
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[12];
+		nonce[11] = 1;
+		byte[] plain = new byte[10_000];
+		for (int i = 0; i < plain.length; i++) {
+			plain[i] = (byte) i;
+		}
+		byte[] ad = "header".getBytes(StandardCharsets.UTF_8);
+		byte[] expected = Crypto.encryptWithNonce(key, nonce, plain, ad);
+
+		ByteBuffer src = ByteBuffer.allocateDirect(plain.length);
+		src.put(plain).flip();
+		ByteBuffer sealed = ByteBuffer.allocateDirect(plain.length + AeadContext.TAG_SIZE);
+		assertEquals(expected.length, Crypto.encryptWithNonce(key, nonce, src, ad, sealed));
+		sealed.flip();
+		byte[] got = new byte[sealed.remaining()];
+		sealed.duplicate().get(got);
+		assertArrayEquals(expected, got);
+
+		ByteBuffer opened = ByteBuffer.allocate(plain.length);
+		assertEquals(plain.length, Crypto.decryptWithNonce(key, nonce, sealed, ad, opened));
+		assertArrayEquals(plain, opened.array());
+	}
+
+	@Test
+	void testAeadTamperZeroesOutput() {
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[12];
+		nonce[0] = 9;
+		byte[] plain = "attack at dawn".getBytes(StandardCharsets.UTF_8);
+		byte[] sealed = Crypto.encryptWithNonce(key, nonce, plain, null);
+		sealed[0] ^= 1;
+
+		ByteBuffer in = ByteBuffer.allocateDirect(sealed.length);
+		in.put(sealed).flip();
+		ByteBuffer out = ByteBuffer.allocateDirect(plain.length);
+		assertThrows(TalosError.class, () -> Crypto.decryptWithNonce(key, nonce, in, null, out));
+		assertEquals(0, out.position());
+		for (int i = 0; i < plain.length; i++) {
+			assertEquals(0, out.get(i));
+		}
+	}
+
+	@Test
+	void testAeadContextWipesKeyWhenCallFails() throws ReflectiveOperationException {
+		AeadContext ctx = new AeadContext();
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 0x5A);
+		byte[] nonce = new byte[12];
+		byte[] plain = new byte[8];
+		Field keyParamField = AeadContext.class.getDeclaredField("keyParam");
+		keyParamField.setAccessible(true);
+		byte[] staged = ((KeyParameter) keyParamField.get(ctx)).getKey();
+
+		assertThrows(TalosError.class, () -> ctx.encrypt(key, nonce, null, 0, 0, plain, 0, plain.length, plain, 0));
+		assertArrayEquals(new byte[32], staged);
+		assertThrows(TalosError.class, () -> ctx.decrypt(key, nonce, null, 0, 0, plain, 0, 4, plain, 0));
+		assertArrayEquals(new byte[32], staged);
+		assertThrows(TalosError.class, () -> ctx.encrypt(key, new byte[8], null, 0, 0, plain, 0, 0, plain, 0));
+		assertArrayEquals(new byte[32], staged);
+		assertThrows(TalosError.class,
+				() -> ctx.decrypt(key, nonce, null, ByteBuffer.allocateDirect(4), ByteBuffer.allocateDirect(4)));
+		assertArrayEquals(new byte[32], staged);
+	}
+
+	@Test
+	void testAeadContextDropsKeyAfterEachCall() throws ReflectiveOperationException {
+		AeadContext ctx = new AeadContext();
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 0x5A);
+		byte[] nonce = new byte[12];
+		byte[] plain = new byte[8];
+		byte[] out = new byte[plain.length + AeadContext.TAG_SIZE];
+		ctx.encrypt(key, nonce, null, 0, 0, plain, 0, plain.length, out, 0);
+
+		Field cipherField = AeadContext.class.getDeclaredField("cipher");
+		cipherField.setAccessible(true);
+		Object cipher = cipherField.get(ctx);
+		Field keyField = cipher.getClass().getDeclaredField("key");
+		keyField.setAccessible(true);
+		assertArrayEquals(new byte[32], (byte[]) keyField.get(cipher));
+
+		byte[] opened = new byte[plain.length];
+		ctx.decrypt(key, nonce, null, 0, 0, out, 0, out.length, opened, 0);
+		assertArrayEquals(new byte[32], (byte[]) keyField.get(cipher));
+	}
 }
@@ -0,0 +1,98 @@
+package com.talosprotocol.talos.crypto;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.talosprotocol.talos.wallet.Wallet;
+
+class PublicKeyCacheTest {
+
+	@AfterEach
+	void uninstall() {
+		Crypto.setPublicKeyCache(null);
+	}
+
+	@Test
+	void testBoundedCacheEvictsOldest() {
+		BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		assertEquals(1, cache.put("a", 99));
+		cache.put("c", 3);
+
+		assertNull(cache.getIfPresent("a"));
+		assertEquals(2, cache.getIfPresent("b"));
+		BoundedCache.Stats stats = cache.stats();
+		assertEquals(1, stats.hits);
+		assertEquals(1, stats.misses);
+		assertEquals(1, stats.evictions);
+		assertEquals(2, stats.size);
+		assertEquals(0.5, stats.hitRate());
+	}
+
+	@Test
+	void testBoundedCacheKeepsReadEntriesThroughFlood() {
+		BoundedCache<String, Integer> cache = new BoundedCache<>(4);
+		cache.put("hot", 1);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1, cache.getIfPresent("hot"));
+			cache.put("junk" + i, i);
+		}
+		assertEquals(1, cache.getIfPresent("hot"));
+		assertEquals(4, cache.size());
+		assertNull(cache.getIfPresent("junk0"));
+		assertEquals(97, cache.stats().evictions);
+	}
+
+	@Test
+	void testCachedDecodeIsSharedAndCopiesKey() {
+		PublicKeyCache cache = new PublicKeyCache(16);
+		Crypto.setPublicKeyCache(cache);
+
+		Ed25519PrivateKeyParameters priv = Crypto.generateKey();
+		byte[] raw = priv.generatePublicKey().getEncoded();
+		byte[] original = raw.clone();
+		assertSame(Crypto.decodeEd25519PublicKey(raw), Crypto.decodeEd25519PublicKey(raw.clone()));
+		raw[0] ^= 1;
+		assertArrayEquals(original, Crypto.decodeEd25519PublicKey(original).getEncoded());
+		assertEquals(2, cache.ed25519Stats().hits);
+
+		byte[] msg = "hi".getBytes(StandardCharsets.UTF_8);
+		assertTrue(Wallet.verify(msg, Crypto.sign(priv, msg), original));
+		assertEquals(3, cache.ed25519Stats().hits);
+	}
+
+	@Test
+	void testX25519DhUsesCache() {
+		PublicKeyCache cache = new PublicKeyCache(16);
+		Crypto.setPublicKeyCache(cache);
+		Crypto.KeyPairX25519 a = Crypto.x25519Generate();
+		Crypto.KeyPairX25519 b = Crypto.x25519Generate();
+
+		byte[] s1 = Crypto.x25519Dh(a.privateKey, b.publicKey);
+		byte[] s2 = Crypto.x25519Dh(a.privateKey, b.publicKey);
+		assertArrayEquals(s1, s2);
+		assertArrayEquals(s1, Crypto.x25519Dh(b.privateKey, a.publicKey));
+		assertEquals(1, cache.x25519Stats().hits);
+		assertEquals(2, cache.x25519Stats().misses);
+	}
+
+	@Test
+	void testInvalidKeyIsNotCached() {
+		PublicKeyCache cache = new PublicKeyCache(16);
+		byte[] bad = new byte[32];
+		bad[31] = (byte) 0x80;
+		bad[0] = 2;
+		assertThrows(IllegalArgumentException.class, () -> cache.ed25519(bad));
+		assertEquals(0, cache.ed25519Stats().size);
+	}
+}
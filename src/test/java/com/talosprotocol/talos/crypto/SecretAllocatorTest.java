@@ -0,0 +1,85 @@
+package com.talosprotocol.talos.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class SecretAllocatorTest {
+
+	@Test
+	void testSlotsAreZeroedAndReused() {
+		for (SecretAllocator allocator : new SecretAllocator[]{SecretAllocator.heap(32, 4),
+				SecretAllocator.direct(32, 4)}) {
+			byte[] key = new byte[32];
+			key[0] = 1;
+			key[31] = 2;
+
+			SecretBuffer[] held = new SecretBuffer[6];
+			for (int i = 0; i < held.length; i++) {
+				held[i] = allocator.copyOf(key);
+			}
+			assertEquals(2, allocator.slabCount());
+			assertEquals(6, allocator.inUse());
+			assertEquals(allocator.isDirect(), held[0].isDirect());
+			assertArrayEquals(key, held[5].toByteArray());
+			assertTrue(held[5].contentEquals(key));
+
+			for (SecretBuffer b : held) {
+				b.close();
+			}
+			assertEquals(0, allocator.inUse());
+			assertThrows(IllegalStateException.class, () -> held[0].toByteArray());
+
+			// Reuse hands back zeroed slots without growing.
+			for (int i = 0; i < held.length; i++) {
+				held[i] = allocator.allocate();
+				assertArrayEquals(new byte[32], held[i].toByteArray());
+			}
+			assertEquals(2, allocator.slabCount());
+			assertFalse(held[0].contentEquals(key));
+		}
+	}
+
+	@Test
+	void testStaleHandleCannotReachNextOwner() {
+		SecretAllocator allocator = SecretAllocator.heap(32, 1);
+		byte[] key = new byte[32];
+		key[7] = 9;
+		SecretBuffer stale = allocator.allocate();
+		stale.close();
+
+		SecretBuffer owner = allocator.copyOf(key);
+		assertEquals(1, allocator.slabCount());
+		stale.close();
+		assertThrows(IllegalStateException.class, () -> stale.toByteArray());
+		assertThrows(IllegalStateException.class, () -> stale.wipe());
+		assertEquals(1, allocator.inUse());
+		assertArrayEquals(key, owner.toByteArray());
+		owner.close();
+		assertEquals(0, allocator.inUse());
+	}
+
+	@Test
+	void testChainStepIntoSecretBufferMatchesArrays() {
+		byte[] ck = Crypto.hkdfDerive(new byte[32], null, "ck".getBytes(), 32);
+		byte[] info1 = "message".getBytes();
+		byte[] info2 = "chain".getBytes();
+		byte[] mk = new byte[32];
+		byte[] next = new byte[32];
+		Crypto.hkdfChainStep(ck, info1, mk, info2, next);
+
+		try (SecretBuffer pooled = SecretAllocator.direct(32, 1).allocate()) {
+			byte[] inPlace = ck.clone();
+			Crypto.hkdfChainStep(inPlace, info1, pooled, info2, inPlace);
+			assertArrayEquals(mk, pooled.toByteArray());
+			assertArrayEquals(next, inPlace);
+
+			byte[] ct = new byte[20];
+			Crypto.encryptWithNonce(pooled, new byte[12], new byte[4], 0, 4, null, ct, 0);
+			assertArrayEquals(Crypto.encryptWithNonce(mk, new byte[12], new byte[4], null), ct);
+		}
+	}
+}
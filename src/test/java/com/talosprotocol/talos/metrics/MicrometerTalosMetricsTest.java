@@ -0,0 +1,108 @@
+package com.talosprotocol.talos.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+import com.talosprotocol.talos.crypto.Crypto;
+import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.ratchet.RatchetSession;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MicrometerTalosMetricsTest {
+
+	private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+			.withConfiguration(AutoConfigurations.of(TalosMetricsAutoConfiguration.class));
+
+	@AfterEach
+	void uninstall() {
+		TalosMetrics.install(null);
+	}
+
+	@Test
+	void testNoopByDefault() {
+		assertSame(TalosMetrics.NOOP, TalosMetrics.current());
+		assertFalse(TalosMetrics.current().enabled());
+		assertEquals(0L, TalosMetrics.start());
+	}
+
+	@Test
+	void testRatchetMeters() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		TalosMetrics.install(new MicrometerTalosMetrics(registry));
+
+		KeyPairX25519 aliceId = Crypto.x25519Generate();
+		KeyPairX25519 bobId = Crypto.x25519Generate();
+		KeyPairX25519 bobSpk = Crypto.x25519Generate();
+		RatchetSession alice = new RatchetSession();
+		alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+		RatchetSession bob = new RatchetSession();
+		bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+				alice.getState().dh_public);
+
+		byte[] pt = "metrics".getBytes(StandardCharsets.UTF_8);
+		String skipped = alice.encrypt(pt, null);
+		String wire = alice.encrypt(pt, null);
+		bob.decrypt(wire);
+		bob.decrypt(skipped);
+		alice.decrypt(bob.encrypt(pt, null));
+
+		assertEquals(3, registry.get("talos.ratchet.encrypt").timer().count());
+		assertEquals(3, registry.get("talos.ratchet.decrypt").timer().count());
+		assertEquals(1.0, registry.get("talos.ratchet.dh.steps").counter().count());
+		assertEquals(3, registry.get("talos.ratchet.skipped.keys").summary().count());
+		assertEquals(1.0, registry.get("talos.ratchet.skipped.keys").summary().max());
+		assertEquals(3.0 * pt.length,
+				registry.get("talos.ratchet.plaintext.bytes").tag("direction", "out").counter().count());
+		assertEquals(3.0 * pt.length,
+				registry.get("talos.ratchet.plaintext.bytes").tag("direction", "in").counter().count());
+		double wireOut = registry.get("talos.ratchet.wire.bytes").tag("direction", "out").counter().count();
+		assertTrue(wireOut > 3.0 * pt.length);
+		assertEquals(wireOut, registry.get("talos.ratchet.wire.bytes").tag("direction", "in").counter().count());
+		assertTrue(registry.get("talos.crypto.operation").tag("op", "hkdf").timer().count() > 0);
+		assertTrue(registry.get("talos.crypto.operation").tag("op", "aead_seal").timer().count() >= 3);
+		assertTrue(registry.get("talos.crypto.operation").tag("op", "x25519").timer().count() > 0);
+
+		String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString("{}".getBytes());
+		assertThrows(TalosError.class, () -> bob.decrypt(tampered));
+		assertThrows(TalosError.class, () -> bob.decrypt(wire));
+		assertEquals(0.0, registry.get("talos.ratchet.decrypt.failures").tag("code", "UNKNOWN").counter().count());
+		assertEquals(2.0,
+				registry.get("talos.ratchet.decrypt.failures").tag("code", "TALOS_FRAME_INVALID").counter().count());
+		assertEquals(1.0, registry.get("talos.ratchet.frame.rejected").tag("reason", "missing_field").counter().count());
+		assertEquals(1.0,
+				registry.get("talos.ratchet.frame.rejected").tag("reason", "key_unavailable").counter().count());
+		assertEquals(3, registry.get("talos.ratchet.decrypt").timer().count());
+	}
+
+	@Test
+	void testAutoConfigurationInstallsAndUninstalls() {
+		contextRunner.withBean(MeterRegistry.class, SimpleMeterRegistry::new).run(context -> {
+			assertNotNull(context.getBean(MicrometerTalosMetrics.class));
+			assertSame(context.getBean(MicrometerTalosMetrics.class), TalosMetrics.current());
+		});
+		assertSame(TalosMetrics.NOOP, TalosMetrics.current());
+	}
+
+	@Test
+	void testAutoConfigurationBacksOff() {
+		contextRunner.run(context -> assertFalse(context.containsBean("talosMetrics")));
+		contextRunner.withBean(MeterRegistry.class, SimpleMeterRegistry::new)
+				.withPropertyValues("talos.metrics.enabled=false")
+				.run(context -> assertFalse(context.containsBean("talosMetrics")));
+		assertSame(TalosMetrics.NOOP, TalosMetrics.current());
+	}
+}
@@ -0,0 +1,106 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import com.talosprotocol.talos.errors.TalosError;
+
+class AsyncRatchetSessionManagerTest {
+
+	@Test
+	void testSubmissionOrderPerSession() throws Exception {
+		int sessions = 4;
+		int messages = 50;
+		RatchetSessionManager senders = new RatchetSessionManager();
+		RatchetSessionManager receivers = new RatchetSessionManager();
+		for (int i = 0; i < sessions; i++) {
+			RatchetSession[] pair = RatchetSessionTest.newPair();
+			senders.register("s" + i, pair[0]);
+			receivers.register("s" + i, pair[1]);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try (AsyncRatchetSessionManager async = new AsyncRatchetSessionManager(senders, pool)) {
+			List<List<CompletableFuture<String>>> wires = new ArrayList<>();
+			for (int i = 0; i < sessions; i++) {
+				wires.add(new ArrayList<>());
+			}
+			for (int m = 0; m < messages; m++) {
+				for (int i = 0; i < sessions; i++) {
+					wires.get(i).add(async.encrypt("s" + i, ("m" + m).getBytes(StandardCharsets.UTF_8), null));
+				}
+			}
+			// In-order decryption leaves no skipped keys only if encryption ran
+			// in submission order.
+			for (int i = 0; i < sessions; i++) {
+				for (int m = 0; m < messages; m++) {
+					String pt = new String(receivers.decrypt("s" + i, wires.get(i).get(m).get()),
+							StandardCharsets.UTF_8);
+					assertEquals("m" + m, pt);
+				}
+				assertEquals(0, (int) receivers.withSession("s" + i, s -> s.getState().skipped_message_keys.size()));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void testFailureIsIsolated() throws Exception {
+		RatchetSessionManager mgr = new RatchetSessionManager();
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		mgr.register("bob", pair[1]);
+		try (AsyncRatchetSessionManager async = new AsyncRatchetSessionManager(mgr)) {
+			CompletableFuture<byte[]> bad = async.decrypt("bob", "not-a-message");
+			CompletableFuture<byte[]> good = async.decrypt("bob", pair[0].encrypt("ok".getBytes(), null));
+			ExecutionException e = assertThrows(ExecutionException.class, bad::get);
+			assertInstanceOf(RuntimeException.class, e.getCause());
+			assertEquals("ok", new String(good.get()));
+			assertInstanceOf(TalosError.class, async.encrypt("nobody", new byte[1], null).handle((v, t) -> t).get());
+		}
+	}
+
+	@Test
+	void testCancelledOperationIsSkippedAndKeepsOrder() throws Exception {
+		RatchetSessionManager mgr = new RatchetSessionManager();
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		mgr.register("alice", pair[0]);
+		CountDownLatch release = new CountDownLatch(1);
+		try (AsyncRatchetSessionManager async = new AsyncRatchetSessionManager(mgr)) {
+			CompletableFuture<String> first = async.withSession("alice", s -> {
+				await(release);
+				return s.encrypt("first".getBytes(StandardCharsets.UTF_8), null);
+			});
+			CompletableFuture<String> cancelled = async.encrypt("alice", "skipped".getBytes(StandardCharsets.UTF_8),
+					null);
+			CompletableFuture<String> last = async.encrypt("alice", "last".getBytes(StandardCharsets.UTF_8), null);
+			cancelled.cancel(false);
+			release.countDown();
+
+			assertEquals("first", new String(pair[1].decrypt(first.get()), StandardCharsets.UTF_8));
+			assertEquals("last", new String(pair[1].decrypt(last.get()), StandardCharsets.UTF_8));
+			// The cancelled encrypt never used up a message key.
+			assertEquals(0, pair[1].getState().skipped_message_keys.size());
+			assertEquals(2, (int) mgr.withSession("alice", s -> s.getState().n_s));
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
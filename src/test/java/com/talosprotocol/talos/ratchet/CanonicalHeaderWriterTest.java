@@ -0,0 +1,93 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.talosprotocol.talos.canonical.CanonicalJson;
+import com.talosprotocol.talos.crypto.Crypto;
+import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+
+class CanonicalHeaderWriterTest {
+	private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+
+	@Test
+	void testHeaderMatchesCanonicalJson() throws Exception {
+		Random rnd = new Random(42);
+		int[] edge = {0, 1, 9, 10, 99, 100, 999, 1000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+		for (int i = 0; i < 500; i++) {
+			byte[] dhBytes = new byte[rnd.nextInt(40)];
+			rnd.nextBytes(dhBytes);
+			String dh = B64.encodeToString(dhBytes);
+			int n = i < edge.length ? edge[i] : rnd.nextInt();
+			int pn = i < edge.length ? edge[edge.length - 1 - i] : rnd.nextInt(100_000);
+
+			Map<String, Object> header = new HashMap<>();
+			header.put("dh", dh);
+			header.put("n", n);
+			header.put("pn", pn);
+
+			assertArrayEquals(CanonicalJson.marshal(header), CanonicalHeaderWriter.get().header(dh, n, pn));
+			header.put("c", DeflateCodec.ID);
+			assertArrayEquals(CanonicalJson.marshal(header),
+					CanonicalHeaderWriter.get().header(DeflateCodec.ID, dh, n, pn));
+		}
+	}
+
+	@Test
+	void testEnvelopeMatchesCanonicalJson() throws Exception {
+		Random rnd = new Random(7);
+		for (int size : new int[]{0, 1, 16, 300, 70_000}) {
+			byte[] ct = new byte[size];
+			byte[] nonce = new byte[12];
+			rnd.nextBytes(ct);
+			rnd.nextBytes(nonce);
+
+			Map<String, Object> header = new HashMap<>();
+			header.put("dh", "abc_-XYZ");
+			header.put("n", size);
+			header.put("pn", 3);
+			Map<String, Object> envelope = new HashMap<>();
+			envelope.put("header", header);
+			envelope.put("nonce", B64.encodeToString(nonce));
+			envelope.put("ciphertext", B64.encodeToString(ct));
+
+			CanonicalHeaderWriter w = CanonicalHeaderWriter.get();
+			byte[] headerBytes = w.header("abc_-XYZ", size, 3);
+			w.envelope(ct, headerBytes, nonce);
+			assertArrayEquals(CanonicalJson.marshal(envelope), Arrays.copyOf(w.buffer(), w.length()));
+		}
+	}
+
+	@Test
+	void testEncryptOutputMatchesGenericCanonicalization() throws Exception {
+		KeyPairX25519 bobId = Crypto.x25519Generate();
+		KeyPairX25519 bobSpk = Crypto.x25519Generate();
+		RatchetSession alice = new RatchetSession();
+		alice.initializeAsInitiator(Crypto.x25519Generate().privateKey, bobId.publicKey, null, bobSpk.publicKey,
+				null, null);
+
+		ObjectMapper mapper = new ObjectMapper();
+		for (int i = 0; i < 3; i++) {
+			byte[] wire = Base64.getUrlDecoder().decode(alice.encrypt(new byte[i * 50], null));
+			Object generic = mapper.readValue(wire, Object.class);
+			assertArrayEquals(CanonicalJson.marshal(generic), wire);
+		}
+	}
+
+	@Test
+	void testPlainBase64UrlCheck() {
+		assertTrue(CanonicalHeaderWriter.isPlainBase64Url("AZaz09-_"));
+		assertFalse(CanonicalHeaderWriter.isPlainBase64Url("a+b"));
+		assertFalse(CanonicalHeaderWriter.isPlainBase64Url("a\"b"));
+		assertFalse(CanonicalHeaderWriter.isPlainBase64Url("é"));
+	}
+}
@@ -0,0 +1,152 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.ratchet.FrameValidator.Reason;
+
+class DeflateCodecTest {
+	private static final DeflateCodec CODEC = DeflateCodec.DEFAULT;
+
+	@Test
+	void testThresholds() {
+		byte[] json = toolOutput(40);
+		byte[] encoded = CODEC.encode(json);
+		assertNotNull(encoded);
+		assertTrue(encoded.length < json.length / 3);
+		assertArrayEquals(json, CODEC.decode(encoded, 0, encoded.length, json.length));
+
+		// Too small, too random, or not worth it.
+		assertNull(CODEC.encode(new byte[DeflateCodec.DEFAULT_MIN_SIZE - 1]));
+		byte[] random = new byte[64 * 1024];
+		new Random(3).nextBytes(random);
+		assertNull(CODEC.encode(random));
+		assertNull(new DeflateCodec(1, 0, 8).encode(Arrays.copyOf(random, 300)));
+	}
+
+	@Test
+	void testDecodeLimitsAndErrors() {
+		byte[] json = toolOutput(40);
+		byte[] encoded = CODEC.encode(json);
+		assertThrows(TalosError.class, () -> CODEC.decode(encoded, 0, encoded.length, json.length - 1));
+		assertThrows(TalosError.class, () -> CODEC.decode(encoded, 0, encoded.length - 1, json.length));
+		assertThrows(TalosError.class, () -> CODEC.decode(new byte[]{1, 2, 3, 4}, 0, 4, 100));
+		byte[] trailing = Arrays.copyOf(encoded, encoded.length + 1);
+		assertThrows(TalosError.class, () -> CODEC.decode(trailing, 0, trailing.length, json.length));
+		assertThrows(IllegalArgumentException.class, () -> new DeflateCodec(10, 0, 7));
+	}
+
+	@Test
+	void testSessionRoundTrip() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		alice.setPayloadCodec(CODEC);
+		byte[] json = toolOutput(40);
+
+		String compressed = alice.encrypt(json, null);
+		String small = alice.encrypt("hi".getBytes(StandardCharsets.UTF_8), null);
+		assertTrue(envelope(compressed).contains("\"header\":{\"c\":\"deflate\",\"dh\""));
+		assertTrue(envelope(small).contains("\"header\":{\"dh\""));
+		assertTrue(compressed.length() < json.length / 2);
+		assertArrayEquals(json, bob.decrypt(compressed));
+		assertEquals("hi", new String(bob.decrypt(small), StandardCharsets.UTF_8));
+
+		List<byte[]> batch = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			batch.add(toolOutput(i * 5));
+		}
+		List<byte[]> opened = bob.decryptBatch(alice.encryptBatch(batch));
+		for (int i = 0; i < batch.size(); i++) {
+			assertArrayEquals(batch.get(i), opened.get(i));
+		}
+	}
+
+	@Test
+	void testCodecFieldIsAuthenticated() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		FrameValidator validator = new FrameValidator(FrameValidator.DEFAULT_MAX_FRAME_BYTES);
+		bob.setFrameValidator(validator);
+		alice.setPayloadCodec(CODEC);
+		byte[] json = toolOutput(20);
+		String wire = alice.encrypt(json, null);
+
+		String stripped = b64(envelope(wire).replace("{\"c\":\"deflate\",", "{"));
+		assertThrows(TalosError.class, () -> bob.decrypt(stripped));
+		String unknown = b64(envelope(wire).replace("\"deflate\"", "\"zstd\""));
+		TalosError e = assertThrows(TalosError.class, () -> bob.decrypt(unknown));
+		assertSame(Reason.UNKNOWN_CODEC.error(), e);
+		assertEquals(1, validator.rejectedCount(Reason.UNKNOWN_CODEC));
+
+		assertArrayEquals(json, bob.decrypt(wire));
+	}
+
+	@Test
+	void testNegotiation() {
+		List<String> peer = List.of("ratchet", PayloadCodecs.feature(CODEC));
+		assertEquals("ratchet-codec-deflate", PayloadCodecs.feature(CODEC));
+		assertSame(CODEC, PayloadCodecs.negotiate(List.of(CODEC), peer));
+		assertNull(PayloadCodecs.negotiate(List.of(CODEC), List.of("ratchet")));
+		assertSame(CODEC, PayloadCodecs.forId(DeflateCodec.ID));
+		PayloadCodec invalid = new PayloadCodec() {
+			@Override
+			public String id() {
+				return "Not Valid";
+			}
+
+			@Override
+			public byte[] encode(byte[] payload) {
+				return null;
+			}
+
+			@Override
+			public byte[] decode(byte[] data, int off, int len, int maxLength) {
+				return Arrays.copyOfRange(data, off, off + len);
+			}
+		};
+		assertThrows(IllegalArgumentException.class, () -> PayloadCodecs.register(invalid));
+	}
+
+	/**
+	 * JSON shaped like an agent tool result listing {@code rows} records.
+	 */
+	static byte[] toolOutput(int rows) {
+		Random rnd = new Random(rows);
+		StringBuilder sb = new StringBuilder("{\"tool\":\"search_files\",\"status\":\"ok\",\"results\":[");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"path\":\"src/main/java/com/example/service/Module").append(rnd.nextInt(500))
+					.append(".java\",\"line\":").append(rnd.nextInt(2000)).append(",\"score\":0.")
+					.append(rnd.nextInt(1000)).append(",\"snippet\":\"public void handle").append(rnd.nextInt(90))
+					.append("(Request request) { return service.process(request, context); }\",\"tags\":[\"java\",\"")
+					.append(rnd.nextBoolean() ? "service" : "handler").append("\"]}");
+		}
+		return sb.append("],\"truncated\":false}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String envelope(String wire) {
+		return new String(Base64.getUrlDecoder().decode(wire), StandardCharsets.UTF_8);
+	}
+
+	private static String b64(String json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+}
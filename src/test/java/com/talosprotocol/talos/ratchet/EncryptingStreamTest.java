@@ -0,0 +1,146 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
+class EncryptingStreamTest {
+	private static final int SEGMENT = 64;
+
+	@Test
+	void testRoundTripAcrossSegmentBoundaries() throws IOException {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		Random rnd = new Random(1);
+		for (int size : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 5 * SEGMENT + 17}) {
+			byte[] payload = new byte[size];
+			rnd.nextBytes(payload);
+			byte[] wire = encrypt(pair[0], payload, 7);
+			int segments = Math.max(1, (size + SEGMENT - 1) / SEGMENT);
+			assertEquals(payload.length + segments * EncryptingStream.TAG_SIZE, wire.length - headerLength(wire));
+
+			try (DecryptingStream in = pair[1].decryptStream(new ByteArrayInputStream(wire))) {
+				assertArrayEquals(payload, in.readAllBytes(), "size " + size);
+			}
+		}
+		// Streams and single messages share the chain.
+		assertEquals("after", new String(pair[1].decrypt(pair[0].encrypt("after".getBytes(), null))));
+	}
+
+	@Test
+	void testFileChannelTransfer(@TempDir Path dir) throws IOException {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		byte[] payload = new byte[10 * SEGMENT + 3];
+		new Random(2).nextBytes(payload);
+		Path source = Files.write(dir.resolve("plain"), payload);
+		Path sealed = dir.resolve("sealed");
+		Path opened = dir.resolve("opened");
+
+		try (FileChannel in = FileChannel.open(source);
+				EncryptingStream out = pair[0].encryptStream(FileChannel.open(sealed, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE), SEGMENT)) {
+			assertEquals(payload.length, out.transferFrom(in));
+		}
+		try (DecryptingStream in = pair[1].decryptStream(FileChannel.open(sealed));
+				FileChannel out = FileChannel.open(opened, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			assertEquals(payload.length, in.transferTo(out));
+		}
+		assertArrayEquals(payload, Files.readAllBytes(opened));
+	}
+
+	@Test
+	void testTamperingIsDetected() throws IOException {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession bob = pair[1];
+		byte[] payload = new byte[4 * SEGMENT];
+		byte[] wire = encrypt(pair[0], payload, 3);
+		int header = headerLength(wire);
+		int sealedSegment = SEGMENT + EncryptingStream.TAG_SIZE;
+
+		// A forged first segment leaves the session as it was.
+		byte[] before = RatchetStateCodec.encode(bob.getState());
+		byte[] forged = wire.clone();
+		forged[header] ^= 1;
+		assertThrows(TalosError.class, () -> bob.decryptStream(new ByteArrayInputStream(forged)));
+		assertArrayEquals(before, RatchetStateCodec.encode(bob.getState()));
+
+		// Truncated at a segment boundary: the new last segment is not flagged.
+		byte[] truncated = Arrays.copyOf(wire, header + 2 * sealedSegment);
+		assertDecryptFails(pair[1], truncated);
+
+		// Swapped segments after the first.
+		RatchetSession[] other = RatchetSessionTest.newPair();
+		byte[] original = encrypt(other[0], payload, 64);
+		byte[] swapped = original.clone();
+		System.arraycopy(original, header + sealedSegment, swapped, header + 2 * sealedSegment, sealedSegment);
+		System.arraycopy(original, header + 2 * sealedSegment, swapped, header + sealedSegment, sealedSegment);
+		assertDecryptFails(other[1], swapped);
+
+		TalosError e = assertThrows(TalosError.class,
+				() -> bob.decryptStream(new ByteArrayInputStream(new byte[]{RatchetFrame.VERSION})));
+		assertEquals(TalosErrorCode.TALOS_FRAME_INVALID, e.getCode());
+	}
+
+	@Test
+	void testChannelWritesAndReads() throws IOException {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try (EncryptingStream out = pair[0].encryptStream(Channels.newChannel(sink), SEGMENT)) {
+			out.write(ByteBuffer.wrap(new byte[100]));
+			out.write(ByteBuffer.allocateDirect(100));
+			out.write(7);
+		}
+		try (DecryptingStream in = pair[1].decryptStream(Channels.newChannel(new ByteArrayInputStream(
+				sink.toByteArray())))) {
+			ByteBuffer dst = ByteBuffer.allocate(300);
+			int total = 0;
+			for (int r; (r = in.read(dst)) >= 0;) {
+				total += r;
+			}
+			assertEquals(201, total);
+			assertEquals(7, dst.get(200));
+		}
+		assertThrows(IllegalArgumentException.class, () -> pair[0].encryptStream(sink, 0));
+	}
+
+	private static void assertDecryptFails(RatchetSession receiver, byte[] wire) throws IOException {
+		try (InputStream in = receiver.decryptStream(new ByteArrayInputStream(wire))) {
+			assertThrows(TalosError.class, in::readAllBytes);
+		}
+	}
+
+	private static byte[] encrypt(RatchetSession sender, byte[] payload, int chunk) throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try (EncryptingStream out = sender.encryptStream(sink, SEGMENT)) {
+			for (int off = 0; off < payload.length; off += chunk) {
+				out.write(payload, off, Math.min(chunk, payload.length - off));
+			}
+		}
+		return sink.toByteArray();
+	}
+
+	private static int headerLength(byte[] wire) {
+		ByteBuffer b = ByteBuffer.wrap(wire, 1 + RatchetFrame.DH_SIZE, wire.length - 1 - RatchetFrame.DH_SIZE);
+		RatchetFrame.readVarint(b);
+		RatchetFrame.readVarint(b);
+		RatchetFrame.readVarint(b);
+		return b.position();
+	}
+}
@@ -0,0 +1,228 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+class FileSessionStoreTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testSaveReopenResume() {
+		Path journal = dir.resolve("sessions.journal");
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		String skipped = alice.encrypt(bytes("skipped"), null);
+
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			for (int i = 0; i < 10; i++) {
+				bob.decrypt(alice.encrypt(bytes("m" + i), null));
+				store.save("bob", bob.getState());
+			}
+			store.save("alice", alice.getState());
+			store.save("gone", alice.getState());
+			store.delete("gone");
+		}
+
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			assertEquals(2, store.size());
+			assertFalse(store.contains("gone"));
+			assertNull(store.load("gone"));
+			RatchetSession restored = new RatchetSession(store.load("bob"));
+			assertEquals(1, restored.getState().skipped_message_keys.size());
+			assertArrayEquals(bytes("skipped"), restored.decrypt(skipped));
+			assertArrayEquals(bytes("reply"), alice.decrypt(restored.encrypt(bytes("reply"), null)));
+		}
+	}
+
+	@Test
+	void testUnchangedSkippedKeysAppendCoreRecords() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		try (FileSessionStore store = new FileSessionStore(dir.resolve("j"))) {
+			store.save("alice", pair[0].getState());
+			long snapshot = store.journalBytes();
+			pair[0].encrypt(bytes("x"), null);
+			store.save("alice", pair[0].getState());
+			long core = store.journalBytes() - snapshot;
+
+			// The store keys on identity, so a fresh store forces a snapshot.
+			RatchetState copy = RatchetStateCodec.decode(RatchetStateCodec.encode(pair[0].getState()));
+			long before = store.journalBytes();
+			store.save("alice", copy);
+			assertTrue(store.journalBytes() - before >= core);
+			assertEquals(store.journalBytes() - before, store.liveBytes());
+		}
+	}
+
+	@Test
+	void testSkippedKeyChangesAppendDeltas() {
+		Path journal = dir.resolve("j");
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		List<String> late = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			late.add(alice.encrypt(bytes("late" + i), null));
+		}
+		bob.decrypt(alice.encrypt(bytes("now"), null));
+
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			store.save("bob", bob.getState());
+			long snapshot = store.journalBytes();
+			for (int i = 0; i < 50; i++) {
+				assertArrayEquals(bytes("late" + i), bob.decrypt(late.get(i)));
+				store.save("bob", bob.getState());
+			}
+			// Deltas, plus one fresh snapshot once they outgrow the first.
+			assertTrue(store.journalBytes() < 4 * snapshot);
+		}
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			RatchetSession restored = new RatchetSession(store.load("bob"));
+			assertEquals(150, restored.getState().skipped_message_keys.size());
+			assertArrayEquals(bytes("late199"), restored.decrypt(late.get(199)));
+			assertArrayEquals(bytes("late50"), restored.decrypt(late.get(50)));
+			assertThrows(TalosError.class, () -> restored.decrypt(late.get(0)));
+		}
+	}
+
+	@Test
+	void testTornTailIsTruncated() throws IOException {
+		Path journal = dir.resolve("j");
+		RatchetSession alice = RatchetSessionTest.newPair()[0];
+		long good;
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			store.save("a", alice.getState());
+			good = store.journalBytes();
+			alice.encrypt(bytes("x"), null);
+			store.save("a", alice.getState());
+		}
+		try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			ch.truncate(Files.size(journal) - 3);
+		}
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			assertEquals(good, store.journalBytes());
+			assertEquals(0, store.load("a").n_s);
+		}
+	}
+
+	@Test
+	void testCorruptionBeforeIntactRecordsFailsOpen() throws IOException {
+		Path journal = dir.resolve("j");
+		RatchetSession alice = RatchetSessionTest.newPair()[0];
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			store.save("a", alice.getState());
+			alice.encrypt(bytes("x"), null);
+			store.save("a", alice.getState());
+		}
+		long size = Files.size(journal);
+		try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			ch.write(ByteBuffer.wrap(new byte[]{0x55}), 20);
+		}
+		assertThrows(TalosError.class, () -> new FileSessionStore(journal));
+		assertEquals(size, Files.size(journal));
+	}
+
+	@Test
+	void testDamagedLengthBeforeIntactRecordsFailsOpen() throws IOException {
+		Path journal = dir.resolve("j");
+		RatchetSession alice = RatchetSessionTest.newPair()[0];
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			for (int i = 0; i < 3; i++) {
+				alice.encrypt(bytes("x"), null);
+				store.save("a", alice.getState());
+			}
+		}
+		long size = Files.size(journal);
+		// Still a plausible length, but it runs past the end of the file.
+		try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			ch.write(ByteBuffer.allocate(4).putInt(0, (int) size), 0);
+		}
+		assertThrows(TalosError.class, () -> new FileSessionStore(journal));
+		assertEquals(size, Files.size(journal));
+	}
+
+	@Test
+	void testCompaction() {
+		Path journal = dir.resolve("j");
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		List<Runnable> queued = new ArrayList<>();
+		try (FileSessionStore store = new FileSessionStore(journal, false, 4096)) {
+			store.setCompactionExecutor(queued::add);
+			for (int i = 0; i < 200; i++) {
+				pair[1].decrypt(pair[0].encrypt(bytes("m" + i), null));
+				store.save("alice", pair[0].getState());
+				store.save("bob", pair[1].getState());
+			}
+			// Saves never compact inline, and queue one compaction at a time.
+			assertEquals(0, store.compactionCount());
+			assertEquals(1, queued.size());
+			queued.get(0).run();
+			assertEquals(1, store.compactionCount());
+			assertEquals(store.liveBytes(), store.journalBytes());
+		}
+		try (FileSessionStore store = new FileSessionStore(journal)) {
+			RatchetSession bob = new RatchetSession(store.load("bob"));
+			RatchetSession alice = new RatchetSession(store.load("alice"));
+			assertArrayEquals(bytes("after"), bob.decrypt(alice.encrypt(bytes("after"), null)));
+		}
+	}
+
+	@Test
+	void testCompactionKeepsConcurrentSaves() {
+		Path journal = dir.resolve("j");
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		FileSessionStore store = new FileSessionStore(journal, false, 4096);
+		try {
+			for (int i = 0; i < 500; i++) {
+				String first = alice.encrypt(bytes("a" + i), null);
+				// Out of order, so bob's saves carry skipped-key deltas.
+				bob.decrypt(alice.encrypt(bytes("b" + i), null));
+				store.save("bob", bob.getState());
+				bob.decrypt(first);
+				store.save("bob", bob.getState());
+				store.save("alice", alice.getState());
+				if (i % 100 == 0) {
+					store.delete("alice");
+					store.save("alice", alice.getState());
+				}
+			}
+		} finally {
+			store.close();
+		}
+		assertTrue(store.compactionCount() > 0);
+		try (FileSessionStore reopened = new FileSessionStore(journal)) {
+			RatchetSession restoredBob = new RatchetSession(reopened.load("bob"));
+			RatchetSession restoredAlice = new RatchetSession(reopened.load("alice"));
+			assertEquals(alice.getState().n_s, restoredAlice.getState().n_s);
+			assertEquals(0, restoredBob.getState().skipped_message_keys.size());
+			assertArrayEquals(bytes("after"), restoredBob.decrypt(restoredAlice.encrypt(bytes("after"), null)));
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,103 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.FrameValidator.Reason;
+
+class FrameValidatorTest {
+	private static final String NONCE = "AAAAAAAAAAAAAAAA";
+	private static final String TAG = "AAAAAAAAAAAAAAAAAAAAAA";
+
+	@Test
+	void testBase64LengthMatchesJdkDecoder() {
+		Random rnd = new Random(7);
+		String chars = "AZaz09-_=+/ .";
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = rnd.nextInt(12);
+			for (int j = 0; j < len; j++) {
+				// Mostly valid characters, with padding and junk mixed in.
+				boolean odd = rnd.nextInt(4) == 0;
+				sb.append(odd ? chars.charAt(rnd.nextInt(chars.length())) : (char) ('a' + rnd.nextInt(26)));
+			}
+			String s = sb.toString();
+			int expected;
+			try {
+				expected = Base64.getUrlDecoder().decode(s).length;
+			} catch (IllegalArgumentException e) {
+				expected = -1;
+			}
+			assertEquals(expected, FrameValidator.base64Length(s), s);
+		}
+	}
+
+	@Test
+	void testJunkFramesAreRejectedWithSharedStacklessErrors() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		FrameValidator validator = new FrameValidator(4096);
+		bob.setFrameValidator(validator);
+		String wire = alice.encrypt("payload".getBytes(StandardCharsets.UTF_8), null);
+		String dh = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(alice.getState().dh_public) + "\"";
+
+		assertRejected(validator, Reason.TOO_LARGE, () -> bob.decrypt("A".repeat(8000)));
+		assertRejected(validator, Reason.NOT_BASE64, () -> bob.decrypt("not base64!"));
+		assertRejected(validator, Reason.BAD_JSON, () -> bob.decrypt(b64("{\"header\":")));
+		assertRejected(validator, Reason.BAD_JSON, () -> bob.decrypt(b64("[1,2]")));
+		assertRejected(validator, Reason.MISSING_FIELD, () -> bob.decrypt(b64("{}")));
+		assertRejected(validator, Reason.MISSING_FIELD,
+				() -> bob.decrypt(envelope(dh, "0", "\"0\"", NONCE, TAG)));
+		assertRejected(validator, Reason.BAD_KEY,
+				() -> bob.decrypt(envelope("\"AAAA\"", "0", "0", NONCE, TAG)));
+		assertRejected(validator, Reason.NOT_BASE64,
+				() -> bob.decrypt(envelope(dh, "0", "0", "AAAA+AAAAAAAAAAA", TAG)));
+		assertRejected(validator, Reason.BAD_NONCE,
+				() -> bob.decrypt(envelope(dh, "0", "0", "AAAA", TAG)));
+		assertRejected(validator, Reason.TOO_SHORT,
+				() -> bob.decrypt(envelope(dh, "0", "0", NONCE, "AAAA")));
+		assertRejected(validator, Reason.COUNTER_RANGE,
+				() -> bob.decrypt(envelope(dh, "-1", "0", NONCE, TAG)));
+		assertRejected(validator, Reason.COUNTER_RANGE, () -> bob
+				.decrypt(envelope(dh, "0", "4294967296", NONCE, TAG)));
+
+		assertRejected(validator, Reason.BAD_VERSION, () -> bob.decryptFromBuffer(ByteBuffer.allocate(64)));
+		assertRejected(validator, Reason.TRUNCATED,
+				() -> bob.decryptFromBuffer(ByteBuffer.wrap(new byte[]{RatchetFrame.VERSION})));
+		assertRejected(validator, Reason.TOO_LARGE, () -> bob.decryptFromBuffer(ByteBuffer.allocate(5000)));
+
+		// The session is unaffected by any of it.
+		assertEquals("payload", new String(bob.decrypt(wire), StandardCharsets.UTF_8));
+		assertRejected(validator, Reason.KEY_UNAVAILABLE, () -> bob.decrypt(wire));
+		assertEquals(2, validator.rejectedCount(Reason.BAD_JSON));
+		assertEquals(2, validator.rejectedCounts().get(Reason.COUNTER_RANGE));
+	}
+
+	private static void assertRejected(FrameValidator validator, Reason reason, Runnable op) {
+		long before = validator.rejectedCount(reason);
+		TalosError e = assertThrows(TalosError.class, op::run);
+		assertSame(reason.error(), e);
+		assertEquals(TalosErrorCode.TALOS_FRAME_INVALID, e.getCode());
+		assertEquals(0, e.getStackTrace().length);
+		assertEquals(before + 1, validator.rejectedCount(reason));
+	}
+
+	private static String envelope(String dh, String n, String pn, String nonce, String ciphertext) {
+		return b64("{\"ciphertext\":\"" + ciphertext + "\",\"header\":{\"dh\":" + dh + ",\"n\":" + n + ",\"pn\":" + pn
+				+ "},\"nonce\":\"" + nonce + "\"}");
+	}
+
+	private static String b64(String json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,136 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.talosprotocol.talos.errors.TalosError;
+
+class MappedSessionStoreTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void testInlineRoundTripAcrossReopen() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		String skipped = pair[0].encrypt(bytes("skipped"), null);
+		pair[1].decrypt(pair[0].encrypt(bytes("next"), null));
+
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			store.save("bob", pair[1].getState());
+			store.save("alice", pair[0].getState());
+			assertEquals(0, store.overflowCount());
+			assertArrayEquals(RatchetStateCodec.encode(pair[1].getState()),
+					RatchetStateCodec.encode(store.load("bob")));
+		}
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			assertEquals(2, store.size());
+			RatchetSession bob = new RatchetSession(store.load("bob"));
+			assertArrayEquals(bytes("skipped"), bob.decrypt(skipped));
+			store.delete("bob");
+			assertNull(store.load("bob"));
+			assertFalse(store.contains("bob"));
+		}
+	}
+
+	@Test
+	void testSkippedKeyLimitsSurviveLoad() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		for (int i = 0; i <= MappedSessionStore.INLINE_SKIPPED_KEYS; i++) {
+			pair[0].encrypt(bytes("lost"), null);
+		}
+		pair[1].decrypt(pair[0].encrypt(bytes("next"), null));
+		RatchetSession[] inline = RatchetSessionTest.newPair();
+		inline[0].encrypt(bytes("lost"), null);
+		inline[1].decrypt(inline[0].encrypt(bytes("next"), null));
+
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			store.setSkippedKeyStores(() -> new SkippedKeyStore(10, 6, 60_000, () -> 0));
+			store.save("overflow", pair[1].getState());
+			store.save("inline", inline[1].getState());
+			assertEquals(1, store.overflowCount());
+			for (String id : new String[]{"overflow", "inline"}) {
+				SkippedKeyStore loaded = store.load(id).skipped_message_keys;
+				assertEquals(10, loaded.maxKeys());
+				assertEquals(6, loaded.maxKeysPerChain());
+				assertEquals(60_000, loaded.maxAgeMillis());
+			}
+			assertEquals(MappedSessionStore.INLINE_SKIPPED_KEYS + 1, store.load("overflow").skipped_message_keys.size());
+		}
+	}
+
+	@Test
+	void testOverflowAndGrowth() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		for (int i = 0; i <= MappedSessionStore.INLINE_SKIPPED_KEYS; i++) {
+			pair[0].encrypt(bytes("lost"), null);
+		}
+		pair[1].decrypt(pair[0].encrypt(bytes("next"), null));
+
+		try (MappedSessionStore store = new MappedSessionStore(dir, 2)) {
+			for (int i = 0; i < 5; i++) {
+				store.save("peer-" + i, pair[0].getState());
+			}
+			assertEquals(3, store.segmentCount());
+			store.save("bob", pair[1].getState());
+			assertEquals(1, store.overflowCount());
+		}
+		try (MappedSessionStore store = new MappedSessionStore(dir, 2)) {
+			assertEquals(6, store.size());
+			assertEquals(1, store.overflowCount());
+			assertEquals(MappedSessionStore.INLINE_SKIPPED_KEYS + 1, store.load("bob").skipped_message_keys.size());
+
+			// Back under the inline limit, the session leaves the overflow journal.
+			store.save("bob", RatchetSessionTest.newPair()[1].getState());
+			assertEquals(0, store.overflowCount());
+		}
+		assertThrows(TalosError.class, () -> {
+			try (MappedSessionStore store = new MappedSessionStore(dir, 2)) {
+				store.save("x".repeat(MappedSessionStore.MAX_ID_BYTES + 1), pair[0].getState());
+			}
+		});
+	}
+
+	@Test
+	void testTornSaveFallsBackToPreviousCopy() throws IOException {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		byte[] first = RatchetStateCodec.encode(pair[0].getState());
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			store.save("a", pair[0].getState());
+			pair[0].encrypt(bytes("advance"), null);
+			store.save("a", pair[0].getState());
+			store.save("b", RatchetSessionTest.newPair()[0].getState());
+		}
+		// Tear a's second save (copy 0) and b's only save (copy 1).
+		try (FileChannel ch = FileChannel.open(dir.resolve("segment-0.dat"), StandardOpenOption.WRITE)) {
+			ch.write(ByteBuffer.wrap(new byte[]{0x55}), 100);
+			ch.write(ByteBuffer.wrap(new byte[]{0x55}), MappedSessionStore.SLOT_SIZE
+					+ MappedSessionStore.COPY_SIZE + 100);
+		}
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			assertEquals(1, store.size());
+			assertArrayEquals(first, RatchetStateCodec.encode(store.load("a")));
+			store.save("a", pair[0].getState());
+			store.delete("a");
+		}
+		try (MappedSessionStore store = new MappedSessionStore(dir, 4)) {
+			assertEquals(0, store.size());
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,211 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.talosprotocol.talos.crypto.Crypto;
+import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+import com.talosprotocol.talos.errors.TalosError;
+
+class RatchetSessionManagerTest {
+
+	@Test
+	void testRegisterAndRemove() {
+		RatchetSessionManager mgr = new RatchetSessionManager();
+		RatchetSession s = new RatchetSession();
+		mgr.register("peer-1", s);
+		assertThrows(TalosError.class, () -> mgr.register("peer-1", new RatchetSession()));
+		assertThrows(TalosError.class, () -> mgr.decrypt("peer-2", "x"));
+		assertEquals(1, mgr.size());
+		assertSame(s, mgr.remove("peer-1"));
+		assertNull(mgr.remove("peer-1"));
+		assertFalse(mgr.contains("peer-1"));
+	}
+
+	@Test
+	void testConcurrentSessions() throws Exception {
+		int sessions = 16;
+		int messagesPerSession = 100;
+		RatchetSessionManager senders = new RatchetSessionManager();
+		RatchetSessionManager receivers = new RatchetSessionManager();
+		for (int i = 0; i < sessions; i++) {
+			KeyPairX25519 aliceId = Crypto.x25519Generate();
+			KeyPairX25519 bobId = Crypto.x25519Generate();
+			KeyPairX25519 bobSpk = Crypto.x25519Generate();
+			RatchetSession alice = new RatchetSession();
+			alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+			RatchetSession bob = new RatchetSession();
+			bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+					alice.getState().dh_public);
+			senders.register("s" + i, alice);
+			receivers.register("s" + i, bob);
+		}
+
+		// Tasks for the same session race each other on purpose; the receiver
+		// absorbs reordering through its skipped-key store.
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int m = 0; m < messagesPerSession; m++) {
+				for (int i = 0; i < sessions; i++) {
+					String id = "s" + i;
+					String text = id + "/" + m;
+					futures.add(pool.submit(() -> {
+						String wire = senders.encrypt(id, text.getBytes(StandardCharsets.UTF_8), null);
+						assertEquals(text, new String(receivers.decrypt(id, wire), StandardCharsets.UTF_8));
+					}));
+				}
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		for (int i = 0; i < sessions; i++) {
+			assertEquals(messagesPerSession, (int) senders.withSession("s" + i, s -> s.getState().n_s));
+			assertEquals(messagesPerSession, (int) receivers.withSession("s" + i, s -> s.getState().n_r));
+			assertEquals(0, (int) receivers.withSession("s" + i, s -> s.getState().skipped_message_keys.size()));
+		}
+	}
+
+	@Test
+	void testHotTierEvictsAndReloads(@TempDir Path dir) {
+		try (MappedSessionStore store = new MappedSessionStore(dir, 8)) {
+			RatchetSessionManager mgr = new RatchetSessionManager(store, 2);
+			RatchetSession[] peers = new RatchetSession[5];
+			for (int i = 0; i < peers.length; i++) {
+				RatchetSession[] pair = RatchetSessionTest.newPair();
+				mgr.register("bob-" + i, pair[1]);
+				peers[i] = pair[0];
+			}
+			assertEquals(5, mgr.size());
+			assertEquals(2, mgr.hotSize());
+
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < peers.length; i++) {
+					String msg = "round " + round + " to " + i;
+					byte[] pt = mgr.decrypt("bob-" + i, peers[i].encrypt(msg.getBytes(StandardCharsets.UTF_8), null));
+					assertEquals(msg, new String(pt, StandardCharsets.UTF_8));
+					String reply = mgr.encrypt("bob-" + i, pt, null);
+					assertEquals(msg, new String(peers[i].decrypt(reply), StandardCharsets.UTF_8));
+					assertTrue(mgr.hotSize() <= 2);
+				}
+			}
+
+			mgr.flush();
+			RatchetSessionManager restarted = new RatchetSessionManager(store, 2);
+			assertEquals(0, restarted.hotSize());
+			byte[] pt = restarted.decrypt("bob-3", peers[3].encrypt("after".getBytes(StandardCharsets.UTF_8), null));
+			assertEquals("after", new String(pt, StandardCharsets.UTF_8));
+
+			assertThrows(TalosError.class, () -> mgr.register("bob-0", new RatchetSession()));
+			assertNotNull(mgr.remove("bob-0"));
+			assertFalse(mgr.contains("bob-0"));
+			assertEquals(4, store.size());
+		}
+	}
+
+	@Test
+	void testEveryOperationIsSavedBeforeItReturns(@TempDir Path dir) {
+		try (MappedSessionStore store = new MappedSessionStore(dir, 8)) {
+			RatchetSessionManager mgr = new RatchetSessionManager(store, 8);
+			RatchetSession[] pair = RatchetSessionTest.newPair();
+			mgr.register("alice", pair[0]);
+			for (int i = 1; i <= 3; i++) {
+				String wire = mgr.encrypt("alice", new byte[10], null);
+				// A crash now must not hand the same message key out again.
+				assertEquals(i, store.load("alice").n_s);
+				assertNotNull(pair[1].decrypt(wire));
+			}
+			RatchetSessionManager restarted = new RatchetSessionManager(store, 8);
+			String wire = restarted.encrypt("alice", "next".getBytes(StandardCharsets.UTF_8), null);
+			assertEquals("next", new String(pair[1].decrypt(wire), StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	void testRemoveRacingEncryptStaysRemoved(@TempDir Path dir) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try (MappedSessionStore store = new MappedSessionStore(dir, 8)) {
+			RatchetSessionManager mgr = new RatchetSessionManager(store, 8);
+			for (int round = 0; round < 100; round++) {
+				String id = "s" + round;
+				mgr.register(id, RatchetSessionTest.newPair()[0]);
+				CountDownLatch start = new CountDownLatch(1);
+				AtomicBoolean removed = new AtomicBoolean();
+				List<Future<String>> writers = new ArrayList<>();
+				for (int t = 0; t < 3; t++) {
+					writers.add(pool.submit(() -> {
+						start.await();
+						try {
+							while (true) {
+								boolean afterRemove = removed.get();
+								mgr.encrypt(id, new byte[1], null);
+								if (afterRemove) {
+									return "encrypted after remove";
+								}
+							}
+						} catch (TalosError e) {
+							return e.getMessage();
+						}
+					}));
+				}
+				start.countDown();
+				mgr.remove(id);
+				removed.set(true);
+				for (Future<String> f : writers) {
+					String outcome = f.get();
+					assertTrue(outcome.contains("Unknown session"), outcome);
+				}
+				assertFalse(store.contains(id));
+				assertFalse(mgr.contains(id));
+				assertEquals(0, mgr.hotSize());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	void testPayloadThatFailsToDecodeLeavesStoredStateCurrent(@TempDir Path dir) {
+		try (MappedSessionStore store = new MappedSessionStore(dir, 8)) {
+			RatchetSessionManager mgr = new RatchetSessionManager(store, 8);
+			RatchetSession[] pair = RatchetSessionTest.newPair();
+			RatchetSession alice = pair[0];
+			RatchetSession bob = pair[1];
+			alice.setPayloadCodec(DeflateCodec.DEFAULT);
+			bob.setFrameValidator(new FrameValidator(4096));
+			mgr.register("bob", bob);
+
+			// Compresses well below the frame limit but inflates past it.
+			String bomb = alice.encrypt(new byte[64 * 1024], null);
+			assertThrows(TalosError.class, () -> mgr.decrypt("bob", bomb));
+			assertArrayEquals(RatchetStateCodec.encode(bob.getState()),
+					RatchetStateCodec.encode(store.load("bob")));
+
+			String next = alice.encrypt("next".getBytes(StandardCharsets.UTF_8), null);
+			RatchetSessionManager restarted = new RatchetSessionManager(store, 8);
+			assertEquals("next", new String(restarted.decrypt("bob", next), StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -1,12 +1,27 @@
 package com.talosprotocol.talos.ratchet;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.talosprotocol.talos.crypto.Crypto;
 import com.talosprotocol.talos.crypto.Crypto.KeyPairX25519;
+import com.talosprotocol.talos.crypto.SecretAllocator;
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
 
 class RatchetSessionTest {
 
@@ -76,4 +91,333 @@ class RatchetSessionTest {
 		byte[] dec1 = bob.decrypt(ct1);
 		assertEquals("Msg1", new String(dec1));
 	}
+
+	@Test
+	void testBinaryFramePingPong() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+
+		ByteBuffer frame = ByteBuffer.allocate(256);
+		byte[] pt1 = "Hello Bob".getBytes(StandardCharsets.UTF_8);
+		int len = alice.encryptToBuffer(ByteBuffer.wrap(pt1), null, frame);
+		assertEquals(len, frame.position());
+		frame.flip();
+		assertArrayEquals(pt1, bob.decryptFromBuffer(frame));
+
+		ByteBuffer reply = ByteBuffer.allocateDirect(256);
+		byte[] pt2 = "Hello Alice".getBytes(StandardCharsets.UTF_8);
+		bob.encryptToBuffer(ByteBuffer.wrap(pt2), null, reply);
+		reply.flip();
+		assertArrayEquals(pt2, alice.decryptFromBuffer(reply));
+
+		// Formats can be mixed on one session.
+		assertEquals("again", new String(bob.decrypt(alice.encrypt("again".getBytes(), null))));
+	}
+
+	@Test
+	void testBinaryFrameIsSmallerThanJson() {
+		RatchetSession alice = newPair()[0];
+		byte[] pt = new byte[1024];
+		String json = alice.encrypt(pt, null);
+		ByteBuffer frame = ByteBuffer.allocate(2048);
+		int len = alice.encryptToBuffer(ByteBuffer.wrap(pt), null, frame);
+		assertTrue(len < pt.length + 64, "binary frame " + len);
+		assertTrue(json.length() > pt.length * 17 / 10, "json frame " + json.length());
+	}
+
+	@Test
+	void testJsonAndBinaryShareAad() throws Exception {
+		RatchetSession[] pair = newPair();
+		String wire = pair[0].encrypt("transcoded".getBytes(StandardCharsets.UTF_8), null);
+
+		Base64.Decoder dec = Base64.getUrlDecoder();
+		JsonNode env = new ObjectMapper().readTree(dec.decode(wire));
+		JsonNode header = env.get("header");
+		byte[] ciphertext = dec.decode(env.get("ciphertext").asText());
+
+		ByteBuffer frame = ByteBuffer.allocate(256);
+		RatchetFrame.writeHeader(frame, dec.decode(header.get("dh").asText()), header.get("pn").asInt(),
+				header.get("n").asInt(), dec.decode(env.get("nonce").asText()));
+		frame.put(ciphertext).flip();
+		assertEquals("transcoded", new String(pair[1].decryptFromBuffer(frame), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void testEncryptToBufferTooSmallLeavesSessionUntouched() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		assertThrows(TalosError.class, () -> alice.encryptToBuffer(ByteBuffer.allocate(64), null,
+				ByteBuffer.allocate(32)));
+		assertEquals(0, alice.getState().n_s);
+		assertEquals("first", new String(pair[1].decrypt(alice.encrypt("first".getBytes(), null))));
+	}
+
+	@Test
+	void testMalformedBinaryFrame() {
+		RatchetSession bob = newPair()[1];
+		assertThrows(TalosError.class, () -> bob.decryptFromBuffer(ByteBuffer.wrap(new byte[]{0x02})));
+		assertThrows(TalosError.class, () -> bob.decryptFromBuffer(ByteBuffer.wrap(new byte[]{0x01, 0x00})));
+
+		ByteBuffer overflow = ByteBuffer.allocate(64);
+		overflow.put(RatchetFrame.VERSION).put(new byte[32]);
+		overflow.put(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}).flip();
+		assertThrows(TalosError.class, () -> bob.decryptFromBuffer(overflow));
+	}
+
+	@Test
+	void testEncryptBatchMatchesSequentialEncrypt() {
+		RatchetSession[] pair = newPair();
+		RatchetState snapshot = RatchetStateCodec.decode(RatchetStateCodec.encode(pair[0].getState()));
+		RatchetSession sequential = new RatchetSession(snapshot);
+
+		List<byte[]> plaintexts = new ArrayList<>();
+		for (int i = 0; i < 37; i++) {
+			plaintexts.add(("batch " + i).getBytes(StandardCharsets.UTF_8));
+		}
+		List<String> batch = pair[0].encryptBatch(plaintexts);
+		for (int i = 0; i < plaintexts.size(); i++) {
+			assertEquals(sequential.encrypt(plaintexts.get(i), null), batch.get(i));
+		}
+		assertEquals(sequential.getState().n_s, pair[0].getState().n_s);
+		assertArrayEquals(sequential.getState().chain_key_s, pair[0].getState().chain_key_s);
+
+		for (int i = 0; i < plaintexts.size(); i++) {
+			assertArrayEquals(plaintexts.get(i), pair[1].decrypt(batch.get(i)));
+		}
+		assertTrue(pair[0].encryptBatch(List.of()).isEmpty());
+	}
+
+	@Test
+	void testFailedEncryptBatchReleasesEveryKey() {
+		RatchetSession alice = newPair()[0];
+		List<byte[]> plaintexts = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			plaintexts.add(i == 2 ? null : new byte[i]);
+		}
+		int inUse = SecretAllocator.KEYS.inUse();
+		assertThrows(NullPointerException.class, () -> alice.encryptBatch(plaintexts));
+		assertEquals(inUse, SecretAllocator.KEYS.inUse());
+	}
+
+	@Test
+	void testReceiveKeyWindowMatchesInlineDerivation() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		RatchetSession inline = new RatchetSession(RatchetStateCodec.decode(RatchetStateCodec.encode(bob.getState())));
+		bob.enableReceiveKeyWindow(8, Runnable::run);
+
+		List<String> wires = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			wires.add(alice.encrypt(("window " + i).getBytes(StandardCharsets.UTF_8), null));
+		}
+		// In order, then a gap spanning several windows, then the skipped ones.
+		int[] order = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 30, 10, 11, 29, 31, 32, 33, 34, 35, 36, 37, 38, 39};
+		for (int i : order) {
+			String expected = "window " + i;
+			assertEquals(expected, new String(bob.decrypt(wires.get(i)), StandardCharsets.UTF_8));
+			assertEquals(expected, new String(inline.decrypt(wires.get(i)), StandardCharsets.UTF_8));
+			assertEquals(inline.getState().n_r, bob.getState().n_r);
+			assertArrayEquals(inline.getState().chain_key_r, bob.getState().chain_key_r);
+		}
+		assertEquals(inline.getState().skipped_message_keys.size(), bob.getState().skipped_message_keys.size());
+
+		// A new receiving chain invalidates the window.
+		alice.decrypt(bob.encrypt("turn".getBytes(), null));
+		String next = alice.encrypt("next chain".getBytes(), null);
+		assertEquals("next chain", new String(bob.decrypt(next)));
+		bob.enableReceiveKeyWindow(0, Runnable::run);
+		assertEquals("again", new String(bob.decrypt(alice.encrypt("again".getBytes(), null))));
+	}
+
+	@Test
+	void testDecryptBatchMatchesSequentialDecrypt() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		RatchetSession sequential = new RatchetSession(
+				RatchetStateCodec.decode(RatchetStateCodec.encode(bob.getState())));
+
+		List<String> wires = new ArrayList<>();
+		for (int i = 0; i < 24; i++) {
+			wires.add(alice.encrypt(("batch " + i).getBytes(StandardCharsets.UTF_8), null));
+		}
+		List<String> batch = new ArrayList<>(wires.subList(4, 24));
+		batch.add(wires.get(2));
+		Collections.swap(batch, 3, 11);
+		batch.set(5, tamper(batch.get(5)));
+		batch.add("not-a-message");
+
+		List<byte[]> plaintexts = bob.decryptBatch(batch);
+		assertEquals(batch.size(), plaintexts.size());
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] expected;
+			try {
+				expected = sequential.decrypt(batch.get(i));
+			} catch (RuntimeException e) {
+				expected = null;
+			}
+			assertArrayEquals(expected, plaintexts.get(i), "message " + i);
+		}
+		assertEquals(2, plaintexts.stream().filter(p -> p == null).count());
+		assertEquals(sequential.getState().n_r, bob.getState().n_r);
+		assertArrayEquals(sequential.getState().chain_key_r, bob.getState().chain_key_r);
+
+		// Keys skipped by the batch remain usable.
+		assertEquals("batch 0", new String(bob.decrypt(wires.get(0))));
+		assertTrue(bob.decryptBatch(List.of()).isEmpty());
+	}
+
+	@Test
+	void testKeysAreWipedAndPooled() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		int inUse = SecretAllocator.KEYS.inUse();
+
+		byte[] bobRoot = bob.getState().root_key;
+		byte[] aliceChain = alice.getState().chain_key_s;
+		byte[] before = aliceChain.clone();
+		bob.decrypt(alice.encrypt("one".getBytes(), null));
+		// Chain keys advance in place.
+		assertTrue(aliceChain == alice.getState().chain_key_s && !Arrays.equals(before, aliceChain));
+
+		alice.decrypt(bob.encrypt("two".getBytes(), null));
+		assertArrayEquals(new byte[32], bobRoot);
+		bob.decryptBatch(alice.encryptBatch(List.of(new byte[1], new byte[2], new byte[3])));
+		assertEquals(inUse, SecretAllocator.KEYS.inUse());
+	}
+
+	@Test
+	void testForgedFramesLeaveSessionUntouched() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		bob.decrypt(alice.encrypt("hello".getBytes(), null));
+		alice.decrypt(bob.encrypt("hi".getBytes(), null));
+		String next = alice.encrypt("next".getBytes(), null);
+		byte[] before = RatchetStateCodec.encode(bob.getState());
+
+		String foreignChain = newPair()[0].encrypt("forged".getBytes(), null);
+		String farAhead = rewriteHeader(next, "\"n\":0", "\"n\":900");
+		for (String forged : List.of(tamper(next), foreignChain, farAhead)) {
+			assertThrows(TalosError.class, () -> bob.decrypt(forged));
+			assertArrayEquals(before, RatchetStateCodec.encode(bob.getState()));
+		}
+		assertEquals(Arrays.asList(null, null, null), bob.decryptBatch(List.of(farAhead, foreignChain, tamper(next))));
+		assertArrayEquals(before, RatchetStateCodec.encode(bob.getState()));
+
+		assertEquals("next", new String(bob.decrypt(next)));
+		TalosError replay = assertThrows(TalosError.class, () -> bob.decrypt(next));
+		assertEquals(TalosErrorCode.TALOS_FRAME_INVALID, replay.getCode());
+	}
+
+	@Test
+	void testDerivationBudgetBoundsForgedWork() {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		long[] now = {0};
+		DerivationBudget budget = new DerivationBudget(100, 10, () -> now[0]);
+		bob.setDerivationBudget(budget);
+
+		// A new DH chain costs DH_RATCHET_UNITS and is refunded on success.
+		bob.decrypt(alice.encrypt("first".getBytes(), null));
+		assertEquals(100, budget.available());
+
+		String forged = newPair()[0].encrypt("forged".getBytes(), null);
+		assertThrows(TalosError.class, () -> bob.decrypt(forged));
+		assertThrows(TalosError.class, () -> bob.decrypt(forged));
+		assertEquals(100 - 2 * DerivationBudget.DH_RATCHET_UNITS, budget.available());
+		TalosError denied = assertThrows(TalosError.class, () -> bob.decrypt(forged));
+		assertEquals(TalosErrorCode.TALOS_DENIED, denied.getCode());
+		assertEquals(1, budget.deniedCount());
+
+		// In-order messages cost nothing; small gaps fit the remainder.
+		assertEquals("in order", new String(bob.decrypt(alice.encrypt("in order".getBytes(), null))));
+		alice.encrypt("lost".getBytes(), null);
+		assertEquals("gap", new String(bob.decrypt(alice.encrypt("gap".getBytes(), null))));
+		assertEquals(20, budget.available());
+
+		now[0] += 3_000_000_000L;
+		assertEquals(50, budget.available());
+		now[0] += 60_000_000_000L;
+		assertEquals(100, budget.available());
+	}
+
+	@Test
+	void testEnvelopeLayoutDoesNotAffectDecryption() throws Exception {
+		RatchetSession[] pair = newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+		String first = alice.encrypt("first".getBytes(), null);
+		String second = alice.encrypt("second".getBytes(), null);
+
+		// Reordered fields, whitespace, escapes and unknown envelope fields.
+		JsonNode env = new ObjectMapper().readTree(Base64.getUrlDecoder().decode(first));
+		String ct = env.get("ciphertext").asText();
+		String relaid = "{ \"nonce\" : \"" + env.get("nonce").asText() + "\", \"extra\": [1, {\"a\": null}],\n"
+				+ "\"header\": {\"pn\": 0, \"n\": 0, \"dh\": \"" + env.get("header").get("dh").asText() + "\"},"
+				+ "\"ciphertext\": \"\\u00" + Integer.toHexString(ct.charAt(0)) + ct.substring(1) + "\"}";
+		String wire = Base64.getUrlEncoder().withoutPadding().encodeToString(relaid.getBytes(StandardCharsets.UTF_8));
+		assertEquals("first", new String(bob.decrypt(wire)));
+
+		// Headers the fixed-format writer cannot reproduce are canonicalized
+		// generically: an extra field changes the AAD, a repeated one does not.
+		byte[] before = RatchetStateCodec.encode(bob.getState());
+		assertThrows(TalosError.class, () -> bob.decrypt(rewriteHeader(second, "\"pn\":0", "\"pn\":0,\"x\":1")));
+		assertArrayEquals(before, RatchetStateCodec.encode(bob.getState()));
+		assertEquals("second", new String(bob.decrypt(rewriteHeader(second, "\"n\":1", "\"n\":1,\"n\":1"))));
+	}
+
+	private static String rewriteHeader(String wire, String from, String to) {
+		String json = new String(Base64.getUrlDecoder().decode(wire), StandardCharsets.UTF_8);
+		assertTrue(json.contains(from));
+		json = json.replace(from, to);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String tamper(String wire) {
+		byte[] raw = Base64.getUrlDecoder().decode(wire);
+		String json = new String(raw, StandardCharsets.UTF_8);
+		int at = json.indexOf("\"ciphertext\":\"") + 14;
+		char c = json.charAt(at);
+		json = json.substring(0, at) + (c == 'A' ? 'B' : 'A') + json.substring(at + 1);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void testVarintRoundTrip() {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		for (int v : new int[]{0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE}) {
+			buf.clear();
+			RatchetFrame.writeVarint(buf, v);
+			assertEquals(RatchetFrame.varintLength(v), buf.position());
+			buf.flip();
+			assertEquals(v, RatchetFrame.readVarint(buf));
+		}
+	}
+
+	@Test
+	void testWireFormatNegotiation() {
+		List<String> binary = List.of("ratchet", WireFormat.FEATURE_BINARY);
+		List<String> plain = List.of("ratchet");
+		assertEquals(WireFormat.BINARY, WireFormat.negotiate(binary, binary));
+		assertEquals(WireFormat.JSON, WireFormat.negotiate(binary, plain));
+		assertEquals(WireFormat.JSON, WireFormat.negotiate(plain, binary));
+	}
+
+	static RatchetSession[] newPair() {
+		KeyPairX25519 aliceId = Crypto.x25519Generate();
+		KeyPairX25519 bobId = Crypto.x25519Generate();
+		KeyPairX25519 bobSpk = Crypto.x25519Generate();
+
+		RatchetSession alice = new RatchetSession();
+		alice.initializeAsInitiator(aliceId.privateKey, bobId.publicKey, null, bobSpk.publicKey, null, null);
+		RatchetSession bob = new RatchetSession();
+		bob.initializeAsResponder(bobId.privateKey, bobSpk.privateKey, null, aliceId.publicKey,
+				alice.getState().dh_public);
+		return new RatchetSession[]{alice, bob};
+	}
 }
@@ -0,0 +1,72 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.ratchet.RatchetSession.RatchetState;
+
+class RatchetStateCodecTest {
+
+	@Test
+	void testRoundTripResumesSession() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSession alice = pair[0];
+		RatchetSession bob = pair[1];
+
+		String skipped = alice.encrypt(bytes("one"), null);
+		bob.decrypt(alice.encrypt(bytes("two"), null));
+		assertEquals(1, bob.getState().skipped_message_keys.size());
+
+		byte[] encoded = RatchetStateCodec.encode(bob.getState());
+		assertTrue(RatchetStateCodec.isSnapshot(encoded));
+		RatchetSession restored = new RatchetSession(RatchetStateCodec.decode(encoded));
+		assertArrayEquals(encoded, RatchetStateCodec.encode(restored.getState()));
+
+		assertArrayEquals(bytes("one"), restored.decrypt(skipped));
+		assertArrayEquals(bytes("three"), alice.decrypt(restored.encrypt(bytes("three"), null)));
+	}
+
+	@Test
+	void testCoreRecordKeepsPreviousSkippedKeys() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		pair[0].encrypt(bytes("lost"), null);
+		pair[1].decrypt(pair[0].encrypt(bytes("next"), null));
+		RatchetState base = RatchetStateCodec.decode(RatchetStateCodec.encode(pair[1].getState()));
+
+		pair[1].encrypt(bytes("reply"), null);
+		byte[] core = RatchetStateCodec.encodeCore(pair[1].getState());
+		assertFalse(RatchetStateCodec.isSnapshot(core));
+
+		RatchetState state = RatchetStateCodec.decode(core, base);
+		assertSame(base.skipped_message_keys, state.skipped_message_keys);
+		assertEquals(1, state.n_s);
+		assertArrayEquals(pair[1].getState().chain_key_s, state.chain_key_s);
+		assertThrows(TalosError.class, () -> RatchetStateCodec.decode(core));
+	}
+
+	@Test
+	void testRejectsMalformedInput() {
+		byte[] encoded = RatchetStateCodec.encode(RatchetSessionTest.newPair()[0].getState());
+		for (int len = 0; len < encoded.length; len++) {
+			byte[] truncated = Arrays.copyOf(encoded, len);
+			assertThrows(TalosError.class, () -> RatchetStateCodec.decode(truncated));
+		}
+		byte[] badVersion = encoded.clone();
+		badVersion[0] = 9;
+		assertThrows(TalosError.class, () -> RatchetStateCodec.decode(badVersion));
+		assertThrows(TalosError.class, () -> RatchetStateCodec.decode(Arrays.copyOf(encoded, encoded.length + 1)));
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,57 @@
+package com.talosprotocol.talos.ratchet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+class ReactiveRatchetSessionManagerTest {
+
+	@Test
+	void testStreamRoundTripKeepsOrder() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSessionManager mgr = new RatchetSessionManager();
+		mgr.register("alice", pair[0]);
+		mgr.register("bob", pair[1]);
+
+		try (AsyncRatchetSessionManager async = new AsyncRatchetSessionManager(mgr)) {
+			ReactiveRatchetSessionManager reactive = new ReactiveRatchetSessionManager(async, 4);
+			List<String> messages = IntStream.range(0, 40).mapToObj(i -> "msg-" + i).collect(Collectors.toList());
+
+			AtomicLong maxRequested = new AtomicLong();
+			List<String> received = Flux.fromIterable(messages)
+					.doOnRequest(n -> maxRequested.accumulateAndGet(n, Math::max))
+					.map(m -> m.getBytes(StandardCharsets.UTF_8)).transform(reactive.encryptor("alice"))
+					.transform(reactive.decryptor("bob")).map(b -> new String(b, StandardCharsets.UTF_8))
+					.collectList().block();
+
+			assertEquals(messages, received);
+			assertTrue(maxRequested.get() <= 4, "requested " + maxRequested.get());
+		}
+	}
+
+	@Test
+	void testMonoIsLazyAndErrorsPropagate() {
+		RatchetSession[] pair = RatchetSessionTest.newPair();
+		RatchetSessionManager mgr = new RatchetSessionManager();
+		mgr.register("alice", pair[0]);
+		try (AsyncRatchetSessionManager async = new AsyncRatchetSessionManager(mgr)) {
+			ReactiveRatchetSessionManager reactive = new ReactiveRatchetSessionManager(async);
+			Mono<String> unsubscribed = reactive.encrypt("alice", new byte[8]);
+			assertEquals(0, pair[0].getState().n_s);
+			unsubscribed.block();
+			assertEquals(1, pair[0].getState().n_s);
+
+			assertThrows(RuntimeException.class, () -> reactive.decrypt("alice", Flux.just("garbage")).blockLast());
+		}
+	}
+}
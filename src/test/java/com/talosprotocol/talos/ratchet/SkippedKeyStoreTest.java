@@ -0,0 +1,127 @@
+package com.talosprotocol.talos.ratchet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class SkippedKeyStoreTest {
+
+	@Test
+	void testPutTake() {
+		SkippedKeyStore store = new SkippedKeyStore();
+		byte[] dh = chain(1);
+		store.put(dh, 5, key(5));
+		assertTrue(store.contains(chain(1), 5));
+		assertFalse(store.contains(chain(2), 5));
+		assertEquals(1, store.chainSize(dh));
+
+		assertArrayEquals(key(5), store.take(chain(1), 5));
+		assertNull(store.take(dh, 5));
+		assertTrue(store.isEmpty());
+		assertEquals(0, store.chainCount());
+	}
+
+	@Test
+	void testGlobalCapEvictsOldestAndZeroes() {
+		SkippedKeyStore store = new SkippedKeyStore(3, 10, 0, () -> 0);
+		byte[] first = key(0);
+		store.put(chain(1), 0, first);
+		store.put(chain(2), 1, key(1));
+		store.put(chain(3), 2, key(2));
+		store.put(chain(4), 3, key(3));
+
+		assertEquals(3, store.size());
+		assertEquals(1, store.evictedCount());
+		assertFalse(store.contains(chain(1), 0));
+		assertArrayEquals(new byte[32], first);
+		assertEquals(3, store.chainCount());
+	}
+
+	@Test
+	void testPerChainCap() {
+		SkippedKeyStore store = new SkippedKeyStore(100, 2, 0, () -> 0);
+		store.put(chain(9), 0, key(0));
+		store.put(chain(1), 0, key(0));
+		store.put(chain(1), 1, key(1));
+		store.put(chain(1), 2, key(2));
+
+		assertEquals(2, store.chainSize(chain(1)));
+		assertFalse(store.contains(chain(1), 0));
+		assertTrue(store.contains(chain(9), 0));
+		assertEquals(1, store.evictedCount());
+
+		// The chain's own order decides, after removals too.
+		store.take(chain(1), 1);
+		store.put(chain(1), 3, key(3));
+		store.put(chain(1), 4, key(4));
+		assertFalse(store.contains(chain(1), 2));
+		assertTrue(store.contains(chain(1), 3));
+		assertTrue(store.contains(chain(9), 0));
+		assertEquals(2, store.evictedCount());
+	}
+
+	@Test
+	void testExpiry() {
+		long[] now = {1000};
+		SkippedKeyStore store = new SkippedKeyStore(100, 100, 500, () -> now[0]);
+		byte[] old = key(1);
+		store.put(chain(1), 1, old);
+		now[0] = 1400;
+		store.put(chain(1), 2, key(2));
+		now[0] = 1600;
+
+		assertNull(store.take(chain(1), 1));
+		assertEquals(1, store.expiredCount());
+		assertArrayEquals(new byte[32], old);
+		assertArrayEquals(key(2), store.take(chain(1), 2));
+	}
+
+	@Test
+	void testReplacedKeyDoesNotShieldOlderKeysFromExpiry() {
+		long[] now = {1000};
+		SkippedKeyStore store = new SkippedKeyStore(100, 100, 500, () -> now[0]);
+		store.put(chain(1), 1, key(1));
+		now[0] = 1100;
+		store.put(chain(2), 1, key(2));
+		now[0] = 1300;
+		store.put(chain(1), 1, key(3));
+		now[0] = 1650;
+
+		assertNull(store.take(chain(2), 1));
+		assertEquals(1, store.expiredCount());
+		assertArrayEquals(key(3), store.take(chain(1), 1));
+	}
+
+	@Test
+	void testMetricsAndClear() {
+		SkippedKeyStore store = new SkippedKeyStore();
+		long before = store.modCount();
+		byte[] mk = key(1);
+		store.put(chain(1), 1, mk);
+		assertTrue(store.modCount() > before);
+		assertTrue(store.estimatedBytes() >= SkippedKeyStore.ENTRY_BYTES);
+		int[] visited = {0};
+		store.forEach((dh, n, k, at) -> visited[0]++);
+		assertEquals(1, visited[0]);
+
+		store.clear();
+		assertEquals(0, store.size());
+		assertEquals(0, store.estimatedBytes());
+		assertArrayEquals(new byte[32], mk);
+	}
+
+	private static byte[] chain(int id) {
+		byte[] dh = new byte[32];
+		dh[0] = (byte) id;
+		return dh;
+	}
+
+	private static byte[] key(int n) {
+		byte[] mk = new byte[32];
+		mk[31] = (byte) (n + 1);
+		return mk;
+	}
+}
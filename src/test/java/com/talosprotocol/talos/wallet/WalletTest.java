@@ -1,12 +1,25 @@
 package com.talosprotocol.talos.wallet;
 
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import com.talosprotocol.talos.errors.TalosError;
+import com.talosprotocol.talos.errors.TalosErrorCode;
+
 class WalletTest {
 
 	@Test
@@ -44,4 +57,113 @@ class WalletTest {
 		String addr = w.address();
 		assertEquals(64, addr.length()); // hex encoded sha256
 	}
+
+	@Test
+	void testVerifyBatch() {
+		Wallet[] signers = {Wallet.generate("a"), Wallet.generate("b"), Wallet.generate("c")};
+		List<Wallet.SignedItem> items = new ArrayList<>();
+		BitSet expected = new BitSet();
+		for (int i = 0; i < 100; i++) {
+			Wallet w = signers[i % signers.length];
+			byte[] msg = ("frame-" + i).getBytes(StandardCharsets.UTF_8);
+			byte[] sig = w.sign(msg);
+			byte[] pk = w.getPublicKey();
+			switch (i % 7) {
+				case 3 :
+					sig[0] ^= 1;
+					break;
+				case 5 :
+					pk = new byte[5];
+					break;
+				case 6 :
+					sig = new byte[10];
+					break;
+				default :
+					expected.set(i);
+			}
+			items.add(new Wallet.SignedItem(msg, sig, pk));
+		}
+		items.add(new Wallet.SignedItem(null, new byte[64], signers[0].getPublicKey()));
+
+		assertEquals(expected, Wallet.verifyBatch(items));
+		for (int i = 0; i < 100; i++) {
+			Wallet.SignedItem item = items.get(i);
+			assertEquals(expected.get(i), Wallet.verify(item.message, item.signature, item.publicKey));
+		}
+		assertTrue(Wallet.verifyBatch(List.of()).isEmpty());
+	}
+
+	@Test
+	void testBase58MatchesBigIntegerReference() {
+		Random rnd = new Random(58);
+		for (int len = 0; len <= 70; len++) {
+			for (int trial = 0; trial < 20; trial++) {
+				byte[] input = new byte[len];
+				rnd.nextBytes(input);
+				for (int z = 0; z < Math.min(len, trial % 4); z++) {
+					input[z] = 0;
+				}
+				String encoded = Base58.encode(input);
+				assertEquals(referenceBase58(input), encoded);
+				assertArrayEquals(input, Base58.decode(encoded, 0, encoded.length()));
+			}
+		}
+		TalosError e = assertThrows(TalosError.class, () -> Base58.decode("abc0", 0, 4));
+		assertEquals(TalosErrorCode.TALOS_INVALID_INPUT, e.getCode());
+	}
+
+	@Test
+	void testDidRoundTripAndMemoization() throws Exception {
+		Wallet w = Wallet.fromSeed(new byte[32], "Did");
+		String did = w.toDid();
+		assertSame(did, w.toDid());
+		assertSame(w.address(), w.address());
+		byte[] multicodec = new byte[34];
+		multicodec[0] = (byte) 0xED;
+		multicodec[1] = 0x01;
+		System.arraycopy(w.getPublicKey(), 0, multicodec, 2, 32);
+		assertEquals("did:key:z" + referenceBase58(multicodec), did);
+		assertEquals(referenceHex(w.getPublicKey()), w.address());
+
+		byte[] pub = Wallet.publicKeyFromDid(did);
+		assertArrayEquals(w.getPublicKey(), pub);
+		byte[] again = Wallet.publicKeyFromDid(did);
+		assertNotSame(pub, again);
+		assertArrayEquals(pub, again);
+		assertTrue(Wallet.didCacheStats().hits >= 1);
+	}
+
+	@Test
+	void testPublicKeyFromDidRejectsMalformed() {
+		String did = Wallet.generate("Peer").toDid();
+		String body = did.substring("did:key:z".length());
+		String[] bad = {"", "did:web:example.com", "did:key:" + body, did + "1", did.substring(0, did.length() - 1),
+				"did:key:z" + body.replace(body.charAt(3), '0'), "did:key:z" + Base58.encode(new byte[]{0x12, 0x20}),
+				"did:key:z1" + body, "did:key:z" + "2".repeat(200)};
+		for (String d : bad) {
+			TalosError e = assertThrows(TalosError.class, () -> Wallet.publicKeyFromDid(d), d);
+			assertEquals(TalosErrorCode.TALOS_INVALID_INPUT, e.getCode());
+		}
+		assertThrows(TalosError.class, () -> Wallet.publicKeyFromDid(null));
+	}
+
+	private static String referenceBase58(byte[] input) {
+		String alphabet = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+		StringBuilder s = new StringBuilder();
+		BigInteger bi = new BigInteger(1, input);
+		while (bi.signum() > 0) {
+			BigInteger[] divmod = bi.divideAndRemainder(BigInteger.valueOf(58));
+			s.insert(0, alphabet.charAt(divmod[1].intValue()));
+			bi = divmod[0];
+		}
+		for (int i = 0; i < input.length && input[i] == 0; i++) {
+			s.insert(0, '1');
+		}
+		return s.toString();
+	}
+
+	private static String referenceHex(byte[] pub) throws Exception {
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(pub);
+		return String.format("%064x", new BigInteger(1, hash));
+	}
 }